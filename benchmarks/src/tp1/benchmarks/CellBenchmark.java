@@ -0,0 +1,47 @@
+package tp1.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tp1.util.Cell;
+import tp1.util.CellRange;
+import tp1.util.InvalidCellIdException;
+
+/**
+ * Parsing of cell names and ranges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellBenchmark {
+
+	@Param({ "A1", "Z99", "AB10000" })
+	String cell;
+
+	@Param({ "A1:B2", "C3:AZ9999" })
+	String range;
+
+	@Benchmark
+	public Pair<Integer, Integer> cellId2Indexes() throws InvalidCellIdException {
+		return Cell.CellId2Indexes(cell);
+	}
+
+	@Benchmark
+	public CellRange cellRange() {
+		return new CellRange(range);
+	}
+}
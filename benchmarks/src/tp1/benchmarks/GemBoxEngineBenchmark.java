@@ -0,0 +1,60 @@
+package tp1.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tp1.api.engine.SpreadsheetEngine;
+import tp1.impl.engine.SpreadsheetEngineImpl;
+
+/**
+ * Full evaluation of a sheet by the GemBox engine. The free GemBox license is limited to 150 rows per
+ * worksheet, so sheets are kept below that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GemBoxEngineBenchmark {
+
+	@Param({ "10", "100", "150" })
+	int rows;
+
+	@Param({ "26" })
+	int cols;
+
+	@Param({ "0.0", "0.2", "0.8" })
+	double formulaDensity;
+
+	@Param({ "0", "10" })
+	int imports;
+
+	@Param({ "0.0", "0.5" })
+	double textRatio;
+
+	private StubSpreadsheet sheet;
+	private SpreadsheetEngine engine;
+
+	@Setup
+	public void setup() {
+		sheet = new StubSpreadsheet(rows, cols, formulaDensity, imports, textRatio);
+		engine = SpreadsheetEngineImpl.getInstance();
+	}
+
+	@Benchmark
+	public String[][] computeSpreadsheetValues() {
+		return engine.computeSpreadsheetValues(sheet);
+	}
+}
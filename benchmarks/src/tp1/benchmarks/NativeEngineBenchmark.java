@@ -0,0 +1,80 @@
+package tp1.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tp1.api.engine.SpreadsheetEngine;
+import tp1.impl.engine.NativeSpreadsheetEngine;
+import tp1.util.CellRange;
+
+/**
+ * Evaluation of a sheet by the native engine: from scratch, from the evaluation it keeps for the sheet,
+ * after a cell update, and of a single range.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NativeEngineBenchmark {
+
+	@Param({ "10", "150", "1000", "10000" })
+	int rows;
+
+	@Param({ "26" })
+	int cols;
+
+	@Param({ "0.0", "0.2", "0.8" })
+	double formulaDensity;
+
+	@Param({ "0", "10" })
+	int imports;
+
+	@Param({ "0.0", "0.5" })
+	double textRatio;
+
+	private StubSpreadsheet sheet;
+	private SpreadsheetEngine cached;
+	private CellRange range;
+
+	@Setup
+	public void setup() {
+		sheet = new StubSpreadsheet(rows, cols, formulaDensity, imports, textRatio);
+		cached = NativeSpreadsheetEngine.getInstance();
+		cached.computeSpreadsheetValues(sheet);
+		range = new CellRange(rows - 1, 0, rows - 1, cols - 1);
+	}
+
+	@Benchmark
+	public String[][] computeSpreadsheetValues() {
+		return NativeSpreadsheetEngine.getInstance().computeSpreadsheetValues(sheet);
+	}
+
+	@Benchmark
+	public String[][] computeSpreadsheetValuesKept() {
+		return cached.computeSpreadsheetValues(sheet);
+	}
+
+	@Benchmark
+	public String[][] cellUpdated() {
+		cached.cellUpdated(sheet, 0, 0);
+		return cached.computeSpreadsheetValues(sheet);
+	}
+
+	@Benchmark
+	public String[][] computeRangeValues() {
+		return NativeSpreadsheetEngine.getInstance().computeRangeValues(sheet, range);
+	}
+}
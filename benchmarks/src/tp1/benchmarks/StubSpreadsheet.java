@@ -0,0 +1,80 @@
+package tp1.benchmarks;
+
+import java.util.Random;
+
+import tp1.api.engine.AbstractSpreadsheet;
+
+/**
+ * Generated spreadsheet whose importrange formulas are resolved locally, so that benchmarks measure the
+ * engines and not the network.
+ *
+ * Cells are filled column by column: a formula cell sums the cells above it and references the cell to
+ * its left, so the sheet has both long dependency chains and independent column blocks.
+ */
+class StubSpreadsheet implements AbstractSpreadsheet {
+
+	private static final String[][] IMPORTED = { { "42" } };
+
+	private final int rows, cols;
+	private final String[][] rawValues;
+
+	/**
+	 * @param formulaDensity - fraction of the cells holding formulas
+	 * @param imports - number of cells holding importrange formulas
+	 * @param textRatio - fraction of the constant cells holding text instead of numbers
+	 */
+	StubSpreadsheet(int rows, int cols, double formulaDensity, int imports, double textRatio) {
+		this.rows = rows;
+		this.cols = cols;
+		this.rawValues = new String[rows][cols];
+
+		var random = new Random(rows * 31L + cols);
+		for (int row = 0; row < rows; row++)
+			for (int col = 0; col < cols; col++) {
+				var name = column(col) + (row + 1);
+				if (row > 0 && random.nextDouble() < formulaDensity)
+					rawValues[row][col] = col > 0 ?
+							String.format("=SUM(%s1:%s%d)+%s", column(col), column(col), row, column(col - 1) + (row + 1)) :
+							String.format("=%s%d*2", column(col), row);
+				else if (random.nextDouble() < textRatio)
+					rawValues[row][col] = "text " + name;
+				else
+					rawValues[row][col] = Integer.toString(random.nextInt(1000));
+			}
+
+		for (int i = 0; i < imports; i++)
+			rawValues[random.nextInt(rows)][random.nextInt(cols)] = String.format("=importrange(\"remote#id#sheet%d\",\"A1:A1\")", i);
+	}
+
+	static String column(int col) {
+		var name = "";
+		for (col++; col > 0; col = (col - 1) / 26)
+			name = (char) ('A' + (col - 1) % 26) + name;
+		return name;
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int columns() {
+		return cols;
+	}
+
+	@Override
+	public String sheetId() {
+		return "benchmark";
+	}
+
+	@Override
+	public String cellRawValue(int row, int col) {
+		return rawValues[row][col];
+	}
+
+	@Override
+	public String[][] rangeValues(String sheetURL, String range) {
+		return IMPORTED;
+	}
+}
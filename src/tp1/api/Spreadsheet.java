@@ -3,11 +3,13 @@ package tp1.api;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import tp1.api.engine.AbstractSpreadsheet;
 import tp1.resources.SpreadsheetResource;
 import tp1.util.CellRange;
+import tp1.util.CellStore;
 
 
 /**
@@ -26,8 +28,85 @@ public class Spreadsheet implements AbstractSpreadsheet {
 	
 	private Set<String> sharedWith;
 	
-	// raw contents of the sheet
-	private String[][] rawValues;
+	// raw contents and version of the sheet, replaced as a whole by every mutation
+	private volatile Snapshot current = new Snapshot(this, null, 0, 0);
+
+	/**
+	 * Immutable state of a spreadsheet at some version, which engines can evaluate while the sheet keeps
+	 * being updated.
+	 */
+	public static class Snapshot implements AbstractSpreadsheet {
+
+		private final Spreadsheet sheet;
+		// raw contents of the sheet, exchanged as a String[][] through getRawValues/setRawValues
+		private final CellStore cells;
+		// incremented by every mutation of the sheet
+		private final long version;
+		// number of raw values that are importrange formulas
+		private final int imports;
+
+		private Snapshot(Spreadsheet sheet, CellStore cells, long version, int imports) {
+			this.sheet = sheet;
+			this.cells = cells;
+			this.version = version;
+			this.imports = imports;
+		}
+
+		/**
+		 * Tests if any cell of the sheet imports values from other sheets, in which case its computed values
+		 * may change without the sheet itself changing.
+		 */
+		public boolean hasImports() {
+			return imports > 0;
+		}
+
+		@Override
+		public long version() {
+			return version;
+		}
+
+		@Override
+		public int rows() {
+			return sheet.rows;
+		}
+
+		@Override
+		public int columns() {
+			return sheet.columns;
+		}
+
+		@Override
+		public String sheetId() {
+			return sheet.sheetId;
+		}
+
+		@Override
+		public String cellRawValue(int row, int col) {
+			return cells.get(row, col);
+		}
+
+		@Override
+		public Object compiledValue(int row, int col) {
+			return cells.compiled(row, col);
+		}
+
+		@Override
+		public void storeCompiledValue(int row, int col, Object compiled) {
+			cells.compile(row, col, compiled);
+		}
+
+		@Override
+		public String[][] rangeValues(String sheetURL, String range) {
+			return sheet.rangeValues(sheetURL, range);
+		}
+
+		/**
+		 * Visits the non-null raw values of the sheet, row by row, without going through the empty cells.
+		 */
+		public <E extends Exception> void forEachCellRawValue(CellStore.CellVisitor<E> visitor) throws E {
+			cells.forEach(visitor);
+		}
+	}
 	
 	public Spreadsheet() {	
 	}
@@ -40,7 +119,18 @@ public class Spreadsheet implements AbstractSpreadsheet {
 		this.rows = rows;
 		this.columns = columns;
 		this.sharedWith = sharedWith;
-		this.rawValues = rawValues;
+		setRawValues(rawValues);
+	}
+
+	public Spreadsheet(String sheetId, String owner, String sheetURL, int rows, int columns, Set<String> sharedWith, CellStore cells) {
+		super();
+		this.sheetId = sheetId;
+		this.owner = owner;
+		this.sheetURL = sheetURL;
+		this.rows = rows;
+		this.columns = columns;
+		this.sharedWith = sharedWith;
+		this.current = new Snapshot(this, cells, 0, countImports(cells));
 	}
 
 	public Spreadsheet(Spreadsheet s, String sheetId, String domainId) {
@@ -50,8 +140,10 @@ public class Spreadsheet implements AbstractSpreadsheet {
 		this.sheetURL = domainId+"#id#"+sheetId;
 		this.rows = s.rows;
 		this.columns = s.columns;
-		this.sharedWith = Optional.ofNullable(s.sharedWith).orElse(new HashSet<>());
-		this.rawValues = Optional.ofNullable(s.rawValues).orElse(new String[rows][columns]);
+		this.sharedWith = ConcurrentHashMap.newKeySet();
+		if (s.sharedWith != null)
+			this.sharedWith.addAll(s.sharedWith);
+		this.current = new Snapshot(this, Optional.ofNullable(s.current.cells).orElse(CellStore.empty(rows, columns)), 0, s.current.imports);
 	}
 
 	public String getSheetId() {
@@ -114,11 +206,104 @@ public class Spreadsheet implements AbstractSpreadsheet {
 
 
 	public String[][] getRawValues() {
-		return rawValues;
+		var cells = current.cells;
+		return cells == null ? null : cells.toArray();
 	}
 
 	public void setRawValues(String[][] rawValues) {
-		this.rawValues = rawValues;
+		this.current = new Snapshot(this, rawValues == null ? null : CellStore.of(rawValues), current.version, countImports(rawValues));
+	}
+
+	public long getVersion() {
+		return current.version;
+	}
+
+	public void setVersion(long version) {
+		var c = current;
+		this.current = new Snapshot(this, c.cells, version, c.imports);
+	}
+
+	/**
+	 * The current state of the sheet, which later updates leave unchanged. Updates of a sheet must be
+	 * serialized by the caller, but snapshots can be read concurrently with them.
+	 */
+	public Snapshot snapshot() {
+		return current;
+	}
+
+	/**
+	 * A copy of the current state of the sheet, detached from later updates, to be returned while the sheet
+	 * keeps being updated.
+	 */
+	public Spreadsheet copy() {
+		var c = current;
+		var copy = new Spreadsheet();
+		copy.sheetId = sheetId;
+		copy.owner = owner;
+		copy.sheetURL = sheetURL;
+		copy.rows = rows;
+		copy.columns = columns;
+		copy.sharedWith = sharedWith == null ? null : new HashSet<>(sharedWith);
+		copy.current = new Snapshot(copy, c.cells, c.version, c.imports);
+		return copy;
+	}
+
+	private Snapshot next(CellStore cells, int imports) {
+		return new Snapshot(this, cells, current.version + 1, imports);
+	}
+
+	private void publish(CellStore cells, int imports) {
+		this.current = next(cells, imports);
+	}
+
+	/**
+	 * Makes a snapshot returned by withCellRawValue(s) the current state of the sheet, once the engine has
+	 * applied the update, so that the new version is never read with the values of the previous one.
+	 */
+	public void publish(Snapshot next) {
+		if (next.sheet != this || next.version != current.version + 1)
+			throw new IllegalStateException("Snapshot does not follow version " + current.version);
+		this.current = next;
+	}
+
+	/**
+	 * Adds a user to the set of users with which the sheet is shared.
+	 * @param userId - the user, in the form userId@domain.
+	 * @return false if the sheet was already shared with the user.
+	 */
+	public boolean addShare(String userId) {
+		if (!sharedWith.add(userId))
+			return false;
+		publish(current.cells, current.imports);
+		return true;
+	}
+
+	/**
+	 * Tests if the sheet is shared with a user.
+	 * @param userId - the user, in the form userId@domain.
+	 */
+	public boolean hasShare(String userId) {
+		return sharedWith != null && sharedWith.contains(userId);
+	}
+
+	/**
+	 * Removes a user from the set of users with which the sheet is shared.
+	 * @param userId - the user, in the form userId@domain.
+	 * @return false if the sheet was not shared with the user.
+	 */
+	public boolean removeShare(String userId) {
+		if (!sharedWith.remove(userId))
+			return false;
+		publish(current.cells, current.imports);
+		return true;
+	}
+
+	/**
+	 * Tests if any cell of the sheet imports values from other sheets, in which case its computed values
+	 * may change without the sheet itself changing.
+	 */
+	public boolean hasImports() {
+		return current.hasImports();
 	}
 
 	/**
@@ -128,7 +313,7 @@ public class Spreadsheet implements AbstractSpreadsheet {
 	 */
 	public void placeCellRawValue(String cell, String value) {
 		var r = new CellRange( cell + ":A1");
-		rawValues[r.topRow][ r.topCol] = value;
+		placeCellRawValue(r.topRow, r.topCol, value);
 	}
 	
 	/**
@@ -139,9 +324,45 @@ public class Spreadsheet implements AbstractSpreadsheet {
 	 */
 	@Deprecated
 	public void placeCellRawValue(int row, int col, String value) {
-		rawValues[row][ col] = value;
+		publish(withCellRawValue(row, col, value));
+	}
+
+	/**
+	 * The state of the sheet following an update of the raw value of a cell, to be published.
+	 * @param row  - the row index of the cell being updated.
+	 * @param col  - the column index of the cell being updated.
+	 * @param value the new raw value.
+	 */
+	public Snapshot withCellRawValue(int row, int col, String value) {
+		var c = current;
+		int imports = c.imports + (isImport(value) ? 1 : 0) - (isImport(c.cells.get(row, col)) ? 1 : 0);
+		return next(CellStore.fit(c.cells.with(row, col, value)), imports);
 	}
 	
+	/**
+	 * Updates the raw values of a block of cells, as a single mutation of the sheet.
+	 * @param range - the cells being updated.
+	 * @param values - the new raw values, with the dimensions of the range; null values leave the cell unchanged.
+	 */
+	public void placeCellRawValues(CellRange range, String[][] values) {
+		publish(withCellRawValues(range, values));
+	}
+
+	/**
+	 * The state of the sheet following an update of the raw values of a block of cells, to be published.
+	 */
+	public Snapshot withCellRawValues(CellRange range, String[][] values) {
+		var current = this.current;
+		int imports = current.imports;
+		for (int r = 0; r < range.rows(); r++)
+			for (int c = 0; c < range.cols(); c++) {
+				var value = values[r][c];
+				if (value != null)
+					imports += (isImport(value) ? 1 : 0) - (isImport(current.cells.get(range.topRow + r, range.topCol + c)) ? 1 : 0);
+			}
+		return next(CellStore.fit(current.cells.with(range.topRow, range.topCol, values)), imports);
+	}
+
 	/**
 	 * Gets the raw value of a cell, given its index coordinates.
 	 * @param row - the row index.
@@ -149,7 +370,7 @@ public class Spreadsheet implements AbstractSpreadsheet {
 	 * @return the raw value of the cell.
 	 */
 	public String extractCellRawValue(int row, int col) {
-		return rawValues[row][col];
+		return current.cells.get(row, col);
 	}
 
 	public String extractOwnerDomain() {
@@ -171,13 +392,53 @@ public class Spreadsheet implements AbstractSpreadsheet {
 		return sheetId;
 	}
 
+	@Override
+	public long version() {
+		return current.version;
+	}
+
 	@Override
 	public String cellRawValue(int row, int col) {
-		return rawValues[row][col];
+		return current.cells.get(row, col);
+	}
+
+	@Override
+	public Object compiledValue(int row, int col) {
+		return current.cells.compiled(row, col);
+	}
+
+	@Override
+	public void storeCompiledValue(int row, int col, Object compiled) {
+		current.cells.compile(row, col, compiled);
 	}
 
 	private static Logger Log = Logger.getLogger(Spreadsheet.class.getName());
 
+	private static boolean isImport(String rawValue) {
+		return rawValue != null && rawValue.regionMatches(true, 0, IMPORTRANGE_FORMULA, 0, IMPORTRANGE_FORMULA.length());
+	}
+
+	private static int countImports(String[][] rawValues) {
+		int count = 0;
+		if (rawValues != null)
+			for (var row : rawValues)
+				for (var value : row)
+					if (isImport(value))
+						count++;
+		return count;
+	}
+
+	private static int countImports(CellStore cells) {
+		int[] count = { 0 };
+		cells.forEach((row, col, rawValue) -> {
+			if (isImport(rawValue))
+				count[0]++;
+		});
+		return count[0];
+	}
+
+	private static final String IMPORTRANGE_FORMULA = "=importrange";
+
 	@Override
 	public String[][] rangeValues(String sheetURL, String range) {
 		try {
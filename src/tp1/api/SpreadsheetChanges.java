@@ -0,0 +1,60 @@
+package tp1.api;
+
+import java.util.List;
+
+/**
+ * Represents the spreadsheets of a domain created, changed or deleted since a given version of the
+ * domain change log.
+ */
+public class SpreadsheetChanges {
+	// identifies the incarnation of the server; versions of different epochs are unrelated
+	private long epoch;
+	// version of the change log covered by these changes, to be used in the next request
+	private long version;
+	// current state of the sheets created or changed
+	private List<Spreadsheet> changed;
+	// ids of the sheets deleted
+	private List<String> deleted;
+
+	public SpreadsheetChanges() {
+	}
+
+	public SpreadsheetChanges(long epoch, long version, List<Spreadsheet> changed, List<String> deleted) {
+		this.epoch = epoch;
+		this.version = version;
+		this.changed = changed;
+		this.deleted = deleted;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	public List<Spreadsheet> getChanged() {
+		return changed;
+	}
+
+	public void setChanged(List<Spreadsheet> changed) {
+		this.changed = changed;
+	}
+
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(List<String> deleted) {
+		this.deleted = deleted;
+	}
+}
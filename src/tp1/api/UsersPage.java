@@ -0,0 +1,71 @@
+package tp1.api;
+
+import java.util.List;
+
+/**
+ * Represents a page of the users of a domain, in the order they were last created, changed or deleted,
+ * together with the token to get the next page.
+ */
+public class UsersPage {
+	// identifies the incarnation of the server; tokens of different epochs are unrelated
+	private long epoch;
+	// continuation token, to get the users changed after the ones in this page (including later changes of these)
+	private String next;
+	// whether more users were already changed after this page
+	private boolean more;
+	// current state of the users created or changed
+	private List<User> users;
+	// ids of the users deleted (only when continuing from a token)
+	private List<String> deleted;
+
+	public UsersPage() {
+	}
+
+	public UsersPage(long epoch, String next, boolean more, List<User> users, List<String> deleted) {
+		this.epoch = epoch;
+		this.next = next;
+		this.more = more;
+		this.users = users;
+		this.deleted = deleted;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	public void setEpoch(long epoch) {
+		this.epoch = epoch;
+	}
+
+	public String getNext() {
+		return next;
+	}
+
+	public void setNext(String next) {
+		this.next = next;
+	}
+
+	public boolean isMore() {
+		return more;
+	}
+
+	public void setMore(boolean more) {
+		this.more = more;
+	}
+
+	public List<User> getUsers() {
+		return users;
+	}
+
+	public void setUsers(List<User> users) {
+		this.users = users;
+	}
+
+	public List<String> getDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(List<String> deleted) {
+		this.deleted = deleted;
+	}
+}
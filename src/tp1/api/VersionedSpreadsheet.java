@@ -0,0 +1,35 @@
+package tp1.api;
+
+/**
+ * Represents a spreadsheet, together with the tag of its version.
+ */
+public class VersionedSpreadsheet {
+	// tag of the version of the sheet, qualified by the epoch of the server as the ETags are
+	private String tag;
+	// the sheet, or null if it did not change since the version known by the client
+	private Spreadsheet spreadsheet;
+
+	public VersionedSpreadsheet() {
+	}
+
+	public VersionedSpreadsheet(String tag, Spreadsheet spreadsheet) {
+		this.tag = tag;
+		this.spreadsheet = spreadsheet;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	public Spreadsheet getSpreadsheet() {
+		return spreadsheet;
+	}
+
+	public void setSpreadsheet(Spreadsheet spreadsheet) {
+		this.spreadsheet = spreadsheet;
+	}
+}
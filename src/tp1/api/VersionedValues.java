@@ -0,0 +1,37 @@
+package tp1.api;
+
+/**
+ * Represents the computed values of a spreadsheet, together with the version of the sheet they were
+ * computed from.
+ */
+public class VersionedValues {
+	// tag of the version of the sheet, qualified by the epoch of the server as the ETags are; null if the values
+	// may change without the sheet changing (importrange)
+	private String tag;
+	// the computed values, or null if they did not change since the version known by the client
+	private String[][] values;
+
+	public VersionedValues() {
+	}
+
+	public VersionedValues(String tag, String[][] values) {
+		this.tag = tag;
+		this.values = values;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public void setTag(String tag) {
+		this.tag = tag;
+	}
+
+	public String[][] getValues() {
+		return values;
+	}
+
+	public void setValues(String[][] values) {
+		this.values = values;
+	}
+}
@@ -25,11 +25,34 @@ public interface AbstractSpreadsheet {
 	 * The id of the spreadsheet
 	 */
 	String sheetId();
+
+	/**
+	 * The version of the contents of the spreadsheet, incremented by every update, or -1 for spreadsheets
+	 * not keeping one.
+	 */
+	default long version() {
+		return -1;
+	}
 	
 	/**
 	 * Called by the engine to obtain the raw value of a cell, given its row, col coordinates
 	 */
 	String cellRawValue(int row, int col);
+
+	/**
+	 * Called by the engine to obtain the representation it previously compiled from the raw value of a cell.
+	 * Spreadsheets not keeping them return null.
+	 */
+	default Object compiledValue(int row, int col) {
+		return null;
+	}
+
+	/**
+	 * Called by the engine to keep the representation compiled from the raw value of a cell, which the
+	 * spreadsheet discards when the cell is updated.
+	 */
+	default void storeCompiledValue(int row, int col, Object compiled) {
+	}
 	
 	/**
 	 * Called by the engine to resolve importrange formulas
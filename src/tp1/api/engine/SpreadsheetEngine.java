@@ -1,5 +1,7 @@
 package tp1.api.engine;
 
+import tp1.util.CellRange;
+
 /**
  * 
  * The SpreadsheeEngine class is used to compute the values of a spreadsheet from its raw values.
@@ -17,4 +19,42 @@ public interface SpreadsheetEngine {
 	 */
 	public String[][] computeSpreadsheetValues( AbstractSpreadsheet sheet );
 
+	/**
+	 * Computes the values of a range of cells. Engines may evaluate only the cells in the range and the
+	 * cells they depend on.
+	 * @param sheet - The spreadsheet whose cells will be used to compute the values
+	 * @param range - The range of cells to compute
+	 * @return the "matrix" of cell values covered by the range.
+	 */
+	default String[][] computeRangeValues( AbstractSpreadsheet sheet, CellRange range ) {
+		return range.extractRangeValuesFrom(computeSpreadsheetValues(sheet));
+	}
+
+	/**
+	 * Notifies the engine that the raw value of a cell has changed, so that engines keeping the computed
+	 * values of the sheet can refresh only the cells affected by it.
+	 * @param sheet - The spreadsheet that was updated
+	 * @param row - the row index of the updated cell
+	 * @param col - the column index of the updated cell
+	 */
+	default void cellUpdated( AbstractSpreadsheet sheet, int row, int col ) {
+	}
+
+	/**
+	 * Notifies the engine that the raw values of a range of cells have changed, as a single update.
+	 * @param sheet - The spreadsheet that was updated
+	 * @param range - the cells updated
+	 */
+	default void rangeUpdated( AbstractSpreadsheet sheet, CellRange range ) {
+		for (int row = range.topRow; row <= range.botRow; row++)
+			for (int col = range.topCol; col <= range.botCol; col++)
+				cellUpdated(sheet, row, col);
+	}
+
+	/**
+	 * Notifies the engine that a spreadsheet no longer exists, discarding any state kept for it.
+	 * @param sheetId - the id of the deleted spreadsheet
+	 */
+	default void spreadsheetDeleted( String sheetId ) {
+	}
 }
@@ -3,14 +3,18 @@ package tp1.api.service.rest;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.User;
 
 import java.util.List;
@@ -58,8 +62,10 @@ public interface RestSpreadsheets {
 	 * @param sheetId - The  spreadsheet being retrieved.
 	 * @param userId - The user performing the operation.
 	 * @param password - The password of the user performing the operation.
+	 * @param ifNoneMatch - the ETag of the copy of the spreadsheet held by the client, if any.
 	 *
-	 * @return 200 and the spreadsheet
+	 * @return 200 and the spreadsheet, with its version as ETag
+	 *		   304 if the spreadsheet did not change since the version with the given ETag
 	 *		   404 if no sheet exists with the given sheetId, or the userId does not exist.
 	 *         403 if the password is incorrect.
 	 * 		   400 otherwise
@@ -67,8 +73,8 @@ public interface RestSpreadsheets {
 	@GET
 	@Path("/{sheetId}")
 	@Produces(MediaType.APPLICATION_JSON)
-	Spreadsheet getSpreadsheet(@PathParam("sheetId") String sheetId , @QueryParam("userId") String userId,
-							   @QueryParam("password") String password) throws Exception;
+	Response getSpreadsheet(@PathParam("sheetId") String sheetId , @QueryParam("userId") String userId,
+							   @QueryParam("password") String password, @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) throws Exception;
 		
 	
 	/**
@@ -76,8 +82,10 @@ public interface RestSpreadsheets {
 	 * @param userId - The user requesting the values
 	 * @param sheetId - the spreadsheet whose values are being retrieved.
 	 * @param password - the password of the user performing  of the operation
+	 * @param ifNoneMatch - the ETag of the values held by the client, if any.
 	 * 
-	 * @return 200, if the operation is successful
+	 * @return 200, if the operation is successful, with an ETag unless the sheet imports values from other sheets
+	 * 		   304, if the values did not change since the ones with the given ETag
 	 * 		   403, if the spreadsheet is not shared with user, or the user is not the owner, or the password is incorrect.
 	 * 		   404, if the spreadsheet or the user do not exist
 	 *		   400, otherwise
@@ -85,8 +93,9 @@ public interface RestSpreadsheets {
 	@GET
 	@Path("/{sheetId}/values")
 	@Produces(MediaType.APPLICATION_JSON)
-	String[][] getSpreadsheetValues(@PathParam("sheetId") String sheetId, 
-			@QueryParam("userId") String userId, @QueryParam("password") String password) throws Exception;
+	Response getSpreadsheetValues(@PathParam("sheetId") String sheetId,
+			@QueryParam("userId") String userId, @QueryParam("password") String password,
+			@HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch) throws Exception;
 
 
 	/**
@@ -125,6 +134,28 @@ public interface RestSpreadsheets {
 	void updateCell( @PathParam("sheetId") String sheetId, @PathParam("cell") String cell, String rawValue,
 			@QueryParam("userId") String userId, @QueryParam("password") String password) throws Exception;
 
+	/**
+	 * Updates the raw values of a block of cells of a spreadsheet, checking the credentials once and
+	 * applying all the values as a single update.
+	 *
+	 * @param sheetId - the spreadsheet being updated.
+	 * @param range - the block of cells being updated (e.g. A1:C10)
+	 * @param rawValues - the new raw values, with the dimensions of the range. Null values leave the
+	 *                  corresponding cells unchanged.
+	 * @param userId - The user performing the update.
+	 * @param password - the password of the user performing of the operation
+	 *
+	 * @return 204, if the operation was successful
+	 * 		  404, if no spreadsheet exists with the given sheetid
+	 *        403, if the password is incorrect.
+	 *        400 otherwise
+	 **/
+	@PUT
+	@Path("/{sheetId}/cells")
+	@Consumes(MediaType.APPLICATION_JSON)
+	void updateRange( @PathParam("sheetId") String sheetId, @QueryParam("range") String range, String[][] rawValues,
+			@QueryParam("userId") String userId, @QueryParam("password") String password) throws Exception;
+
 	
 	/**
 	 * Adds a new user to the list of shares of a spreadsheet. Only the owner can call this method.
@@ -166,9 +197,10 @@ public interface RestSpreadsheets {
 			@QueryParam("password") String password) throws Exception;
 
 	/**
-	 * Deletes a users spreadsheets. Only the owner can call this method.
+	 * Deletes a users spreadsheets. Only the owner can call this method, or the users service of the domain
+	 * once it removed the user, authenticating with a token signed with the secret of the domain.
 	 * @param userId - the user that is requesting his sheets ids
-	 * @param password - the password of the owner of the spreadsheets
+	 * @param password - the password of the owner of the spreadsheets, or the token of the users service
 	 * @return 200 and the set of ids
 	 * 		   400 if the login credentials are wrong
 	 */
@@ -176,6 +208,19 @@ public interface RestSpreadsheets {
 	@Path("/spreadsheets/{userId}")
 	void deleteUserSpreadsheets(@PathParam("userId") String userId, @QueryParam("password") String password) throws Exception;
 
+	/**
+	 * Discards any cached verification of the credentials of a user. Called by the users service whenever
+	 * a user is updated or deleted.
+	 * @param userId - the user whose credentials changed
+	 * @param token - the token of the users service, signed with the secret of the domain
+	 * @return 204 in case of success
+	 * 		   403 if the token is not valid
+	 * 		   400 otherwise
+	 */
+	@DELETE
+	@Path("/credentials/{userId}")
+	void invalidateUserCredentials(@PathParam("userId") String userId, @QueryParam("token") String token) throws Exception;
+
 
 	/**
 	 * Returns the list of spreadsheets
@@ -186,4 +231,58 @@ public interface RestSpreadsheets {
 	@Path("/spreadsheets/all")
 	@Produces(MediaType.APPLICATION_JSON)
 	List<Spreadsheet> getSpreadsheets() throws Exception;
+
+	/**
+	 * Returns the spreadsheets of the domain shared with a user.
+	 * @param userId - the user, local to the domain
+	 * @param password - the password of the user
+	 * @return 200 and the spreadsheets, regardless of their number (including 0).
+	 * 		   404 if the user does not exist
+	 * 		   403 if the password is incorrect
+	 * 		   400 otherwise
+	 */
+	@GET
+	@Path("/spreadsheets/shared")
+	@Produces(MediaType.APPLICATION_JSON)
+	List<Spreadsheet> getSharedSpreadsheets(@QueryParam("userId") String userId, @QueryParam("password") String password) throws Exception;
+
+	/**
+	 * Returns the spreadsheets created, changed or deleted after a given version of the change log of
+	 * the domain. Changed sheets are returned in their current state.
+	 * @param sinceVersion - the version returned by the previous call, or 0 to get every sheet.
+	 * @return 200 and the changes, together with the version to use in the next call.
+	 */
+	@GET
+	@Path("/spreadsheets/changes")
+	@Produces(MediaType.APPLICATION_JSON)
+	SpreadsheetChanges getSpreadsheetChanges(@QueryParam("since") long sinceVersion) throws Exception;
+
+	/**
+	 * Long-poll on the change log of the domain: replies as getSpreadsheetChanges as soon as there are changes
+	 * after the given version, or once the timeout expires without any (with no changes).
+	 * @param epoch - the epoch returned by the previous call; replies immediately if the server has another
+	 * @param sinceVersion - the version returned by the previous call, or 0 to get every sheet.
+	 * @param sheetId - the only sheet of interest, or null for every sheet of the domain.
+	 * @param timeout - how long to wait for changes, in milliseconds, up to MAX_CHANGES_WAIT
+	 * @return 200 and the changes, together with the version to use in the next call.
+	 */
+	@GET
+	@Path("/spreadsheets/changes/wait")
+	@Produces(MediaType.APPLICATION_JSON)
+	SpreadsheetChanges awaitSpreadsheetChanges(@QueryParam("epoch") long epoch, @QueryParam("since") long sinceVersion,
+			@QueryParam("sheetId") String sheetId, @QueryParam("timeout") long timeout);
+
+	/**
+	 * Applies a batch of mutations streamed by the primary server of the sheets to one of its backups.
+	 * @param batch - the batch, as encoded by ReplicationLog
+	 * @return 200 and the sequence number of the last mutation applied, or -1 if the backup needs a snapshot
+	 * 		   403 if the batch is not authenticated with the replication secret of the domain
+	 * 		   409 if the backup follows a primary of a later term
+	 * 		   400 otherwise
+	 */
+	@POST
+	@Path("/replication")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_JSON)
+	long replicate(byte[] batch) throws Exception;
 }
@@ -12,7 +12,9 @@ import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import tp1.api.User;
+import tp1.api.UsersPage;
 
 @Path(RestUsers.PATH)
 public interface RestUsers {
@@ -90,4 +92,33 @@ public interface RestUsers {
 	@Produces(MediaType.APPLICATION_JSON)
 	List<User> searchUsers(@QueryParam("query") String pattern) throws Exception;
 
+	/**
+	 * Returns a page of the users for which the pattern is a substring of the name, case-insensitive, in the
+	 * order they were last changed, streamed as a UsersPage. Paging on with the token of the last page returns
+	 * the users changed since, and the ids of the users deleted since.
+	 * @param pattern substring to search, or null for every user
+	 * @param cursor the token of the previous page, or null to start from the first user
+	 * @param limit how many users to return at most, up to MAX_PAGE_SIZE
+	 * @return 200 and the page, when the search was successful.
+	 *         400 if the token is not valid.
+	 */
+	@GET
+	@Path("/page")
+	@Produces(MediaType.APPLICATION_JSON)
+	Response listUsersPage(@QueryParam("query") String pattern, @QueryParam("cursor") String cursor,
+			@QueryParam("limit") int limit) throws Exception;
+
+	/**
+	 * Verifies the credentials of several users at once.
+	 * @param credentials the users to verify, of which only the userId and password are considered
+	 * @return 200 and the outcome of each user, in the same order: OK, NOT_FOUND if no user exists with
+	 *         the userId, FORBIDDEN if the password is incorrect, or BAD_REQUEST if either is missing.
+	 *         400 if there are no credentials, or more than MAX_VALIDATION_BATCH.
+	 */
+	@POST
+	@Path("/validation")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	List<String> validateUsers(List<User> credentials) throws Exception;
+
 }
@@ -6,6 +6,9 @@ import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.MediaType;
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
+import tp1.api.VersionedSpreadsheet;
+import tp1.api.VersionedValues;
 
 import java.util.List;
 
@@ -46,6 +49,14 @@ public interface SoapSpreadsheets {
 	@WebMethod
 	Spreadsheet getSpreadsheet(String sheetId , String userId, String password) throws SheetsException;
 
+	/**
+	 * Retrieve a spreadsheet, unless it is still at the version held by the client.
+	 * @param tag - the tag returned with the copy of the sheet held by the client, or null if none.
+	 * @return the tag of the version of the spreadsheet, and the spreadsheet or null if its tag is the given one.
+	 */
+	@WebMethod
+	VersionedSpreadsheet getSpreadsheetIfVersionDiffers(String sheetId , String userId, String password, String tag) throws SheetsException;
+
 	/**
 	 * Retrieve a spreadsheet.
 	 *
@@ -96,6 +107,19 @@ public interface SoapSpreadsheets {
 	@WebMethod
 	void updateCell( String sheetId, String cell, String rawValue, String userId, String password) throws SheetsException;
 
+	/**
+	 * Updates the raw values of a block of cells of a spreadsheet, as a single update.
+	 *
+	 * @param sheetId - the spreadsheet being updated.
+	 * @param range - the block of cells being updated (e.g. A1:C10)
+	 * @param rawValues - the new raw values, with the dimensions of the range; null values leave the cells unchanged
+	 * @param userId - The user performing the update.
+	 * @param password - the password of the user performing the update
+	 *
+	 **/
+	@WebMethod
+	void updateRange( String sheetId, String range, String[][] rawValues, String userId, String password) throws SheetsException;
+
 	
 	/**
 	 * Retrieves the calculated values of a spreadsheet.
@@ -108,14 +132,33 @@ public interface SoapSpreadsheets {
 	String[][] getSpreadsheetValues(String sheetId, String userId, String password) throws SheetsException;
 
 	/**
-	 * Deletes a users spreadsheets. Only the owner can call this method.
+	 * Retrieves the calculated values of a spreadsheet, unless they were computed from the version of the
+	 * sheet held by the client.
+	 * @param tag - the tag returned with the values held by the client, or null if none.
+	 * @return the tag of the version of the sheet, and its values or null if they did not change.
+	 */
+	@WebMethod
+	VersionedValues getSpreadsheetValuesIfVersionDiffers(String sheetId, String userId, String password, String tag) throws SheetsException;
+
+	/**
+	 * Deletes a users spreadsheets. Only the owner can call this method, or the users service of the domain
+	 * once it removed the user, authenticating with a token signed with the secret of the domain.
 	 * @param userId - The user requesting the values
-	 * @param password - the password of the owner of the spreadsheet
+	 * @param password - the password of the owner of the spreadsheet, or the token of the users service
 	 *
 	 */
 	@WebMethod
 	void deleteUserSpreadsheets(String userId, String password) throws SheetsException;
 
+	/**
+	 * Discards any cached verification of the credentials of a user.
+	 * @param userId - the user whose credentials changed
+	 * @param token - the token of the users service, signed with the secret of the domain
+	 *
+	 */
+	@WebMethod
+	void invalidateUserCredentials(String userId, String token) throws SheetsException;
+
 	/**
 	 * Returns the list of spreadsheets
 	 * @return 200 when the search was successful, regardless of the number of hits (including 0 hits).
@@ -124,4 +167,27 @@ public interface SoapSpreadsheets {
 	@WebMethod
 	List<Spreadsheet> getSpreadsheets() throws SheetsException;
 
+	/**
+	 * Returns the spreadsheets of the domain shared with a user.
+	 * @param userId - the user, local to the domain
+	 * @param password - the password of the user
+	 */
+	@WebMethod
+	List<Spreadsheet> getSharedSpreadsheets(String userId, String password) throws SheetsException;
+
+	/**
+	 * Returns the spreadsheets created, changed or deleted after a given version of the change log of the domain.
+	 * @param sinceVersion - the version returned by the previous call, or 0 to get every sheet.
+	 */
+	@WebMethod
+	SpreadsheetChanges getSpreadsheetChanges(long sinceVersion) throws SheetsException;
+
+	/**
+	 * Applies a batch of mutations streamed by the primary server of the sheets to one of its backups.
+	 * @param batch - the batch, as encoded by ReplicationLog
+	 * @return the sequence number of the last mutation applied, or -1 if the backup needs a snapshot
+	 */
+	@WebMethod
+	long replicate(byte[] batch) throws SheetsException;
+
 }
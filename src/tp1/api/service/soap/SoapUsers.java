@@ -5,6 +5,7 @@ import java.util.List;
 import jakarta.jws.WebMethod;
 import jakarta.jws.WebService;
 import tp1.api.User;
+import tp1.api.UsersPage;
 
 @WebService(serviceName=SoapUsers.NAME, targetNamespace=SoapUsers.NAMESPACE, endpointInterface=SoapUsers.INTERFACE)
 public interface SoapUsers {
@@ -54,4 +55,24 @@ public interface SoapUsers {
 	 */
 	@WebMethod
 	List<User> searchUsers(String pattern) throws UsersException;
+
+	/**
+	 * Returns a page of the users for which the pattern is a substring of the name, case-insensitive, in the
+	 * order they were last changed.
+	 * @param pattern substring to search, or null for every user
+	 * @param cursor the token of the previous page, or null to start from the first user
+	 * @param limit how many users to return at most
+	 * @throws UsersException otherwise
+	 */
+	@WebMethod
+	UsersPage getUsersPage(String pattern, String cursor, int limit) throws UsersException;
+
+	/**
+	 * Verifies the credentials of several users at once.
+	 * @param credentials the users to verify, of which only the userId and password are considered
+	 * @return the outcome of each user, in the same order: OK, NOT_FOUND, FORBIDDEN or BAD_REQUEST
+	 * @throws UsersException otherwise
+	 */
+	@WebMethod
+	List<String> validateUsers(List<User> credentials) throws UsersException;
 }
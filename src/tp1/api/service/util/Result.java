@@ -24,6 +24,7 @@ public interface Result<T> {
 			case FORBIDDEN -> ErrorCode.FORBIDDEN;
 			case INTERNAL_SERVER_ERROR -> ErrorCode.INTERNAL_ERROR;
 			case NOT_IMPLEMENTED -> ErrorCode.NOT_IMPLEMENTED;
+			case SERVICE_UNAVAILABLE -> ErrorCode.NOT_AVAILABLE;
 			default -> ErrorCode.BAD_REQUEST;
 		};
 	}
@@ -35,6 +36,7 @@ public interface Result<T> {
 		if(msg.contains("FORBIDDEN")) return ErrorCode.FORBIDDEN;
 		if(msg.contains("INTERNAL_SERVER_ERROR")) return ErrorCode.INTERNAL_ERROR;
 		if(msg.contains("NOT_IMPLEMENTED")) return ErrorCode.NOT_IMPLEMENTED;
+		if(msg.contains("SERVICE_UNAVAILABLE")) return ErrorCode.NOT_AVAILABLE;
 
 		return ErrorCode.BAD_REQUEST;
 	}
@@ -1,29 +1,57 @@
 package tp1.clients.sheet;
 
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.engine.SpreadsheetEngine;
 import tp1.api.service.util.Result;
-import tp1.impl.engine.SpreadsheetEngineImpl;
+import tp1.impl.engine.NativeSpreadsheetEngine;
+import tp1.util.BoundedCache;
 import tp1.util.CellRange;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SpreadsheetCachedClient implements SpreadsheetClient{
 
     public final static long UPDATE_PERIOD = 500;
+    // how long each long-poll for changes waits for them
+    public final static long CHANGES_WAIT = 30000;
+
+    public final static int RANGES_CACHE_SIZE = 1000;
+    public final static long RANGES_CACHE_IDLE_TIME = 60000;
+    // how long the values of a sheet with importranges of its own may be served without fetching them again
+    public final static long RANGES_MAX_STALENESS = 2000;
 
     private final SpreadsheetClient client;
 
     private final Map<String, Spreadsheet> sheetsCache;
     private final SpreadsheetEngine engine;
 
+    // position of sheetsCache in the change log of the remote domain
+    private long changesEpoch, changesVersion;
+
+    // referenced values fetched from this domain, shared by every local sheet importing them
+    private final BoundedCache<String, CachedRange> rangesCache;
+
+    private static class CachedRange {
+        final long version;
+        final long fetchedAt;
+        final String[][] values;
+
+        CachedRange(long version, String[][] values) {
+            this.version = version;
+            this.fetchedAt = System.currentTimeMillis();
+            this.values = values;
+        }
+    }
+
     public SpreadsheetCachedClient(SpreadsheetClient client) {
         this.client = client;
-        this.sheetsCache = new HashMap<>();
-        this.engine = SpreadsheetEngineImpl.getInstance();
+        this.sheetsCache = new ConcurrentHashMap<>();
+        this.engine = NativeSpreadsheetEngine.getInstance();
+        this.rangesCache = new BoundedCache<>(RANGES_CACHE_SIZE, RANGES_CACHE_IDLE_TIME);
 
         startCollecting();
     }
@@ -36,24 +64,44 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
             c = new SpreadsheetSoapClient(serverUrl);
 
         this.client = new SpreadsheetRetryClient(c);
-        this.sheetsCache = new HashMap<>();
-        this.engine = SpreadsheetEngineImpl.getInstance();
+        this.sheetsCache = new ConcurrentHashMap<>();
+        this.engine = NativeSpreadsheetEngine.getInstance();
+        this.rangesCache = new BoundedCache<>(RANGES_CACHE_SIZE, RANGES_CACHE_IDLE_TIME);
 
         startCollecting();
     }
 
+    /**
+     * Keeps sheetsCache up to date by long-polling for the sheets created, changed or deleted since the
+     * previous poll, so that changes are pulled as soon as they happen. Polls again after UPDATE_PERIOD
+     * when the remote domain is unreachable.
+     */
     private void startCollecting() {
         new Thread(() -> {
             for (;;) {
                 try {
-                    List<Spreadsheet> result = client.getSpreadsheets().value();
-                    for (Spreadsheet s : result) {
-                        sheetsCache.put(s.getSheetId(),s);
+                    SpreadsheetChanges changes = client.awaitSpreadsheetChanges(changesEpoch, changesVersion, null, CHANGES_WAIT).value();
+
+                    if (changesVersion != 0 && changes.getEpoch() != changesEpoch) {
+                        // the remote server restarted, so the cursor means nothing to it
+                        sheetsCache.clear();
+                        changesVersion = 0;
+                        continue;
                     }
+
+                    // SOAP leaves empty lists as null
+                    if (changes.getChanged() != null)
+                        for (Spreadsheet s : changes.getChanged())
+                            sheetsCache.put(s.getSheetId(),s);
+                    if (changes.getDeleted() != null)
+                        for (String sheetId : changes.getDeleted())
+                            sheetsCache.remove(sheetId);
+
+                    changesEpoch = changes.getEpoch();
+                    changesVersion = changes.getVersion();
                 } catch (Exception ignored) {
+                    try { Thread.sleep(UPDATE_PERIOD); } catch (InterruptedException e) {}
                 }
-
-                try { Thread.sleep(UPDATE_PERIOD); } catch (InterruptedException ignored) {}
             }
         }).start();
     }
@@ -111,9 +159,27 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
 
     @Override
     public Result<String[][]> getReferencedSpreadsheetValues(String sheetId, String userId, String range) {
+        String key = sheetId + "#" + range;
+        Spreadsheet polled = sheetsCache.get(sheetId);
+
+        if (polled != null && hasAccess(polled, userId)) {
+            CachedRange cached = rangesCache.get(key, c -> isFresh(c, polled));
+            if (cached != null)
+                return Result.ok(cached.values);
+        }
+
         Result<String[][]> result = client.getReferencedSpreadsheetValues(sheetId,userId, range);
 
-        if(result.isOK() || result.error() != Result.ErrorCode.NOT_AVAILABLE)
+        if(result.isOK()) {
+            if (polled != null) {
+                try {
+                    rangesCache.put(key, new CachedRange(polled.getVersion(), result.value()));
+                } catch (Exception ignored) {
+                }
+            }
+            return result;
+        }
+        else if(result.error() != Result.ErrorCode.NOT_AVAILABLE)
             return result;
         else {
             Spreadsheet s = sheetsCache.get(sheetId);
@@ -122,12 +188,12 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
 
                 String[][] values = null;
                 try {
-                    values = engine.computeSpreadsheetValues(s);
+                    values = engine.computeRangeValues(s, new CellRange(range));
                 } catch (Exception ignored) {
                 }
 
                 if (values != null)
-                    return Result.ok(new CellRange(range).extractRangeValuesFrom(values));
+                    return Result.ok(values);
                 else
                     return result;
             }
@@ -136,11 +202,32 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
     }
 
 
+    // same check as the remote service, so cached values are never served to a user it would refuse
+    private static boolean hasAccess(Spreadsheet sheet, String userId) {
+        return userId.equals(sheet.getOwner()) || (sheet.getSharedWith() != null && sheet.getSharedWith().contains(userId));
+    }
+
+    /**
+     * Cached values are valid while the sheet keeps the version they were fetched at, as last seen by the
+     * poller. Values of sheets with importranges of their own may change without a new version, so those
+     * are only served within a staleness bound.
+     */
+    private static boolean isFresh(CachedRange cached, Spreadsheet polled) {
+        if (cached.version != polled.getVersion())
+            return false;
+        return !polled.hasImports() || System.currentTimeMillis() - cached.fetchedAt <= RANGES_MAX_STALENESS;
+    }
+
     @Override
     public Result<Void> updateCell(String sheetId, String cell, String rawValue, String userId, String password) {
         return client.updateCell(sheetId, cell, rawValue, userId, password);
     }
 
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) {
+        return client.updateRange(sheetId, range, rawValues, userId, password);
+    }
+
     @Override
     public Result<Void> shareSpreadsheet(String sheetId, String userId, String password) {
         return client.shareSpreadsheet(sheetId,userId,password);
@@ -156,6 +243,21 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
         return client.deleteUserSpreadsheets(userId,password);
     }
 
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        return client.invalidateUserCredentials(userId, token);
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        return client.getSpreadsheetChanges(sinceVersion);
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        return client.awaitSpreadsheetChanges(epoch, sinceVersion, sheetId, timeout);
+    }
+
     @Override
     public Result<List<Spreadsheet>> getSpreadsheets() {
         Result<List<Spreadsheet>> result = client.getSpreadsheets();
@@ -165,4 +267,14 @@ public class SpreadsheetCachedClient implements SpreadsheetClient{
         else
             return Result.ok(new ArrayList<Spreadsheet>(sheetsCache.values()));
     }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        return client.getSharedSpreadsheets(userId, password);
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        return client.replicate(batch);
+    }
 }
@@ -1,6 +1,7 @@
 package tp1.clients.sheet;
 
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.service.soap.SheetsException;
 import tp1.api.service.util.Result;
 
@@ -10,6 +11,8 @@ import java.util.Set;
 public interface SpreadsheetClient {
 
     String SERVICE = "sheets";
+    // announced by the servers keeping a copy of the sheets of a primary
+    String BACKUP_SERVICE = "sheets-backup";
 
     Result<String> createSpreadsheet(Spreadsheet sheet, String password );
 
@@ -23,11 +26,31 @@ public interface SpreadsheetClient {
 
     Result<Void> updateCell( String sheetId, String cell, String rawValue, String userId, String password);
 
+    Result<Void> updateRange( String sheetId, String range, String[][] rawValues, String userId, String password);
+
     Result<Void> shareSpreadsheet(String sheetId, String userId, String password);
 
     Result<Void> unshareSpreadsheet( String sheetId, String userId,  String password);
 
     Result<Void> deleteUserSpreadsheets(String userId, String password);
 
+    Result<Void> invalidateUserCredentials(String userId, String token);
+
     Result<List<Spreadsheet>> getSpreadsheets();
-}
\ No newline at end of file
+
+    Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password);
+
+    Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion);
+
+    /**
+     * Waits up to timeout milliseconds for changes after the given version of the change log, of every sheet
+     * (sheetId null) or of a single one. Returns without changes if none happened meanwhile.
+     */
+    Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout);
+
+    /**
+     * Applies, at a backup, a batch of mutations streamed by the primary, as encoded by ReplicationLog.
+     * @return the sequence number of the last mutation applied, or -1 if the backup needs a snapshot
+     */
+    Result<Long> replicate(byte[] batch);
+}
@@ -0,0 +1,185 @@
+package tp1.clients.sheet;
+
+import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
+import tp1.api.service.util.Result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static tp1.api.service.util.Result.ErrorCode.NOT_AVAILABLE;
+import static tp1.api.service.util.Result.ErrorCode.NOT_FOUND;
+import static tp1.api.service.util.Result.ErrorCode.NOT_IMPLEMENTED;
+
+/**
+ * Client of the servers replicating the same sheets: a primary, which takes every request, and its backups,
+ * which may share the load of the values referenced by other sheets (possibly a little behind the primary).
+ * Values that are cached under the version of the sheet seen at the primary must come from the primary, so
+ * backups only serve them to callers that do not cache them.
+ *
+ * When a backup takes over, requests go to it as soon as it is announced with a later term.
+ */
+public class SpreadsheetReplicatedClient implements SpreadsheetClient {
+
+    private volatile SpreadsheetClient primary;
+    private long term = -1;
+
+    private final Map<String, SpreadsheetClient> backups = new ConcurrentHashMap<>();
+    // whether backups serve referenced values
+    private final boolean backupReads;
+
+    /**
+     * @param backupReads - whether backups serve referenced values, which must be false if they are cached
+     */
+    public SpreadsheetReplicatedClient(boolean backupReads) {
+        this.backupReads = backupReads;
+    }
+
+    private static SpreadsheetClient connect(String serverUrl) throws Exception {
+        if (serverUrl.contains("/rest"))
+            return new SpreadsheetRestClient(serverUrl);
+        else
+            return new SpreadsheetSoapClient(serverUrl);
+    }
+
+    /**
+     * Sends requests to the given server, if its term is later than that of the current primary.
+     * @return true if the primary changed
+     */
+    public synchronized boolean setPrimary(String serverUrl, long term) throws Exception {
+        if (term <= this.term)
+            return false;
+
+        SpreadsheetClient client = backups.remove(serverUrl);
+        primary = client != null ? client : connect(serverUrl);
+        this.term = term;
+        return true;
+    }
+
+    /**
+     * @return true if the server was not known as a backup
+     */
+    public boolean addBackup(String serverUrl) throws Exception {
+        if (backups.containsKey(serverUrl))
+            return false;
+
+        backups.putIfAbsent(serverUrl, connect(serverUrl));
+        return true;
+    }
+
+    public synchronized long term() {
+        return term;
+    }
+
+    public Set<String> backups() {
+        return backups.keySet();
+    }
+
+    /**
+     * @return the client of a backup, to stream mutations to
+     */
+    public SpreadsheetClient backup(String serverUrl) {
+        return backups.get(serverUrl);
+    }
+
+    // only reachable once a primary is known
+    private SpreadsheetClient primary() {
+        return primary;
+    }
+
+    @Override
+    public Result<String> createSpreadsheet(Spreadsheet sheet, String password) {
+        return primary().createSpreadsheet(sheet, password);
+    }
+
+    @Override
+    public Result<Void> deleteSpreadsheet(String sheetId, String password) {
+        return primary().deleteSpreadsheet(sheetId, password);
+    }
+
+    @Override
+    public Result<Spreadsheet> getSpreadsheet(String sheetId, String userId, String password) {
+        return primary().getSpreadsheet(sheetId, userId, password);
+    }
+
+    @Override
+    public Result<String[][]> getSpreadsheetValues(String sheetId, String userId, String password) {
+        return primary().getSpreadsheetValues(sheetId, userId, password);
+    }
+
+    @Override
+    public Result<String[][]> getReferencedSpreadsheetValues(String sheetId, String userId, String range) {
+        List<SpreadsheetClient> replicas = backupReads ? new ArrayList<>(backups.values()) : List.of();
+        int i = ThreadLocalRandom.current().nextInt(replicas.size() + 1);
+        if (i < replicas.size()) {
+            // a backup that is down or has yet to receive the sheet leaves the request to the primary
+            Result<String[][]> result = replicas.get(i).getReferencedSpreadsheetValues(sheetId, userId, range);
+            if (result.isOK() || (result.error() != NOT_AVAILABLE && result.error() != NOT_FOUND))
+                return result;
+        }
+        return primary().getReferencedSpreadsheetValues(sheetId, userId, range);
+    }
+
+    @Override
+    public Result<Void> updateCell(String sheetId, String cell, String rawValue, String userId, String password) {
+        return primary().updateCell(sheetId, cell, rawValue, userId, password);
+    }
+
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) {
+        return primary().updateRange(sheetId, range, rawValues, userId, password);
+    }
+
+    @Override
+    public Result<Void> shareSpreadsheet(String sheetId, String userId, String password) {
+        return primary().shareSpreadsheet(sheetId, userId, password);
+    }
+
+    @Override
+    public Result<Void> unshareSpreadsheet(String sheetId, String userId, String password) {
+        return primary().unshareSpreadsheet(sheetId, userId, password);
+    }
+
+    @Override
+    public Result<Void> deleteUserSpreadsheets(String userId, String password) {
+        return primary().deleteUserSpreadsheets(userId, password);
+    }
+
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        Result<Void> result = primary().invalidateUserCredentials(userId, token);
+        // backups verify credentials too, to serve referenced values
+        for (SpreadsheetClient backup : backups.values())
+            backup.invalidateUserCredentials(userId, token);
+        return result;
+    }
+
+    @Override
+    public Result<List<Spreadsheet>> getSpreadsheets() {
+        return primary().getSpreadsheets();
+    }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        return primary().getSharedSpreadsheets(userId, password);
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        return primary().getSpreadsheetChanges(sinceVersion);
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        return primary().awaitSpreadsheetChanges(epoch, sinceVersion, sheetId, timeout);
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        return Result.error(NOT_IMPLEMENTED, new UnsupportedOperationException("Batches are sent to each backup"));
+    }
+}
@@ -6,13 +6,16 @@ import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.client.WebTarget;
 import jakarta.ws.rs.core.GenericType;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientProperties;
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.service.rest.RestSpreadsheets;
 import tp1.api.service.util.Result;
+import tp1.util.BoundedCache;
 
 import java.util.List;
 
@@ -22,6 +25,25 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
 
     public final static int CONNECTION_TIMEOUT = 10000;
     public final static int REPLY_TIMEOUT = 1000;
+    // batches may carry a whole snapshot
+    public final static int REPLICATION_REPLY_TIMEOUT = 10000;
+
+    public final static int LAST_BODIES_CACHE_SIZE = 1000;
+    public final static long LAST_BODIES_IDLE_TIME = 60000;
+
+    // last sheets and values received, by sheetId, revalidated with their ETags
+    private final BoundedCache<String, Tagged<Spreadsheet>> lastSheets;
+    private final BoundedCache<String, Tagged<String[][]>> lastValues;
+
+    private static class Tagged<T> {
+        final String etag;
+        final T body;
+
+        Tagged(String etag, T body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
 
     public SpreadsheetRestClient(String serverUrl) {
         ClientConfig config = new ClientConfig();
@@ -29,6 +51,35 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
         client.property(ClientProperties.CONNECT_TIMEOUT, CONNECTION_TIMEOUT);
         client.property(ClientProperties.READ_TIMEOUT,    REPLY_TIMEOUT);
         target = client.target(serverUrl).path( RestSpreadsheets.PATH );
+        lastSheets = new BoundedCache<>(LAST_BODIES_CACHE_SIZE, LAST_BODIES_IDLE_TIME);
+        lastValues = new BoundedCache<>(LAST_BODIES_CACHE_SIZE, LAST_BODIES_IDLE_TIME);
+    }
+
+    /**
+     * Issues a conditional GET, returning the body held in the cache if the server replies 304, and keeping
+     * tagged bodies of 200 replies.
+     */
+    private <T> Result<T> conditionalGet(WebTarget t, String sheetId, BoundedCache<String, Tagged<T>> cache, GenericType<T> type) {
+        Tagged<T> last = cache.get(sheetId);
+
+        var request = t.request().accept(MediaType.APPLICATION_JSON);
+        if (last != null)
+            request = request.header(HttpHeaders.IF_NONE_MATCH, last.etag);
+        Response r = request.get();
+
+        if (r.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode() && last != null)
+            return Result.ok(last.body);
+
+        if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity()) {
+            T body = r.readEntity(type);
+            String etag = r.getHeaderString(HttpHeaders.ETAG);
+            if (etag != null)
+                cache.put(sheetId, new Tagged<>(etag, body));
+            else
+                cache.remove(sheetId);
+            return Result.ok(body);
+        }
+        return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
     }
 
     @Override
@@ -66,14 +117,8 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
     @Override
     public Result<Spreadsheet> getSpreadsheet(String sheetId, String userId, String password)  {
         try {
-            Response r = target.path(sheetId).queryParam("userId", userId).queryParam("password", password).request()
-                    .accept(MediaType.APPLICATION_JSON)
-                    .get();
-
-            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
-                return Result.ok(r.readEntity(Spreadsheet.class));
-            else
-                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+            return conditionalGet(target.path(sheetId).queryParam("userId", userId).queryParam("password", password),
+                    sheetId, lastSheets, new GenericType<Spreadsheet>() {});
         } catch (Exception e) {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
         }
@@ -82,14 +127,8 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
     @Override
     public Result<String[][]> getSpreadsheetValues(String sheetId, String userId, String password)  {
         try {
-            Response r = target.path(sheetId).path("values").queryParam("userId", userId).queryParam("password", password).request()
-                    .accept(MediaType.APPLICATION_JSON)
-                    .get();
-
-            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
-                return Result.ok(r.readEntity(new GenericType<String[][]>() {}));
-            else
-                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+            return conditionalGet(target.path(sheetId).path("values").queryParam("userId", userId).queryParam("password", password),
+                    sheetId, lastValues, new GenericType<String[][]>() {});
         } catch (Exception e) {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
         }
@@ -127,6 +166,22 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
         }
     }
 
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password)   {
+        try {
+            Response r = target.path(sheetId).path("cells").queryParam("range", range).queryParam("userId", userId).queryParam("password", password).request()
+                    .accept(MediaType.APPLICATION_JSON)
+                    .put(Entity.entity(rawValues, MediaType.APPLICATION_JSON));
+
+            if (r.getStatus() != Response.Status.OK.getStatusCode() && r.getStatus() != Response.Status.NO_CONTENT.getStatusCode())
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+            else
+                return Result.ok();
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
     @Override
     public Result<Void> shareSpreadsheet(String sheetId, String userId, String password)   {
         try {
@@ -175,6 +230,22 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
         }
     }
 
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        try {
+            Response r = target.path("credentials").path(userId)
+                    .queryParam("token", token).request()
+                    .delete();
+
+            if (r.getStatus() != Response.Status.OK.getStatusCode() && r.getStatus() != Response.Status.NO_CONTENT.getStatusCode())
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+            else
+                return Result.ok();
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
     @Override
     public Result<List<Spreadsheet>> getSpreadsheets() {
         try {
@@ -190,4 +261,76 @@ public class SpreadsheetRestClient implements SpreadsheetClient {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
         }
     }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        try {
+            Response r = target.path("spreadsheets").path("shared").queryParam("userId", userId).queryParam("password", password).request()
+                    .accept(MediaType.APPLICATION_JSON)
+                    .get();
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(r.readEntity(new GenericType<List<Spreadsheet>>() {}));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        try {
+            Response r = target.path("spreadsheets").path("changes").queryParam("since", sinceVersion).request()
+                    .accept(MediaType.APPLICATION_JSON)
+                    .get();
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(r.readEntity(SpreadsheetChanges.class));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        try {
+            WebTarget t = target.path("spreadsheets").path("changes").path("wait")
+                    .queryParam("epoch", epoch).queryParam("since", sinceVersion).queryParam("timeout", timeout);
+            if (sheetId != null)
+                t = t.queryParam("sheetId", sheetId);
+
+            // the reply is held by the server for up to timeout
+            Response r = t.request()
+                    .property(ClientProperties.READ_TIMEOUT, (int) (timeout + REPLY_TIMEOUT))
+                    .accept(MediaType.APPLICATION_JSON)
+                    .get();
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(r.readEntity(SpreadsheetChanges.class));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        try {
+            Response r = target.path("replication").request()
+                    .property(ClientProperties.READ_TIMEOUT, REPLICATION_REPLY_TIMEOUT)
+                    .accept(MediaType.APPLICATION_JSON)
+                    .post(Entity.entity(batch, MediaType.APPLICATION_OCTET_STREAM));
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(r.readEntity(Long.class));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package tp1.clients.sheet;
 
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.service.util.Result;
 
 import java.util.List;
@@ -37,7 +38,13 @@ public class SpreadsheetRetryClient implements SpreadsheetClient{
             if(result.error() != NOT_AVAILABLE)
                 return result;;
 
-            try { Thread.sleep(RETRY_PERIOD); } catch (InterruptedException ignored) {}
+            try {
+                Thread.sleep(RETRY_PERIOD);
+            } catch (InterruptedException e) {
+                // the caller gave up waiting (e.g. an importrange past its deadline)
+                Thread.currentThread().interrupt();
+                return result;
+            }
 
         } while (retries < MAX_RETRIES);
 
@@ -74,6 +81,11 @@ public class SpreadsheetRetryClient implements SpreadsheetClient{
         return retry(() -> client.updateCell(sheetId, cell, rawValue, userId, password));
     }
 
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) {
+        return retry(() -> client.updateRange(sheetId, range, rawValues, userId, password));
+    }
+
     @Override
     public Result<Void> shareSpreadsheet(String sheetId, String userId, String password) {
         return retry( () -> client.shareSpreadsheet(sheetId,userId,password));
@@ -89,8 +101,34 @@ public class SpreadsheetRetryClient implements SpreadsheetClient{
         return retry( () -> client.deleteUserSpreadsheets(userId,password));
     }
 
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        return retry(() -> client.invalidateUserCredentials(userId, token));
+    }
+
     @Override
     public Result<List<Spreadsheet>> getSpreadsheets() {
         return retry(client::getSpreadsheets);
     }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        return retry(() -> client.getSharedSpreadsheets(userId, password));
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        return retry(() -> client.getSpreadsheetChanges(sinceVersion));
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        return retry(() -> client.awaitSpreadsheetChanges(epoch, sinceVersion, sheetId, timeout));
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        // a backup that is not available is left out of sync, rather than stalling the primary
+        return client.replicate(batch);
+    }
 }
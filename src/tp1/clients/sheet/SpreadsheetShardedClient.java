@@ -0,0 +1,172 @@
+package tp1.clients.sheet;
+
+import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
+import tp1.api.service.util.Result;
+import tp1.util.HashRing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static tp1.api.service.util.Result.ErrorCode.NOT_AVAILABLE;
+import static tp1.api.service.util.Result.ErrorCode.NOT_FOUND;
+import static tp1.api.service.util.Result.ErrorCode.NOT_IMPLEMENTED;
+
+/**
+ * Client of a domain whose sheets are spread over several shards, sending each request to the shard
+ * owning the sheet in the consistent hashing ring of the domain. Requests about every sheet of a user are
+ * sent to all the shards.
+ *
+ * Sheets stay in the shard that created them, so a sheet may be held by a shard that owned it before
+ * others joined the ring: requests not found at the owner are sent to the next shards in the ring.
+ */
+public class SpreadsheetShardedClient implements SpreadsheetClient {
+
+    private final HashRing ring;
+    private final Map<String, SpreadsheetClient> shards;
+
+    /**
+     * @param ring - the shards of the domain
+     * @param shards - the client of each shard
+     */
+    public SpreadsheetShardedClient(HashRing ring, Map<String, SpreadsheetClient> shards) {
+        this.ring = ring;
+        this.shards = shards;
+    }
+
+    private <T> Result<T> route(String key, Function<SpreadsheetClient, Result<T>> request) {
+        Result<T> result = Result.error(NOT_AVAILABLE, new IllegalStateException("No shards known"));
+
+        for (String shard : ring.nodesFor(key)) {
+            SpreadsheetClient client = shards.get(shard);
+            if (client == null)
+                continue;
+
+            result = request.apply(client);
+            if (result.error() != NOT_FOUND)
+                return result;
+        }
+        return result;
+    }
+
+    private Result<Void> broadcast(Function<SpreadsheetClient, Result<Void>> request) {
+        Result<Void> result = Result.ok();
+
+        for (String shard : ring.nodes()) {
+            SpreadsheetClient client = shards.get(shard);
+            if (client == null)
+                continue;
+
+            Result<Void> r = request.apply(client);
+            if (!r.isOK() && result.isOK())
+                result = r;
+        }
+        return result;
+    }
+
+    private Result<List<Spreadsheet>> gather(Function<SpreadsheetClient, Result<List<Spreadsheet>>> request) {
+        List<Spreadsheet> sheets = new ArrayList<>();
+
+        for (String shard : ring.nodes()) {
+            SpreadsheetClient client = shards.get(shard);
+            if (client == null)
+                continue;
+
+            Result<List<Spreadsheet>> r = request.apply(client);
+            if (!r.isOK())
+                return r;
+            try {
+                // SOAP leaves empty lists as null
+                if (r.value() != null)
+                    sheets.addAll(r.value());
+            } catch (Exception ignored) {
+            }
+        }
+        return Result.ok(sheets);
+    }
+
+    @Override
+    public Result<String> createSpreadsheet(Spreadsheet sheet, String password) {
+        // the server picks an id it owns, so any will do: spread the owners over the ring
+        return route(sheet.getOwner(), c -> c.createSpreadsheet(sheet, password));
+    }
+
+    @Override
+    public Result<Void> deleteSpreadsheet(String sheetId, String password) {
+        return route(sheetId, c -> c.deleteSpreadsheet(sheetId, password));
+    }
+
+    @Override
+    public Result<Spreadsheet> getSpreadsheet(String sheetId, String userId, String password) {
+        return route(sheetId, c -> c.getSpreadsheet(sheetId, userId, password));
+    }
+
+    @Override
+    public Result<String[][]> getSpreadsheetValues(String sheetId, String userId, String password) {
+        return route(sheetId, c -> c.getSpreadsheetValues(sheetId, userId, password));
+    }
+
+    @Override
+    public Result<String[][]> getReferencedSpreadsheetValues(String sheetId, String userId, String range) {
+        return route(sheetId, c -> c.getReferencedSpreadsheetValues(sheetId, userId, range));
+    }
+
+    @Override
+    public Result<Void> updateCell(String sheetId, String cell, String rawValue, String userId, String password) {
+        return route(sheetId, c -> c.updateCell(sheetId, cell, rawValue, userId, password));
+    }
+
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) {
+        return route(sheetId, c -> c.updateRange(sheetId, range, rawValues, userId, password));
+    }
+
+    @Override
+    public Result<Void> shareSpreadsheet(String sheetId, String userId, String password) {
+        return route(sheetId, c -> c.shareSpreadsheet(sheetId, userId, password));
+    }
+
+    @Override
+    public Result<Void> unshareSpreadsheet(String sheetId, String userId, String password) {
+        return route(sheetId, c -> c.unshareSpreadsheet(sheetId, userId, password));
+    }
+
+    @Override
+    public Result<Void> deleteUserSpreadsheets(String userId, String password) {
+        return broadcast(c -> c.deleteUserSpreadsheets(userId, password));
+    }
+
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        return broadcast(c -> c.invalidateUserCredentials(userId, token));
+    }
+
+    @Override
+    public Result<List<Spreadsheet>> getSpreadsheets() {
+        return gather(SpreadsheetClient::getSpreadsheets);
+    }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        return gather(c -> c.getSharedSpreadsheets(userId, password));
+    }
+
+    // each shard keeps a change log of its own, with versions meaningless to the others
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        return Result.error(NOT_IMPLEMENTED, new UnsupportedOperationException("Change logs are kept per shard"));
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        return Result.error(NOT_IMPLEMENTED, new UnsupportedOperationException("Change logs are kept per shard"));
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        return Result.error(NOT_IMPLEMENTED, new UnsupportedOperationException("Batches are sent to each backup"));
+    }
+}
@@ -4,14 +4,19 @@ import com.sun.xml.ws.client.BindingProviderProperties;
 import jakarta.xml.ws.BindingProvider;
 import jakarta.xml.ws.Service;
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
+import tp1.api.VersionedSpreadsheet;
+import tp1.api.VersionedValues;
 import tp1.api.service.soap.SheetsException;
 import tp1.api.service.soap.SoapSpreadsheets;
 import tp1.api.service.util.Result;
+import tp1.util.BoundedCache;
 
 import javax.xml.namespace.QName;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class SpreadsheetSoapClient implements SpreadsheetClient {
 
@@ -19,8 +24,22 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
 
     public final static int CONNECTION_TIMEOUT = 10000;
     public final static int REPLY_TIMEOUT = 1000;
+    // batches may carry a whole snapshot
+    public final static int REPLICATION_REPLY_TIMEOUT = 10000;
 
     public final SoapSpreadsheets target;
+    // port with the timeouts of replication
+    private final SoapSpreadsheets replicationTarget;
+
+    // SOAP cannot hold replies, so waiting for changes falls back to polling with this period
+    public final static long CHANGES_POLL_PERIOD = 500;
+
+    public final static int LAST_BODIES_CACHE_SIZE = 1000;
+    public final static long LAST_BODIES_IDLE_TIME = 60000;
+
+    // last sheets and values received, by sheetId, revalidated with their tags
+    private final BoundedCache<String, VersionedSpreadsheet> lastSheets;
+    private final BoundedCache<String, VersionedValues> lastValues;
 
     public SpreadsheetSoapClient (String serverUrl) throws MalformedURLException {
         QName QNAME = new QName(SoapSpreadsheets.NAMESPACE, SoapSpreadsheets.NAME);
@@ -29,6 +48,13 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
 
         ((BindingProvider) target).getRequestContext().put(BindingProviderProperties.CONNECT_TIMEOUT, CONNECTION_TIMEOUT);
         ((BindingProvider) target).getRequestContext().put(BindingProviderProperties.REQUEST_TIMEOUT, REPLY_TIMEOUT);
+
+        replicationTarget = service.getPort( SoapSpreadsheets.class );
+        ((BindingProvider) replicationTarget).getRequestContext().put(BindingProviderProperties.CONNECT_TIMEOUT, CONNECTION_TIMEOUT);
+        ((BindingProvider) replicationTarget).getRequestContext().put(BindingProviderProperties.REQUEST_TIMEOUT, REPLICATION_REPLY_TIMEOUT);
+
+        lastSheets = new BoundedCache<>(LAST_BODIES_CACHE_SIZE, LAST_BODIES_IDLE_TIME);
+        lastValues = new BoundedCache<>(LAST_BODIES_CACHE_SIZE, LAST_BODIES_IDLE_TIME);
     }
 
     @Override
@@ -57,7 +83,14 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
     @Override
     public Result<Spreadsheet> getSpreadsheet(String sheetId, String userId, String password)  {
         try {
-            return Result.ok(target.getSpreadsheet(sheetId, userId, password));
+            VersionedSpreadsheet last = lastSheets.get(sheetId);
+            VersionedSpreadsheet sheet = target.getSpreadsheetIfVersionDiffers(sheetId, userId, password,
+                    last == null ? null : last.getTag());
+            if (sheet.getSpreadsheet() == null && last != null)
+                return Result.ok(last.getSpreadsheet());
+
+            lastSheets.put(sheetId, sheet);
+            return Result.ok(sheet.getSpreadsheet());
         } catch (SheetsException e) {
             return Result.error(e.getMessage(),e);
         } catch (Exception e) {
@@ -68,7 +101,17 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
     @Override
     public Result<String[][]> getSpreadsheetValues(String sheetId, String userId, String password) {
         try {
-            return Result.ok(target.getSpreadsheetValues(sheetId, userId, password));
+            VersionedValues last = lastValues.get(sheetId);
+            VersionedValues values = target.getSpreadsheetValuesIfVersionDiffers(sheetId, userId, password,
+                    last == null ? null : last.getTag());
+            if (values.getValues() == null && last != null)
+                return Result.ok(last.getValues());
+
+            if (values.getTag() != null)
+                lastValues.put(sheetId, values);
+            else
+                lastValues.remove(sheetId);
+            return Result.ok(values.getValues());
         } catch (SheetsException e) {
             return Result.error(e.getMessage(),e);
         } catch (Exception e) {
@@ -99,6 +142,18 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
         }
     }
 
+    @Override
+    public Result<Void> updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) {
+        try {
+            target.updateRange(sheetId, range, rawValues, userId, password);
+            return Result.ok();
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
     @Override
     public Result<Void> shareSpreadsheet(String sheetId, String userId, String password) {
         try {
@@ -135,6 +190,18 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
         }
     }
 
+    @Override
+    public Result<Void> invalidateUserCredentials(String userId, String token) {
+        try {
+            target.invalidateUserCredentials(userId, token);
+            return Result.ok();
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
     @Override
     public Result<List<Spreadsheet>> getSpreadsheets() {
         try {
@@ -145,4 +212,70 @@ public class SpreadsheetSoapClient implements SpreadsheetClient {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
         }
     }
+
+    @Override
+    public Result<List<Spreadsheet>> getSharedSpreadsheets(String userId, String password) {
+        try {
+            return Result.ok(target.getSharedSpreadsheets(userId, password));
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> getSpreadsheetChanges(long sinceVersion) {
+        try {
+            return Result.ok(target.getSpreadsheetChanges(sinceVersion));
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
+    @Override
+    public Result<SpreadsheetChanges> awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            for (;;) {
+                SpreadsheetChanges changes = target.getSpreadsheetChanges(sinceVersion);
+
+                // SOAP leaves empty lists as null
+                List<Spreadsheet> changed = changes.getChanged() == null ? List.of() : changes.getChanged();
+                List<String> deleted = changes.getDeleted() == null ? List.of() : changes.getDeleted();
+                if (sheetId != null) {
+                    changed = changed.stream().filter(s -> sheetId.equals(s.getSheetId())).collect(Collectors.toList());
+                    deleted = deleted.stream().filter(sheetId::equals).collect(Collectors.toList());
+                    changes.setChanged(changed);
+                    changes.setDeleted(deleted);
+                }
+
+                if (changes.getEpoch() != epoch || !changed.isEmpty() || !deleted.isEmpty()
+                        || System.currentTimeMillis() + CHANGES_POLL_PERIOD > deadline)
+                    return Result.ok(changes);
+
+                Thread.sleep(CHANGES_POLL_PERIOD);
+            }
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
+    @Override
+    public Result<Long> replicate(byte[] batch) {
+        try {
+            return Result.ok(replicationTarget.replicate(batch));
+        } catch (SheetsException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
 }
@@ -1,9 +1,11 @@
 package tp1.clients.user;
 
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.util.Result;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class UsersCachedClient implements UsersClient{
 
@@ -12,10 +14,15 @@ public class UsersCachedClient implements UsersClient{
     private final Map<String,User> usersCache;
 
     public final static long UPDATE_PERIOD = 500;
+    public final static int PAGE_SIZE = 500;
+
+    // where the next refresh continues from, as of the epoch of the remote server
+    private String cursor;
+    private long cursorEpoch;
 
     public UsersCachedClient(UsersClient client) {
         this.client = client;
-        this.usersCache = new HashMap<>();
+        this.usersCache = new ConcurrentHashMap<>();
 
         startCollecting();
     }
@@ -28,19 +35,41 @@ public class UsersCachedClient implements UsersClient{
             c = new UsersSoapClient(serverUrl);
 
         this.client = new UsersRetryClient(c);
-        this.usersCache = new HashMap<>();
+        this.usersCache = new ConcurrentHashMap<>();
 
         startCollecting();
     }
 
+    /**
+     * Keeps usersCache up to date by paging through the users created, changed or deleted since the
+     * previous refresh, every UPDATE_PERIOD.
+     */
     private void startCollecting() {
         new Thread(() -> {
             for (;;) {
                 try {
-                    List<User> result = client.searchUsers(null).value();
-                    for (User u : result) {
-                        usersCache.put(u.getUserId(),u);
-                    }
+                    UsersPage page;
+                    do {
+                        page = client.listUsersPage(null, cursor, PAGE_SIZE).value();
+
+                        if (cursor != null && page.getEpoch() != cursorEpoch) {
+                            // the remote server restarted, so the cursor means nothing to it
+                            usersCache.clear();
+                            cursor = null;
+                            break;
+                        }
+
+                        // SOAP leaves empty lists as null
+                        if (page.getUsers() != null)
+                            for (User u : page.getUsers())
+                                usersCache.put(u.getUserId(),u);
+                        if (page.getDeleted() != null)
+                            for (String userId : page.getDeleted())
+                                usersCache.remove(userId);
+
+                        cursorEpoch = page.getEpoch();
+                        cursor = page.getNext();
+                    } while (page.isMore());
                 } catch (Exception ignored) {
                 }
 
@@ -80,6 +109,29 @@ public class UsersCachedClient implements UsersClient{
         return client.deleteUser(userId,password);
     }
 
+    @Override
+    public Result<UsersPage> listUsersPage(String pattern, String cursor, int limit) {
+        return client.listUsersPage(pattern, cursor, limit);
+    }
+
+    @Override
+    public Result<List<Result.ErrorCode>> validateUsers(List<User> credentials) {
+        Result<List<Result.ErrorCode>> result = client.validateUsers(credentials);
+
+        if(result.isOK() || result.error() != Result.ErrorCode.NOT_AVAILABLE)
+            return result;
+
+        // answered from the cache only if every user is cached
+        List<Result.ErrorCode> outcomes = new ArrayList<>(credentials.size());
+        for (User c : credentials) {
+            User u = c == null || c.getUserId() == null ? null : usersCache.get(c.getUserId());
+            if (u == null)
+                return result;
+            outcomes.add(u.getPassword().equals(c.getPassword()) ? Result.ErrorCode.OK : Result.ErrorCode.FORBIDDEN);
+        }
+        return Result.ok(outcomes);
+    }
+
     @Override
     public Result<List<User>> searchUsers(String pattern) {
         Result<List<User>> result = client.searchUsers(pattern);
@@ -90,7 +142,7 @@ public class UsersCachedClient implements UsersClient{
             synchronized (this) {
                 List<User> users = new LinkedList<>();
                 for (User u : usersCache.values()) {
-                    if (u.getFullName().toLowerCase().contains(pattern.toLowerCase()))
+                    if (u.getFullName().toLowerCase(Locale.ROOT).contains(pattern.toLowerCase(Locale.ROOT)))
                         users.add(u);
                 }
                 return Result.ok(users);
@@ -1,9 +1,11 @@
 package tp1.clients.user;
 
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.soap.UsersException;
 import tp1.api.service.util.Result;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public interface UsersClient {
@@ -19,4 +21,23 @@ public interface UsersClient {
     Result<User> deleteUser(String userId, String password);
 
     Result<List<User>> searchUsers(String pattern);
+
+    /**
+     * @param cursor - the token of the previous page, or null to start from the first user
+     */
+    Result<UsersPage> listUsersPage(String pattern, String cursor, int limit);
+
+    /**
+     * Verifies the credentials of several users in one request.
+     * @param credentials - the users to verify, of which only the userId and password are considered
+     * @return the outcome of each user, in the same order
+     */
+    Result<List<Result.ErrorCode>> validateUsers(List<User> credentials);
+
+    static List<Result.ErrorCode> mapOutcomes(List<String> outcomes) {
+        List<Result.ErrorCode> codes = new ArrayList<>(outcomes.size());
+        for (String outcome : outcomes)
+            codes.add(outcome.equals("OK") ? Result.ErrorCode.OK : Result.mapError(outcome));
+        return codes;
+    }
 }
@@ -11,6 +11,7 @@ import jakarta.ws.rs.core.Response;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientProperties;
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.rest.RestUsers;
 import tp1.api.service.util.Result;
 
@@ -110,4 +111,43 @@ public class UsersRestClient implements UsersClient {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
         }
     }
+
+    @Override
+    public Result<UsersPage> listUsersPage(String pattern, String cursor, int limit)  {
+        try {
+            // null query parameters are rejected, rather than left out
+            WebTarget t = target.path("page").queryParam("limit", limit);
+            if (pattern != null)
+                t = t.queryParam("query", pattern);
+            if (cursor != null)
+                t = t.queryParam("cursor", cursor);
+
+            Response r = t.request()
+                    .accept(MediaType.APPLICATION_JSON)
+                    .get();
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(r.readEntity(UsersPage.class));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
+
+    @Override
+    public Result<List<Result.ErrorCode>> validateUsers(List<User> credentials)  {
+        try {
+            Response r = target.path("validation").request()
+                    .accept(MediaType.APPLICATION_JSON)
+                    .post(Entity.entity(credentials, MediaType.APPLICATION_JSON));
+
+            if (r.getStatus() == Response.Status.OK.getStatusCode() && r.hasEntity())
+                return Result.ok(UsersClient.mapOutcomes(r.readEntity(new GenericType<List<String>>() {})));
+            else
+                return Result.error(Response.Status.fromStatusCode(r.getStatus()), new WebApplicationException(r.getStatus()));
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE, e);
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package tp1.clients.user;
 
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.util.Result;
 
 import java.util.List;
@@ -69,5 +70,15 @@ public class UsersRetryClient implements UsersClient{
         return retry( () -> client.searchUsers(pattern));
     }
 
+    @Override
+    public Result<UsersPage> listUsersPage(String pattern, String cursor, int limit) {
+        return retry( () -> client.listUsersPage(pattern, cursor, limit));
+    }
+
+    @Override
+    public Result<List<Result.ErrorCode>> validateUsers(List<User> credentials) {
+        return retry( () -> client.validateUsers(credentials));
+    }
+
 
 }
@@ -4,6 +4,7 @@ import com.sun.xml.ws.client.BindingProviderProperties;
 import jakarta.xml.ws.BindingProvider;
 import jakarta.xml.ws.Service;
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.soap.SoapUsers;
 import tp1.api.service.soap.UsersException;
 import tp1.api.service.util.Result;
@@ -85,4 +86,26 @@ public class UsersSoapClient implements UsersClient {
             return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
         }
     }
+
+    @Override
+    public Result<UsersPage> listUsersPage(String pattern, String cursor, int limit) {
+        try {
+            return Result.ok(target.getUsersPage(pattern, cursor, limit));
+        } catch (UsersException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
+
+    @Override
+    public Result<List<Result.ErrorCode>> validateUsers(List<User> credentials) {
+        try {
+            return Result.ok(UsersClient.mapOutcomes(target.validateUsers(credentials)));
+        } catch (UsersException e) {
+            return Result.error(e.getMessage(),e);
+        } catch (Exception e) {
+            return Result.error(Result.ErrorCode.NOT_AVAILABLE,e);
+        }
+    }
 }
@@ -2,8 +2,12 @@ package tp1.discovery;
 
 import tp1.clients.sheet.SpreadsheetCachedClient;
 import tp1.clients.sheet.SpreadsheetClient;
+import tp1.clients.sheet.SpreadsheetReplicatedClient;
+import tp1.clients.sheet.SpreadsheetRetryClient;
+import tp1.clients.sheet.SpreadsheetShardedClient;
 import tp1.clients.user.UsersCachedClient;
 import tp1.clients.user.UsersClient;
+import tp1.util.HashRing;
 
 import java.io.IOException;
 import java.net.*;
@@ -22,6 +26,16 @@ import java.util.logging.Logger;
  * <p>Service announcements have the following format:</p>
  * 
  * <p>&lt;service-name-string&gt;&lt;delimiter-char&gt;&lt;service-uri-string&gt;</p>
+ *
+ * <p>Sheets servers replicating a shard other than the one named after them, or in a later term, also
+ * announce, in a separate message ignored by servers expecting the format above:</p>
+ *
+ * <p>&lt;service-name-string&gt;&lt;delimiter-char&gt;&lt;service-uri-string&gt;&lt;delimiter-char&gt;&lt;shard-string&gt;&lt;delimiter-char&gt;&lt;term&gt;</p>
+ *
+ * <p>The sheets of a domain may be spread over several shards, each placed in the consistent hashing ring
+ * of its domain, which routes requests about each sheet to the shard owning it. A shard is kept by a
+ * primary server, announcing the sheets service, and its backups, announcing the backup service. The
+ * primary announced with the latest term takes the requests.</p>
  */
 public class Discovery {
 	private static Logger Log = Logger.getLogger(Discovery.class.getName());
@@ -47,8 +61,19 @@ public class Discovery {
 	private final String serviceURI;
 	private MulticastSocket ms;
 
-	private final Map<String, SpreadsheetClient> spreadsheetClients = new HashMap<>();
-	private final Map<String, UsersClient> usersClients = new HashMap<>();
+	// what sheets servers announce, as primaries or backups of a shard
+	private volatile String announcedService;
+	private volatile String shard;
+	private volatile long term;
+
+	private final Map<String, SpreadsheetClient> spreadsheetClients = new ConcurrentHashMap<>();
+	private final Map<String, HashRing> spreadsheetRings = new ConcurrentHashMap<>();
+	// the client of each shard, and the replicas of each shard
+	private final Map<String, SpreadsheetClient> spreadsheetShards = new ConcurrentHashMap<>();
+	private final Map<String, SpreadsheetReplicatedClient> spreadsheetReplicas = new ConcurrentHashMap<>();
+	private final Map<String, UsersClient> usersClients = new ConcurrentHashMap<>();
+	// the servers announcing their shard and term, whose plain announcements are ignored
+	private final Set<String> shardedServers = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * @param  serviceName the name of the service to announce
@@ -60,6 +85,8 @@ public class Discovery {
 		this.serviceName = serviceName;
 		this.serviceURI  = serviceURI;
 		this.ms = null;
+		this.announcedService = serviceName;
+		this.shard = serviceURI;
 	}
 
 	/**
@@ -70,15 +97,26 @@ public class Discovery {
 		this(DISCOVERY_ADDR, domainId, serviceName, serviceURI);
 	}
 	
+	/**
+	 * Changes what this server announces: the service it provides, and for sheets servers, the shard it keeps
+	 * and its term as the primary of the shard.
+	 */
+	public void announce(String serviceName, String shard, long term) {
+		this.announcedService = serviceName;
+		this.shard = shard;
+		this.term = term;
+
+		// a sheets server owns its share of the sheets of the domain before hearing its own announcements
+		if (serviceName.equals(SpreadsheetClient.SERVICE))
+			spreadsheetRing(domainId).add(shard);
+	}
+
 	/**
 	 * Starts sending service announcements at regular intervals... 
 	 */
 	public void startSendingAnnouncements() {
 		Log.info(String.format("Starting Discovery announcements on: %s for: %s -> %s\n", addr, serviceName, serviceURI));
 
-		byte[] announceBytes = (domainId+ SERVICE_DELIMITER +serviceName+ URI_DELIMITER +serviceURI).getBytes();
-		DatagramPacket announcePkt = new DatagramPacket(announceBytes, announceBytes.length, addr);
-
 		try {
 			if(ms == null) {
 				ms = new MulticastSocket(addr.getPort());
@@ -89,7 +127,16 @@ public class Discovery {
 			new Thread(() -> {
 				for (;;) {
 					try {
-						ms.send(announcePkt);
+						String service = announcedService, shard = this.shard;
+						long term = this.term;
+						// sent first, so that the plain announcement after it is ignored
+						if (!shard.equals(serviceURI) || term != 0) {
+							byte[] shardBytes = (domainId+ SERVICE_DELIMITER +service+ URI_DELIMITER +serviceURI
+									+ URI_DELIMITER +shard+ URI_DELIMITER +term).getBytes();
+							ms.send(new DatagramPacket(shardBytes, shardBytes.length, addr));
+						}
+						byte[] announceBytes = (domainId+ SERVICE_DELIMITER +service+ URI_DELIMITER +serviceURI).getBytes();
+						ms.send(new DatagramPacket(announceBytes, announceBytes.length, addr));
 						Thread.sleep(DISCOVERY_PERIOD);
 					} catch (Exception e) {
 						e.printStackTrace();
@@ -123,16 +170,19 @@ public class Discovery {
 						String msg = new String( pkt.getData(), 0, pkt.getLength());
 						String[] msgElems = msg.split(URI_DELIMITER);
 
-						if( msgElems.length == 2) {	//periodic announcement
+						if( msgElems.length == 2 || msgElems.length == 4) {	//periodic announcement
 
 							String sn = msgElems[0], su = msgElems[1];
 
 							URI uri = URI.create(su);
 							String[] split = sn.split(SERVICE_DELIMITER);
 
-							this.addClient(split[0],split[1],uri.toString());
+							if (msgElems.length == 4)
+								this.addShardedClient(split[0],split[1],uri.toString(),msgElems[2],Long.parseLong(msgElems[3]));
+							else if (!shardedServers.contains(uri.toString()))
+								this.addClient(split[0],split[1],uri.toString());
 						}
-					} catch (IOException ignored) {
+					} catch (IOException | NumberFormatException ignored) {
 					}
 				}
 			}).start();
@@ -142,25 +192,87 @@ public class Discovery {
 	}
 
 	public void addClient(String domain, String service, String serverUrl) {
-		if(domain.equals(domainId) && service.equals(serviceName))
-			return;
+		addClient(domain, service, serverUrl, serverUrl, 0);
+	}
+
+	/**
+	 * Adds a sheets server announcing its shard and term. A server taken for the primary of a shard named
+	 * after it, from a plain announcement heard first, is removed from the ring.
+	 */
+	private void addShardedClient(String domain, String service, String serverUrl, String shard, long term) {
+		if (shardedServers.add(serverUrl) && !shard.equals(serverUrl) && spreadsheetShards.remove(serverUrl) != null) {
+			spreadsheetReplicas.remove(serverUrl);
+			spreadsheetRing(domain).remove(serverUrl);
+		}
+		addClient(domain, service, serverUrl, shard, term);
+	}
 
+	public void addClient(String domain, String service, String serverUrl, String shard, long term) {
 		if(service.equals(UsersClient.SERVICE) && !usersClients.containsKey(domain)) {
+			if(domain.equals(domainId) && service.equals(serviceName))
+				return;
+
 			try {
 				UsersCachedClient client = new UsersCachedClient(serverUrl);
 				usersClients.put(domain, client);
 			} catch (Exception ignored) {
 			}
 		}
-		else if(service.equals(SpreadsheetClient.SERVICE) && !spreadsheetClients.containsKey(domain)) {
+		else if(service.equals(SpreadsheetClient.SERVICE)) {
+			var replicas = spreadsheetReplicas.computeIfAbsent(shard, k -> newReplicas(domain));
+			try {
+				if (!replicas.setPrimary(serverUrl, term))
+					return;
+			} catch (Exception ignored) {
+				return;
+			}
+			Log.info(String.format("Sheets server of %s @ %s (term %d)\n", domain, serverUrl, term));
+
+			// sheets of the own domain are not mirrored, or every server would end up holding them all
+			spreadsheetShards.computeIfAbsent(shard, k -> domain.equals(domainId)
+					? new SpreadsheetRetryClient(replicas)
+					: new SpreadsheetCachedClient(new SpreadsheetRetryClient(replicas)));
+			spreadsheetRing(domain).add(shard);
+		}
+		else if(service.equals(SpreadsheetClient.BACKUP_SERVICE)) {
+			var replicas = spreadsheetReplicas.computeIfAbsent(shard, k -> newReplicas(domain));
 			try {
-				SpreadsheetCachedClient client = new SpreadsheetCachedClient(serverUrl);
-				spreadsheetClients.put(domain, client);
+				if (replicas.addBackup(serverUrl))
+					Log.info(String.format("Sheets backup of %s @ %s\n", domain, serverUrl));
 			} catch (Exception ignored) {
 			}
 		}
 	}
 
+	// referenced values of other domains are cached under the version seen at the primary, so only the primary
+	// serves them; backups serve those of the own domain, which are not cached
+	private SpreadsheetReplicatedClient newReplicas(String domain) {
+		return new SpreadsheetReplicatedClient(domain.equals(domainId));
+	}
+
+	private HashRing spreadsheetRing(String domain) {
+		return spreadsheetRings.computeIfAbsent(domain, k -> {
+			var ring = new HashRing();
+			spreadsheetClients.put(domain, new SpreadsheetShardedClient(ring, spreadsheetShards));
+			return ring;
+		});
+	}
+
+	/**
+	 * @return true if the given sheet of the own domain belongs to the shard of this server
+	 */
+	public boolean ownsSpreadsheet(String sheetId) {
+		String owner = spreadsheetRing(domainId).nodeFor(sheetId);
+		return owner == null || owner.equals(shard);
+	}
+
+	/**
+	 * @return the primary and backups of a shard, or null if none were announced
+	 */
+	public SpreadsheetReplicatedClient getSpreadsheetReplicas(String shard) {
+		return spreadsheetReplicas.get(shard);
+	}
+
 	public UsersClient getUserClient(String domainId) {
 		return usersClients.get(domainId);
 	}
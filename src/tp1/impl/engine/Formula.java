@@ -0,0 +1,506 @@
+package tp1.impl.engine;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import tp1.util.CellRange;
+
+/**
+ * Parsed formula expression, evaluated by the NativeSpreadsheetEngine.
+ *
+ * Values produced during evaluation are Double, Boolean, String (the empty string stands for a blank cell),
+ * Range (the values covered by a range reference) or the ERROR marker.
+ */
+abstract class Formula {
+
+	static final Object ERROR = new Object() {
+		public String toString() {
+			return "#ERROR?";
+		}
+	};
+
+	/**
+	 * Resolves the value of the cells referenced by a formula.
+	 */
+	interface Env {
+		Object valueOf(int row, int col);
+
+		// the dimensions of the sheet; cells beyond them are blank
+		int rows();
+
+		int cols();
+	}
+
+	abstract Object evaluate(Env env);
+
+	/**
+	 * Adds the ranges of cells read by this formula to the given list (single cells are 1x1 ranges).
+	 */
+	abstract void references(List<CellRange> refs);
+
+	static final class Range {
+		final Object[] values;
+
+		Range(Object[] values) {
+			this.values = values;
+		}
+	}
+
+	static final class Constant extends Formula {
+		final Object value;
+
+		Constant(Object value) {
+			this.value = value;
+		}
+
+		Object evaluate(Env env) {
+			return value;
+		}
+
+		void references(List<CellRange> refs) {
+		}
+	}
+
+	static final class CellRef extends Formula {
+		final int row, col;
+
+		CellRef(int row, int col) {
+			this.row = row;
+			this.col = col;
+		}
+
+		Object evaluate(Env env) {
+			return env.valueOf(row, col);
+		}
+
+		void references(List<CellRange> refs) {
+			refs.add(new CellRange(row, col, row, col));
+		}
+	}
+
+	static final class RangeRef extends Formula {
+		final CellRange range;
+
+		RangeRef(CellRange range) {
+			this.range = range;
+		}
+
+		/**
+		 * The values of the cells of the range inside the sheet. The blank cells beyond it are left out, which
+		 * no function tells apart, so that huge ranges (e.g. A1:ZZZ99999) cost no more than the sheet.
+		 */
+		Object evaluate(Env env) {
+			int top = Math.max(range.topRow, 0), bot = Math.min(range.botRow, env.rows() - 1);
+			int left = Math.max(range.topCol, 0), right = Math.min(range.botCol, env.cols() - 1);
+			if (top > bot || left > right)
+				return new Range(new Object[0]);
+
+			var values = new Object[(bot - top + 1) * (right - left + 1)];
+			int i = 0;
+			for (int r = top; r <= bot; r++)
+				for (int c = left; c <= right; c++)
+					values[i++] = env.valueOf(r, c);
+			return new Range(values);
+		}
+
+		void references(List<CellRange> refs) {
+			refs.add(range);
+		}
+	}
+
+	static final class Unary extends Formula {
+		final char op;
+		final Formula arg;
+
+		Unary(char op, Formula arg) {
+			this.op = op;
+			this.arg = arg;
+		}
+
+		Object evaluate(Env env) {
+			Object v = toNumber(arg.evaluate(env));
+			if (v == ERROR)
+				return ERROR;
+			double d = (Double) v;
+			return switch (op) {
+				case '-' -> -d;
+				case '%' -> d / 100;
+				default -> d;
+			};
+		}
+
+		void references(List<CellRange> refs) {
+			arg.references(refs);
+		}
+	}
+
+	static final class Binary extends Formula {
+		final String op;
+		final Formula left, right;
+
+		Binary(String op, Formula left, Formula right) {
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		Object evaluate(Env env) {
+			Object l = left.evaluate(env), r = right.evaluate(env);
+			if (l == ERROR || r == ERROR || l instanceof Range || r instanceof Range)
+				return ERROR;
+
+			switch (op) {
+				case "&":
+					return toText(l) + toText(r);
+				case "=": case "<>": case "<": case ">": case "<=": case ">=":
+					return compare(op, l, r);
+			}
+
+			l = toNumber(l);
+			r = toNumber(r);
+			if (l == ERROR || r == ERROR)
+				return ERROR;
+			double a = (Double) l, b = (Double) r;
+			return switch (op) {
+				case "+" -> number(a + b);
+				case "-" -> number(a - b);
+				case "*" -> number(a * b);
+				case "/" -> b == 0 ? ERROR : number(a / b);
+				case "^" -> number(Math.pow(a, b));
+				default -> ERROR;
+			};
+		}
+
+		void references(List<CellRange> refs) {
+			left.references(refs);
+			right.references(refs);
+		}
+	}
+
+	static final class Call extends Formula {
+		final Function function;
+		final Formula[] args;
+
+		Call(Function function, Formula[] args) {
+			this.function = function;
+			this.args = args;
+		}
+
+		Object evaluate(Env env) {
+			return function.apply(args, env);
+		}
+
+		void references(List<CellRange> refs) {
+			for (var arg : args)
+				arg.references(refs);
+		}
+	}
+
+	/**
+	 * A spreadsheet function. Arguments are handed over unevaluated so that functions like IF can be lazy.
+	 */
+	interface Function {
+		Object apply(Formula[] args, Env env);
+	}
+
+	static Function lookup(String name) {
+		return FUNCTIONS.get(name.toUpperCase(Locale.ROOT));
+	}
+
+	private static final Map<String, Function> FUNCTIONS = Map.ofEntries(
+			Map.entry("SUM", (args, env) -> aggregate(args, env, 0, Double::sum)),
+			Map.entry("PRODUCT", (args, env) -> aggregate(args, env, 1, (a, b) -> a * b)),
+			Map.entry("MIN", (args, env) -> extreme(args, env, true)),
+			Map.entry("MAX", (args, env) -> extreme(args, env, false)),
+			Map.entry("COUNT", (args, env) -> count(args, env, false)),
+			Map.entry("COUNTA", (args, env) -> count(args, env, true)),
+			Map.entry("AVERAGE", Formula::average),
+			Map.entry("IF", Formula::ifThenElse),
+			Map.entry("AND", (args, env) -> logical(args, env, true)),
+			Map.entry("OR", (args, env) -> logical(args, env, false)),
+			Map.entry("NOT", (args, env) -> {
+				if (args.length != 1)
+					return ERROR;
+				Object v = toBoolean(args[0].evaluate(env));
+				return v == ERROR ? ERROR : !(Boolean) v;
+			}),
+			Map.entry("ABS", (args, env) -> math(args, env, Math::abs)),
+			Map.entry("SQRT", (args, env) -> math(args, env, Math::sqrt)),
+			Map.entry("ROUND", Formula::round),
+			Map.entry("MOD", (args, env) -> {
+				Object[] v = numbers(args, env, 2);
+				if (v == null)
+					return ERROR;
+				double a = (Double) v[0], b = (Double) v[1];
+				return b == 0 ? ERROR : number(a - b * Math.floor(a / b));
+			}),
+			Map.entry("POWER", (args, env) -> {
+				Object[] v = numbers(args, env, 2);
+				return v == null ? ERROR : number(Math.pow((Double) v[0], (Double) v[1]));
+			}),
+			Map.entry("CONCATENATE", (args, env) -> {
+				var sb = new StringBuilder();
+				for (var arg : args) {
+					Object v = arg.evaluate(env);
+					if (v == ERROR || v instanceof Range)
+						return ERROR;
+					sb.append(toText(v));
+				}
+				return sb.toString();
+			}),
+			Map.entry("LEN", (args, env) -> text(args, env, s -> (double) s.length())),
+			Map.entry("UPPER", (args, env) -> text(args, env, s -> s.toUpperCase(Locale.ROOT))),
+			Map.entry("LOWER", (args, env) -> text(args, env, s -> s.toLowerCase(Locale.ROOT))),
+			Map.entry("TRUE", (args, env) -> args.length == 0 ? Boolean.TRUE : ERROR),
+			Map.entry("FALSE", (args, env) -> args.length == 0 ? Boolean.FALSE : ERROR));
+
+	private interface Accumulator {
+		double add(double acc, double value);
+	}
+
+	private interface Visitor {
+		boolean visit(Object value, boolean fromRange);
+	}
+
+	/**
+	 * Visits the values of the arguments, flattening ranges. Stops early and returns false on errors.
+	 */
+	private static boolean visit(Formula[] args, Env env, Visitor visitor) {
+		for (var arg : args) {
+			Object v = arg.evaluate(env);
+			if (v instanceof Range) {
+				for (Object x : ((Range) v).values)
+					if (x == ERROR || !visitor.visit(x, true))
+						return false;
+			} else if (v == ERROR || !visitor.visit(v, false))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Numeric value of an aggregate argument: text and booleans inside ranges are skipped (null),
+	 * as are blanks; direct arguments are coerced.
+	 */
+	private static Object aggregateValue(Object v, boolean fromRange) {
+		if (v instanceof Double)
+			return v;
+		if (fromRange || "".equals(v))
+			return null;
+		return toNumber(v);
+	}
+
+	private static Object aggregate(Formula[] args, Env env, double initial, Accumulator acc) {
+		double[] total = {initial};
+		boolean ok = visit(args, env, (v, fromRange) -> {
+			Object n = aggregateValue(v, fromRange);
+			if (n == ERROR)
+				return false;
+			if (n != null)
+				total[0] = acc.add(total[0], (Double) n);
+			return true;
+		});
+		return ok ? number(total[0]) : ERROR;
+	}
+
+	private static Object extreme(Formula[] args, Env env, boolean min) {
+		double[] best = {Double.NaN};
+		boolean ok = visit(args, env, (v, fromRange) -> {
+			Object n = aggregateValue(v, fromRange);
+			if (n == ERROR)
+				return false;
+			if (n != null) {
+				double d = (Double) n;
+				if (Double.isNaN(best[0]) || (min ? d < best[0] : d > best[0]))
+					best[0] = d;
+			}
+			return true;
+		});
+		if (!ok)
+			return ERROR;
+		return Double.isNaN(best[0]) ? 0.0 : best[0];
+	}
+
+	private static Object average(Formula[] args, Env env) {
+		double[] sum = {0, 0};
+		boolean ok = visit(args, env, (v, fromRange) -> {
+			Object n = aggregateValue(v, fromRange);
+			if (n == ERROR)
+				return false;
+			if (n != null) {
+				sum[0] += (Double) n;
+				sum[1]++;
+			}
+			return true;
+		});
+		return ok && sum[1] > 0 ? number(sum[0] / sum[1]) : ERROR;
+	}
+
+	private static Object count(Formula[] args, Env env, boolean any) {
+		int count = 0;
+		for (var arg : args) {
+			Object v = arg.evaluate(env);
+			Object[] values = v instanceof Range ? ((Range) v).values : new Object[]{v};
+			for (Object x : values)
+				if (any ? !"".equals(x) : x instanceof Double)
+					count++;
+		}
+		return (double) count;
+	}
+
+	private static Object logical(Formula[] args, Env env, boolean and) {
+		if (args.length == 0)
+			return ERROR;
+		boolean[] result = {and};
+		boolean ok = visit(args, env, (v, fromRange) -> {
+			if (fromRange && !(v instanceof Boolean) && !(v instanceof Double))
+				return true;
+			Object b = toBoolean(v);
+			if (b == ERROR)
+				return false;
+			result[0] = and ? result[0] && (Boolean) b : result[0] || (Boolean) b;
+			return true;
+		});
+		return ok ? result[0] : ERROR;
+	}
+
+	private static Object ifThenElse(Formula[] args, Env env) {
+		if (args.length < 2 || args.length > 3)
+			return ERROR;
+		Object cond = toBoolean(args[0].evaluate(env));
+		if (cond == ERROR)
+			return ERROR;
+		if ((Boolean) cond)
+			return args[1].evaluate(env);
+		return args.length == 3 ? args[2].evaluate(env) : Boolean.FALSE;
+	}
+
+	/**
+	 * Rounds halves away from zero, on the decimal form of the number (e.g. ROUND(-2.5,0) is -3 and
+	 * ROUND(2.675,2) is 2.68), as Excel does.
+	 */
+	private static Object round(Formula[] args, Env env) {
+		Object[] v = args.length == 1 ? numbers(args, env, 1) : numbers(args, env, 2);
+		if (v == null)
+			return ERROR;
+		int digits = args.length == 1 ? 0 : (int) Math.floor((Double) v[1]);
+		if (Double.isNaN((Double) v[0]) || Double.isInfinite((Double) v[0]) || Math.abs(digits) > 300)
+			return ERROR;
+		return number(BigDecimal.valueOf((Double) v[0]).setScale(digits, RoundingMode.HALF_UP).doubleValue());
+	}
+
+	private static Object math(Formula[] args, Env env, java.util.function.DoubleUnaryOperator op) {
+		Object[] v = numbers(args, env, 1);
+		return v == null ? ERROR : number(op.applyAsDouble((Double) v[0]));
+	}
+
+	private static Object text(Formula[] args, Env env, java.util.function.Function<String, Object> op) {
+		if (args.length != 1)
+			return ERROR;
+		Object v = args[0].evaluate(env);
+		return v == ERROR || v instanceof Range ? ERROR : op.apply(toText(v));
+	}
+
+	/**
+	 * Evaluates exactly n numeric arguments, returning null if any of them is not a number.
+	 */
+	private static Object[] numbers(Formula[] args, Env env, int n) {
+		if (args.length != n)
+			return null;
+		var res = new Object[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = toNumber(args[i].evaluate(env));
+			if (res[i] == ERROR)
+				return null;
+		}
+		return res;
+	}
+
+	static Object number(double d) {
+		return Double.isNaN(d) || Double.isInfinite(d) ? ERROR : d;
+	}
+
+	static Object toNumber(Object v) {
+		if (v instanceof Double)
+			return v;
+		if (v instanceof Boolean)
+			return (Boolean) v ? 1.0 : 0.0;
+		if (v instanceof String) {
+			var s = (String) v;
+			if (s.isEmpty())
+				return 0.0;
+			try {
+				return Double.parseDouble(s);
+			} catch (NumberFormatException x) {
+				return ERROR;
+			}
+		}
+		return ERROR;
+	}
+
+	static Object toBoolean(Object v) {
+		if (v instanceof Boolean)
+			return v;
+		if (v instanceof Double)
+			return (Double) v != 0;
+		if ("".equals(v))
+			return Boolean.FALSE;
+		if (v instanceof String) {
+			var s = (String) v;
+			if (s.equalsIgnoreCase("true"))
+				return Boolean.TRUE;
+			if (s.equalsIgnoreCase("false"))
+				return Boolean.FALSE;
+		}
+		return ERROR;
+	}
+
+	/**
+	 * Text form of a value inside a formula, where integral numbers show no decimal part (e.g. ="A"&1 is "A1").
+	 */
+	static String toText(Object v) {
+		if (v instanceof Double) {
+			double d = (Double) v;
+			if (d == Math.rint(d) && Math.abs(d) < 1e15)
+				return Long.toString((long) d);
+		}
+		return v.toString();
+	}
+
+	/**
+	 * Excel ordering: numbers < text < booleans; text compares case-insensitively and blanks match 0, "" and false.
+	 */
+	private static Object compare(String op, Object l, Object r) {
+		if ("".equals(l))
+			l = r instanceof Double ? (Object) 0.0 : r instanceof Boolean ? Boolean.FALSE : l;
+		if ("".equals(r))
+			r = l instanceof Double ? (Object) 0.0 : l instanceof Boolean ? Boolean.FALSE : r;
+
+		int cmp;
+		int lr = rank(l), rr = rank(r);
+		if (lr != rr)
+			cmp = Integer.compare(lr, rr);
+		else if (l instanceof Double)
+			cmp = Double.compare((Double) l, (Double) r);
+		else if (l instanceof Boolean)
+			cmp = Boolean.compare((Boolean) l, (Boolean) r);
+		else
+			cmp = ((String) l).compareToIgnoreCase((String) r);
+
+		return switch (op) {
+			case "=" -> cmp == 0;
+			case "<>" -> cmp != 0;
+			case "<" -> cmp < 0;
+			case ">" -> cmp > 0;
+			case "<=" -> cmp <= 0;
+			default -> cmp >= 0;
+		};
+	}
+
+	private static int rank(Object v) {
+		return v instanceof Double ? 0 : v instanceof String ? 1 : 2;
+	}
+}
@@ -0,0 +1,244 @@
+package tp1.impl.engine;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import tp1.util.Cell;
+import tp1.util.CellRange;
+import tp1.util.InvalidCellIdException;
+
+/**
+ * Recursive descent parser for spreadsheet formulas (e.g. "=SUM(A1:B3)*2"), following Excel operator precedence:
+ * comparison < & < + - < * / < ^ < % < unary minus.
+ *
+ * Anything outside the supported subset (sheet references, named ranges, unknown functions...) raises
+ * UnsupportedFormulaException, so the caller can hand the sheet over to GemBox.
+ */
+class FormulaParser {
+
+	private final String text;
+	private int pos;
+
+	private FormulaParser(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Parses a raw cell value starting with '='.
+	 */
+	static Formula parse(String rawVal) throws UnsupportedFormulaException {
+		var parser = new FormulaParser(rawVal);
+		parser.pos = 1;
+		var formula = parser.comparison();
+		parser.skipSpaces();
+		if (parser.pos != rawVal.length())
+			throw parser.unsupported();
+		return formula;
+	}
+
+	private Formula comparison() throws UnsupportedFormulaException {
+		var left = concat();
+		for (;;) {
+			String op = accept("<=", ">=", "<>", "=", "<", ">");
+			if (op == null)
+				return left;
+			left = new Formula.Binary(op, left, concat());
+		}
+	}
+
+	private Formula concat() throws UnsupportedFormulaException {
+		var left = additive();
+		while (accept("&") != null)
+			left = new Formula.Binary("&", left, additive());
+		return left;
+	}
+
+	private Formula additive() throws UnsupportedFormulaException {
+		var left = term();
+		for (;;) {
+			String op = accept("+", "-");
+			if (op == null)
+				return left;
+			left = new Formula.Binary(op, left, term());
+		}
+	}
+
+	private Formula term() throws UnsupportedFormulaException {
+		var left = power();
+		for (;;) {
+			String op = accept("*", "/");
+			if (op == null)
+				return left;
+			left = new Formula.Binary(op, left, power());
+		}
+	}
+
+	private Formula power() throws UnsupportedFormulaException {
+		var left = percent();
+		while (accept("^") != null)
+			left = new Formula.Binary("^", left, percent());
+		return left;
+	}
+
+	private Formula percent() throws UnsupportedFormulaException {
+		var arg = unary();
+		while (accept("%") != null)
+			arg = new Formula.Unary('%', arg);
+		return arg;
+	}
+
+	private Formula unary() throws UnsupportedFormulaException {
+		String op = accept("-", "+");
+		if (op != null)
+			return new Formula.Unary(op.charAt(0), unary());
+		return primary();
+	}
+
+	private Formula primary() throws UnsupportedFormulaException {
+		skipSpaces();
+		if (pos >= text.length())
+			throw unsupported();
+
+		char c = text.charAt(pos);
+		if (c == '(') {
+			pos++;
+			var inner = comparison();
+			expect(')');
+			return inner;
+		}
+		if (c == '"')
+			return new Formula.Constant(string());
+		if (Character.isDigit(c) || c == '.')
+			return new Formula.Constant(number());
+		if (Character.isLetter(c) || c == '$')
+			return identifier();
+
+		throw unsupported();
+	}
+
+	private Formula identifier() throws UnsupportedFormulaException {
+		int start = pos;
+		while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '$' || text.charAt(pos) == '_' || text.charAt(pos) == '.'))
+			pos++;
+		String name = text.substring(start, pos);
+
+		skipSpaces();
+		if (pos < text.length() && text.charAt(pos) == '(') {
+			pos++;
+			var function = Formula.lookup(name);
+			if (function == null)
+				throw unsupported();
+			return new Formula.Call(function, arguments());
+		}
+
+		if (CELL_REF.matcher(name).matches()) {
+			int[] from = cell(name);
+			if (accept(":") == null)
+				return new Formula.CellRef(from[0], from[1]);
+
+			skipSpaces();
+			start = pos;
+			while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '$'))
+				pos++;
+			String other = text.substring(start, pos);
+			if (!CELL_REF.matcher(other).matches())
+				throw unsupported();
+			int[] to = cell(other);
+			return new Formula.RangeRef(new CellRange(Math.min(from[0], to[0]), Math.min(from[1], to[1]),
+					Math.max(from[0], to[0]), Math.max(from[1], to[1])));
+		}
+
+		if (name.equalsIgnoreCase("true"))
+			return new Formula.Constant(Boolean.TRUE);
+		if (name.equalsIgnoreCase("false"))
+			return new Formula.Constant(Boolean.FALSE);
+
+		throw unsupported();
+	}
+
+	private Formula[] arguments() throws UnsupportedFormulaException {
+		var args = new ArrayList<Formula>();
+		skipSpaces();
+		if (pos < text.length() && text.charAt(pos) == ')') {
+			pos++;
+			return new Formula[0];
+		}
+		for (;;) {
+			args.add(comparison());
+			skipSpaces();
+			if (pos < text.length() && (text.charAt(pos) == ',' || text.charAt(pos) == ';'))
+				pos++;
+			else {
+				expect(')');
+				return args.toArray(new Formula[0]);
+			}
+		}
+	}
+
+	private String string() throws UnsupportedFormulaException {
+		var sb = new StringBuilder();
+		pos++;
+		for (;;) {
+			if (pos >= text.length())
+				throw unsupported();
+			char c = text.charAt(pos++);
+			if (c == '"') {
+				if (pos < text.length() && text.charAt(pos) == '"')
+					pos++;
+				else
+					return sb.toString();
+			}
+			sb.append(c);
+		}
+	}
+
+	private Double number() throws UnsupportedFormulaException {
+		var m = NUMBER.matcher(text).region(pos, text.length());
+		if (!m.lookingAt())
+			throw unsupported();
+		pos = m.end();
+		return Double.parseDouble(m.group());
+	}
+
+	private int[] cell(String name) throws UnsupportedFormulaException {
+		try {
+			var indexes = Cell.CellId2Indexes(name.replace("$", "").toUpperCase(Locale.ROOT));
+			return new int[]{indexes.getLeft(), indexes.getRight()};
+		} catch (InvalidCellIdException e) {
+			throw unsupported();
+		}
+	}
+
+	/**
+	 * Consumes and returns the first of the given operators found at the current position, if any.
+	 */
+	private String accept(String... ops) {
+		skipSpaces();
+		for (String op : ops)
+			if (text.startsWith(op, pos)) {
+				pos += op.length();
+				return op;
+			}
+		return null;
+	}
+
+	private void expect(char c) throws UnsupportedFormulaException {
+		skipSpaces();
+		if (pos >= text.length() || text.charAt(pos) != c)
+			throw unsupported();
+		pos++;
+	}
+
+	private void skipSpaces() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	private UnsupportedFormulaException unsupported() {
+		return new UnsupportedFormulaException(String.format("Unsupported formula %s at position %d", text, pos));
+	}
+
+	private static final Pattern CELL_REF = Pattern.compile("\\$?[A-Za-z]+\\$?[1-9][0-9]*");
+	private static final Pattern NUMBER = Pattern.compile("([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?");
+}
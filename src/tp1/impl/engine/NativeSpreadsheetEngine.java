@@ -0,0 +1,135 @@
+package tp1.impl.engine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.api.engine.SpreadsheetEngine;
+import tp1.util.CellRange;
+
+/**
+ * SpreadsheetEngine that parses and evaluates formulas directly over the AbstractSpreadsheet, without
+ * building a GemBox workbook. Sheets using formulas outside the supported subset are computed by
+ * SpreadsheetEngineImpl instead.
+ *
+ * The engine keeps the evaluation of each sheet it computed, so that reads only need to resolve the
+ * importrange formulas again, and cell updates only re-evaluate the cells depending on them. Given
+ * snapshots of a sheet, the evaluation kept follows the latest snapshot, and reads of older ones are
+ * evaluated on their own. Ranges of sheets without such an evaluation are computed on demand, evaluating
+ * only the cells they depend on. Large evaluations compute the formula cells that do not depend on each
+ * other in parallel.
+ */
+public class NativeSpreadsheetEngine implements SpreadsheetEngine {
+
+	// threads used to evaluate independent formula cells in parallel (-Dtp1.engine.parallelism=n)
+	final static int EVALUATION_PARALLELISM =
+			Math.max(1, Integer.getInteger("tp1.engine.parallelism", Runtime.getRuntime().availableProcessors()));
+	// sheets with fewer formula cells to evaluate than this are evaluated sequentially (-Dtp1.engine.parallelCutoff=n)
+	final static int PARALLEL_EVALUATION_CUTOFF = Integer.getInteger("tp1.engine.parallelCutoff", 2000);
+
+	private static Logger Log = Logger.getLogger(NativeSpreadsheetEngine.class.getName());
+
+	private final SpreadsheetEngine fallback;
+
+	private final Map<String, SheetEvaluation> evaluations;
+	// number of cell updates seen for each sheet, so that evaluations racing with an update are not kept
+	private final Map<String, Long> generations;
+
+	private NativeSpreadsheetEngine() {
+		this.fallback = SpreadsheetEngineImpl.getInstance();
+		this.evaluations = new ConcurrentHashMap<>();
+		this.generations = new ConcurrentHashMap<>();
+	}
+
+	static public SpreadsheetEngine getInstance() {
+		return new NativeSpreadsheetEngine();
+	}
+
+	@Override
+	public String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet) {
+		var evaluation = sheet.sheetId() == null ? null : evaluations.get(sheet.sheetId());
+		if (evaluation != null) {
+			// checked holding the lock, as updates move the evaluation to the next snapshot of the sheet
+			synchronized (evaluation) {
+				if (evaluation.isFor(sheet)) {
+					evaluation.refreshImports();
+					return evaluation.results();
+				}
+			}
+		}
+
+		long generation = sheet.sheetId() == null ? 0 : generations.getOrDefault(sheet.sheetId(), 0L);
+		try {
+			evaluation = new SheetEvaluation(sheet);
+		} catch (UnsupportedFormulaException e) {
+			Log.fine(String.format("Sheet %s computed by GemBox: %s\n", sheet.sheetId(), e.getMessage()));
+			return fallback.computeSpreadsheetValues(sheet);
+		}
+
+		synchronized (evaluation) {
+			evaluation.evaluate();
+			if (sheet.sheetId() != null) {
+				var computed = evaluation;
+				evaluations.compute(sheet.sheetId(), (id, current) ->
+						generations.getOrDefault(id, 0L) == generation ? computed : current);
+			}
+			return evaluation.results();
+		}
+	}
+
+	@Override
+	public String[][] computeRangeValues(AbstractSpreadsheet sheet, CellRange range) {
+		var evaluation = sheet.sheetId() == null ? null : evaluations.get(sheet.sheetId());
+		if (evaluation != null) {
+			// checked holding the lock, as updates move the evaluation to the next snapshot of the sheet
+			synchronized (evaluation) {
+				if (evaluation.isFor(sheet)) {
+					evaluation.refreshImports();
+					return evaluation.results(range);
+				}
+			}
+		}
+
+		try {
+			return new RangeEvaluation(sheet).results(range);
+		} catch (UnsupportedFormulaException e) {
+			Log.fine(String.format("Sheet %s computed by GemBox: %s\n", sheet.sheetId(), e.getMessage()));
+			return range.extractRangeValuesFrom(fallback.computeSpreadsheetValues(sheet));
+		}
+	}
+
+	@Override
+	public void cellUpdated(AbstractSpreadsheet sheet, int row, int col) {
+		rangeUpdated(sheet, new CellRange(row, col, row, col));
+	}
+
+	@Override
+	public void rangeUpdated(AbstractSpreadsheet sheet, CellRange range) {
+		if (sheet.sheetId() == null)
+			return;
+
+		generations.merge(sheet.sheetId(), 1L, Long::sum);
+		var evaluation = evaluations.get(sheet.sheetId());
+		if (evaluation == null)
+			return;
+
+		synchronized (evaluation) {
+			if (!evaluation.precedes(sheet)) {
+				evaluations.remove(sheet.sheetId(), evaluation);
+				return;
+			}
+			try {
+				evaluation.update(sheet, range);
+			} catch (UnsupportedFormulaException e) {
+				evaluations.remove(sheet.sheetId(), evaluation);
+			}
+		}
+	}
+
+	@Override
+	public void spreadsheetDeleted(String sheetId) {
+		evaluations.remove(sheetId);
+		generations.remove(sheetId);
+	}
+}
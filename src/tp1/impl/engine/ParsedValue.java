@@ -0,0 +1,101 @@
+package tp1.impl.engine;
+
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.impl.engine.SpreadsheetEngineImpl.CellType;
+
+/**
+ * Immutable result of classifying and parsing the raw value of a cell: a constant (number, boolean or
+ * text), a formula AST, or the sheet and range of an importrange formula.
+ *
+ * The engines keep it next to the raw value in the spreadsheet, so that raw values are parsed once and not
+ * on every evaluation. It holds the raw value it was parsed from, so that one racing with an update of the
+ * cell is never mistaken for the current one.
+ */
+final class ParsedValue {
+
+	final String rawVal;
+	final CellType type;
+
+	// value of constant cells: a Double, a Boolean or the text itself
+	final Object value;
+
+	// AST of formula cells, or the reason it could not be parsed
+	private final Formula formula;
+	private final UnsupportedFormulaException unsupported;
+
+	// sheet and range of importrange cells, both null if the formula is malformed
+	final String importURL, importRange;
+
+	private ParsedValue(String rawVal) {
+		this.rawVal = rawVal;
+		this.type = SpreadsheetEngineImpl.parseRawValue(rawVal);
+
+		Formula formula = null;
+		UnsupportedFormulaException unsupported = null;
+		String importURL = null, importRange = null;
+		Object value = null;
+
+		switch (type) {
+			case BOOLEAN -> value = Boolean.parseBoolean(rawVal);
+			case NUMBER -> value = Double.parseDouble(rawVal);
+			case TEXT, EMPTY -> value = rawVal;
+			case FORMULA -> {
+				try {
+					formula = FormulaParser.parse(rawVal);
+				} catch (UnsupportedFormulaException e) {
+					unsupported = e;
+				}
+			}
+			case IMPORTRANGE -> {
+				var matcher = SpreadsheetEngineImpl.IMPORTRANGE_PATTERN.matcher(rawVal);
+				if (matcher.matches()) {
+					importURL = matcher.group(1);
+					importRange = matcher.group(2);
+				}
+			}
+		}
+
+		this.value = value;
+		this.formula = formula;
+		this.unsupported = unsupported;
+		this.importURL = importURL;
+		this.importRange = importRange;
+	}
+
+	/**
+	 * Parses a raw value, without keeping the result.
+	 */
+	static ParsedValue of(String rawVal) {
+		return new ParsedValue(rawVal == null ? "" : rawVal);
+	}
+
+	/**
+	 * Gets the parsed raw value of a cell, parsing it only if the sheet holds no valid parse of it.
+	 */
+	static ParsedValue of(AbstractSpreadsheet sheet, int row, int col) {
+		var rawVal = sheet.cellRawValue(row, col);
+		if (rawVal == null)
+			rawVal = "";
+
+		var compiled = sheet.compiledValue(row, col);
+		if (compiled instanceof ParsedValue) {
+			var parsed = (ParsedValue) compiled;
+			if (parsed.rawVal.equals(rawVal))
+				return parsed;
+		}
+
+		var parsed = new ParsedValue(rawVal);
+		sheet.storeCompiledValue(row, col, parsed);
+		return parsed;
+	}
+
+	/**
+	 * The AST of a formula cell.
+	 * @throws UnsupportedFormulaException if the formula is outside the subset supported by the native engine.
+	 */
+	Formula formula() throws UnsupportedFormulaException {
+		if (unsupported != null)
+			throw unsupported;
+		return formula;
+	}
+}
@@ -0,0 +1,113 @@
+package tp1.impl.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import tp1.api.engine.AbstractSpreadsheet;
+
+/**
+ * View of a spreadsheet whose importrange formulas were all resolved in parallel beforehand, so that
+ * evaluating a sheet with N imports costs one remote round-trip instead of N sequential ones.
+ *
+ * All fetches share a global deadline; imports not resolved by then evaluate as errors.
+ */
+class PrefetchedSpreadsheet implements AbstractSpreadsheet {
+
+	public final static long IMPORTS_DEADLINE = 5000;
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		var t = new Thread(r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final AbstractSpreadsheet sheet;
+	private final Map<List<String>, String[][]> fetched;
+
+	/**
+	 * Prefetches the importrange formulas found in any cell of the sheet.
+	 */
+	PrefetchedSpreadsheet(AbstractSpreadsheet sheet) {
+		this(sheet, importsOf(sheet));
+	}
+
+	/**
+	 * Prefetches the importrange formulas among the given parsed values.
+	 */
+	PrefetchedSpreadsheet(AbstractSpreadsheet sheet, Collection<ParsedValue> parsed) {
+		this.sheet = sheet;
+		this.fetched = new HashMap<>();
+
+		Map<List<String>, Future<String[][]>> futures = new HashMap<>();
+		for (var p : parsed)
+			if (p.importURL != null)
+				futures.computeIfAbsent(List.of(p.importURL, p.importRange), k -> executor.submit(() -> sheet.rangeValues(p.importURL, p.importRange)));
+
+		long deadline = System.currentTimeMillis() + IMPORTS_DEADLINE;
+		for (var e : futures.entrySet()) {
+			String[][] values = null;
+			try {
+				values = e.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (Exception x) {
+				e.getValue().cancel(true);
+			}
+			fetched.put(e.getKey(), values);
+		}
+	}
+
+	private static List<ParsedValue> importsOf(AbstractSpreadsheet sheet) {
+		var res = new ArrayList<ParsedValue>();
+		for (int row = 0; row < sheet.rows(); row++)
+			for (int col = 0; col < sheet.columns(); col++) {
+				var parsed = ParsedValue.of(sheet, row, col);
+				if (parsed.type == SpreadsheetEngineImpl.CellType.IMPORTRANGE)
+					res.add(parsed);
+			}
+		return res;
+	}
+
+	@Override
+	public int rows() {
+		return sheet.rows();
+	}
+
+	@Override
+	public int columns() {
+		return sheet.columns();
+	}
+
+	@Override
+	public String sheetId() {
+		return sheet.sheetId();
+	}
+
+	@Override
+	public String cellRawValue(int row, int col) {
+		return sheet.cellRawValue(row, col);
+	}
+
+	@Override
+	public Object compiledValue(int row, int col) {
+		return sheet.compiledValue(row, col);
+	}
+
+	@Override
+	public void storeCompiledValue(int row, int col, Object compiled) {
+		sheet.storeCompiledValue(row, col, compiled);
+	}
+
+	@Override
+	public String[][] rangeValues(String sheetURL, String range) {
+		var key = List.of(sheetURL, range);
+		if (fetched.containsKey(key))
+			return fetched.get(key);
+		return sheet.rangeValues(sheetURL, range);
+	}
+}
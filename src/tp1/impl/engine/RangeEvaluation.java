@@ -0,0 +1,165 @@
+package tp1.impl.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.util.CellRange;
+
+/**
+ * Demand-driven evaluation of a range of cells, used by the NativeSpreadsheetEngine when there is no
+ * evaluation of the whole sheet at hand.
+ *
+ * Only the cells of the range and the cells they transitively reference are parsed and evaluated,
+ * following the references depth-first (without recursion, as reference chains can be long).
+ * Formula cells in (or depending on) a reference cycle evaluate to an error, as in SheetEvaluation.
+ *
+ * The cells needed are discovered before evaluating any of them, so that all the importrange formulas
+ * among them are fetched in parallel.
+ */
+class RangeEvaluation implements Formula.Env {
+
+	private final AbstractSpreadsheet sheet;
+	private final int rows, cols;
+
+	// formulas of the cells needed, found before evaluating any of them
+	private final Map<Integer, Formula> formulas = new HashMap<>();
+	// values of the cells evaluated so far, and formulas of the cells still being evaluated
+	private final Map<Integer, Object> values = new HashMap<>();
+	private final Map<Integer, Formula> pending = new HashMap<>();
+	private final Set<Integer> cyclic = new HashSet<>();
+
+	RangeEvaluation(AbstractSpreadsheet sheet) {
+		this.sheet = sheet;
+		this.rows = sheet.rows();
+		this.cols = sheet.columns();
+	}
+
+	/**
+	 * Computes the values of the cells of a range, in the textual form produced by the GemBox engine.
+	 */
+	String[][] results(CellRange range) throws UnsupportedFormulaException {
+		discover(range);
+
+		var cells = new String[range.rows()][range.cols()];
+		for (int r = 0; r < range.rows(); r++)
+			for (int c = 0; c < range.cols(); c++) {
+				int row = range.topRow + r, col = range.topCol + c;
+				if (row < rows && col < cols)
+					evaluate(row * cols + col);
+				cells[r][c] = valueOf(row, col).toString();
+			}
+		return cells;
+	}
+
+	/**
+	 * Loads the cells of the range and all the cells they transitively reference, then resolves the
+	 * importrange formulas among them.
+	 */
+	private void discover(CellRange range) throws UnsupportedFormulaException {
+		var stack = new ArrayDeque<Integer>();
+		for (int row = Math.max(range.topRow, 0); row <= Math.min(range.botRow, rows - 1); row++)
+			for (int col = Math.max(range.topCol, 0); col <= Math.min(range.botCol, cols - 1); col++)
+				stack.push(row * cols + col);
+
+		var imports = new HashMap<Integer, ParsedValue>();
+		var refs = new ArrayList<CellRange>();
+		while (!stack.isEmpty()) {
+			int cell = stack.pop();
+			if (formulas.containsKey(cell) || values.containsKey(cell) || imports.containsKey(cell))
+				continue;
+
+			var parsed = ParsedValue.of(sheet, cell / cols, cell % cols);
+			switch (parsed.type) {
+				case FORMULA:
+					var formula = parsed.formula();
+					formulas.put(cell, formula);
+					refs.clear();
+					formula.references(refs);
+					for (var r : refs)
+						for (int row = Math.max(r.topRow, 0); row <= Math.min(r.botRow, rows - 1); row++)
+							for (int col = Math.max(r.topCol, 0); col <= Math.min(r.botCol, cols - 1); col++)
+								stack.push(row * cols + col);
+					break;
+				case IMPORTRANGE:
+					imports.put(cell, parsed);
+					break;
+				default:
+					values.put(cell, parsed.value);
+			}
+		}
+
+		if (!imports.isEmpty()) {
+			var prefetched = new PrefetchedSpreadsheet(sheet, imports.values());
+			for (var e : imports.entrySet())
+				values.put(e.getKey(), SheetEvaluation.importRange(prefetched, e.getValue()));
+		}
+	}
+
+	private void evaluate(int root) {
+		var stack = new ArrayDeque<Integer>();
+		stack.push(root);
+
+		var refs = new ArrayList<CellRange>();
+		while (!stack.isEmpty()) {
+			int cell = stack.peek();
+			if (values.containsKey(cell)) {
+				stack.pop();
+				continue;
+			}
+
+			var formula = pending.get(cell);
+			if (formula == null) {
+				formula = formulas.get(cell);
+				pending.put(cell, formula);
+
+				refs.clear();
+				formula.references(refs);
+				for (var range : refs)
+					for (int row = Math.max(range.topRow, 0); row <= Math.min(range.botRow, rows - 1); row++)
+						for (int col = Math.max(range.topCol, 0); col <= Math.min(range.botCol, cols - 1); col++) {
+							int ref = row * cols + col;
+							if (pending.containsKey(ref))
+								cyclic.add(cell);
+							else if (!values.containsKey(ref))
+								stack.push(ref);
+						}
+				continue;
+			}
+
+			// all references are evaluated (or part of a cycle) by now
+			stack.pop();
+			pending.remove(cell);
+			if (!cyclic.contains(cell)) {
+				refs.clear();
+				formula.references(refs);
+				for (var range : refs)
+					if (cyclic.stream().anyMatch(c -> range.contains(c / cols, c % cols)))
+						cyclic.add(cell);
+			}
+			values.put(cell, cyclic.contains(cell) ? Formula.ERROR : formula.evaluate(this));
+		}
+	}
+
+	@Override
+	public Object valueOf(int row, int col) {
+		if (row < 0 || row >= rows || col < 0 || col >= cols)
+			return "";
+		var value = values.get(row * cols + col);
+		return value == null ? Formula.ERROR : value;
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int cols() {
+		return cols;
+	}
+}
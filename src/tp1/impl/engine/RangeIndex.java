@@ -0,0 +1,121 @@
+package tp1.impl.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tp1.util.CellRange;
+
+/**
+ * Index of the formula cells referencing each multi-cell range of a sheet, finding the ranges that contain
+ * a given cell without scanning the others.
+ *
+ * Rows and columns are each split as a segment tree: a range is stored under the O(log rows * log cols)
+ * pairs of nodes that exactly cover it, and the ranges containing a cell are the ones stored under the
+ * pairs of nodes on the paths from the roots to its row and its column.
+ */
+class RangeIndex {
+
+	private final int rows, cols;
+
+	// formula cells by pair of row and column nodes
+	private final Map<Long, Set<Integer>> dependents = new HashMap<>();
+
+	RangeIndex(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+	}
+
+	void add(CellRange range, int cell) {
+		for (long key : keys(range))
+			dependents.computeIfAbsent(key, k -> new HashSet<>()).add(cell);
+	}
+
+	void remove(CellRange range, int cell) {
+		for (long key : keys(range)) {
+			var cells = dependents.get(key);
+			if (cells != null) {
+				cells.remove(cell);
+				if (cells.isEmpty())
+					dependents.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Adds the formula cells referencing a range that contains the given cell (possibly more than once).
+	 */
+	void dependentsOf(int row, int col, Collection<Integer> res) {
+		if (dependents.isEmpty() || row < 0 || row >= rows || col < 0 || col >= cols)
+			return;
+
+		var colPath = path(col, cols);
+		for (int rowNode : path(row, rows))
+			for (int colNode : colPath) {
+				var cells = dependents.get(key(rowNode, colNode));
+				if (cells != null)
+					res.addAll(cells);
+			}
+	}
+
+	private List<Long> keys(CellRange range) {
+		var keys = new ArrayList<Long>();
+		int top = Math.max(range.topRow, 0), bot = Math.min(range.botRow, rows - 1);
+		int left = Math.max(range.topCol, 0), right = Math.min(range.botCol, cols - 1);
+		if (top > bot || left > right)
+			return keys;
+
+		var rowNodes = new ArrayList<Integer>();
+		cover(1, 0, rows - 1, top, bot, rowNodes);
+		var colNodes = new ArrayList<Integer>();
+		cover(1, 0, cols - 1, left, right, colNodes);
+		for (int rowNode : rowNodes)
+			for (int colNode : colNodes)
+				keys.add(key(rowNode, colNode));
+		return keys;
+	}
+
+	/**
+	 * Adds the nodes that exactly cover [from, to], node covering [lo, hi] and its children the two halves.
+	 */
+	private static void cover(int node, int lo, int hi, int from, int to, List<Integer> nodes) {
+		if (from <= lo && hi <= to) {
+			nodes.add(node);
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		if (from <= mid)
+			cover(2 * node, lo, mid, from, to, nodes);
+		if (to > mid)
+			cover(2 * node + 1, mid + 1, hi, from, to, nodes);
+	}
+
+	/**
+	 * The nodes covering a position, from the root to its leaf.
+	 */
+	private static List<Integer> path(int pos, int size) {
+		var nodes = new ArrayList<Integer>();
+		int node = 1, lo = 0, hi = size - 1;
+		for (;;) {
+			nodes.add(node);
+			if (lo == hi)
+				return nodes;
+			int mid = (lo + hi) >>> 1;
+			if (pos <= mid) {
+				node = 2 * node;
+				hi = mid;
+			} else {
+				node = 2 * node + 1;
+				lo = mid + 1;
+			}
+		}
+	}
+
+	private static long key(int rowNode, int colNode) {
+		return (long) rowNode << 32 | colNode;
+	}
+}
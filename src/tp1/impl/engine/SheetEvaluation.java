@@ -0,0 +1,389 @@
+package tp1.impl.engine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.util.CellRange;
+
+/**
+ * Evaluation state of a spreadsheet kept by the NativeSpreadsheetEngine.
+ *
+ * Raw values are parsed once, the formula cells are ordered by their references (dependencies first) and
+ * then evaluated in that order. Formula cells that take part in (or depend on) a reference cycle evaluate
+ * to an error.
+ *
+ * The computed values are kept together with a graph of the formula references, so that a cell update only
+ * re-evaluates the formula cells that (transitively) depend on it. Cells are encoded as row * cols + col.
+ *
+ * Formula cells are evaluated by topological levels; the cells of a level are independent of each other,
+ * so large evaluations split each level among the threads of a ForkJoinPool.
+ */
+class SheetEvaluation implements Formula.Env {
+
+	// cells evaluated by each parallel task
+	private static final int LEVEL_CHUNK = 256;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(NativeSpreadsheetEngine.EVALUATION_PARALLELISM);
+
+	// the sheet (or snapshot of a sheet) evaluated, replaced by each update
+	AbstractSpreadsheet sheet;
+	final int rows, cols;
+
+	final Object[][] values;
+	final Formula[][] formulas;
+	private final String[][] texts;
+
+	// formula cells that reference a given single cell
+	private final Map<Integer, Set<Integer>> cellDependents = new HashMap<>();
+	// formula cells that reference multi-cell ranges, by the cells in those ranges
+	private final RangeIndex rangeDependents;
+	// cells holding importrange formulas
+	private final Set<Integer> imports = new HashSet<>();
+
+	SheetEvaluation(AbstractSpreadsheet sheet) throws UnsupportedFormulaException {
+		this.sheet = sheet;
+		this.rows = sheet.rows();
+		this.cols = sheet.columns();
+		this.values = new Object[rows][cols];
+		this.formulas = new Formula[rows][cols];
+		this.texts = new String[rows][cols];
+		this.rangeDependents = new RangeIndex(rows, cols);
+
+		for (int row = 0; row < rows; row++)
+			for (int col = 0; col < cols; col++)
+				load(row, col);
+		resolveImports(imports);
+	}
+
+	/**
+	 * Tests if this state was built for the given sheet and still matches its dimensions.
+	 */
+	boolean isFor(AbstractSpreadsheet sheet) {
+		return this.sheet == sheet && rows == sheet.rows() && cols == sheet.columns();
+	}
+
+	/**
+	 * Tests if the given sheet results from a single update of the sheet of this state: either the same
+	 * sheet, updated in place, or the snapshot following it.
+	 */
+	boolean precedes(AbstractSpreadsheet sheet) {
+		boolean next = this.sheet == sheet
+				|| sheet.version() > 0 && sheet.version() == this.sheet.version() + 1 && sheet.sheetId().equals(this.sheet.sheetId());
+		return next && rows == sheet.rows() && cols == sheet.columns();
+	}
+
+	/**
+	 * Parses the raw value of a cell, storing either its constant value or its formula.
+	 */
+	private void load(int row, int col) throws UnsupportedFormulaException {
+		var parsed = ParsedValue.of(sheet, row, col);
+
+		int cell = row * cols + col;
+		unindex(cell);
+		formulas[row][col] = null;
+		values[row][col] = null;
+		imports.remove(cell);
+
+		switch (parsed.type) {
+			case FORMULA -> {
+				formulas[row][col] = parsed.formula();
+				index(cell);
+			}
+			case IMPORTRANGE -> imports.add(cell);
+			default -> values[row][col] = parsed.value;
+		}
+		texts[row][col] = valueOf(row, col).toString();
+	}
+
+	/**
+	 * Computes every formula cell of the sheet.
+	 */
+	void evaluate() {
+		var cells = new ArrayList<Integer>();
+		for (int row = 0; row < rows; row++)
+			for (int col = 0; col < cols; col++)
+				if (formulas[row][col] != null)
+					cells.add(row * cols + col);
+		evaluate(cells);
+	}
+
+	/**
+	 * Moves this state to the updated sheet, reloading the cells whose raw values changed and re-evaluating
+	 * the formula cells affected by them.
+	 */
+	void update(AbstractSpreadsheet sheet, CellRange range) throws UnsupportedFormulaException {
+		this.sheet = sheet;
+
+		var cells = new ArrayList<Integer>();
+		var updatedImports = new ArrayList<Integer>();
+		for (int row = Math.max(range.topRow, 0); row <= Math.min(range.botRow, rows - 1); row++)
+			for (int col = Math.max(range.topCol, 0); col <= Math.min(range.botCol, cols - 1); col++) {
+				int cell = row * cols + col;
+				load(row, col);
+				cells.add(cell);
+				if (imports.contains(cell))
+					updatedImports.add(cell);
+			}
+		resolveImports(updatedImports);
+		evaluate(affectedBy(cells));
+	}
+
+	/**
+	 * Resolves the importrange formulas of the sheet again, re-evaluating the cells depending on those
+	 * whose imported value changed.
+	 */
+	void refreshImports() {
+		var changed = resolveImports(imports);
+		if (!changed.isEmpty())
+			evaluate(affectedBy(changed));
+	}
+
+	/**
+	 * Resolves the importrange formulas of the given cells, all fetched in parallel.
+	 * @return the cells whose value changed.
+	 */
+	private List<Integer> resolveImports(Collection<Integer> cells) {
+		var changed = new ArrayList<Integer>();
+		if (cells.isEmpty())
+			return changed;
+
+		var parsed = new ArrayList<ParsedValue>();
+		for (int cell : cells)
+			parsed.add(ParsedValue.of(sheet, cell / cols, cell % cols));
+		var prefetched = new PrefetchedSpreadsheet(sheet, parsed);
+
+		int i = 0;
+		for (int cell : cells) {
+			int row = cell / cols, col = cell % cols;
+			var value = importRange(prefetched, parsed.get(i++));
+			if (!value.equals(values[row][col])) {
+				values[row][col] = value;
+				texts[row][col] = value.toString();
+				changed.add(cell);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * The formula cells among the given cells and all the formula cells that transitively reference them.
+	 */
+	private List<Integer> affectedBy(List<Integer> changed) {
+		var affected = new HashSet<Integer>();
+		var pending = new ArrayDeque<Integer>();
+		for (int cell : changed) {
+			if (formulas[cell / cols][cell % cols] != null)
+				affected.add(cell);
+			pending.add(cell);
+		}
+
+		var dependents = new ArrayList<Integer>();
+		while (!pending.isEmpty()) {
+			int cell = pending.poll();
+
+			dependents.clear();
+			dependents.addAll(cellDependents.getOrDefault(cell, Set.of()));
+			rangeDependents.dependentsOf(cell / cols, cell % cols, dependents);
+			for (int dependent : dependents)
+				if (affected.add(dependent))
+					pending.add(dependent);
+		}
+		return new ArrayList<>(affected);
+	}
+
+	private void index(int cell) {
+		var refs = new ArrayList<CellRange>();
+		formulas[cell / cols][cell % cols].references(refs);
+		for (var range : refs) {
+			if (range.rows() == 1 && range.cols() == 1)
+				cellDependents.computeIfAbsent(range.topRow * cols + range.topCol, k -> new HashSet<>()).add(cell);
+			else
+				rangeDependents.add(range, cell);
+		}
+	}
+
+	private void unindex(int cell) {
+		var formula = formulas[cell / cols][cell % cols];
+		if (formula == null)
+			return;
+
+		var refs = new ArrayList<CellRange>();
+		formula.references(refs);
+		for (var range : refs)
+			if (range.rows() == 1 && range.cols() == 1) {
+				int ref = range.topRow * cols + range.topCol;
+				var dependents = cellDependents.get(ref);
+				if (dependents != null) {
+					dependents.remove(cell);
+					if (dependents.isEmpty())
+						cellDependents.remove(ref);
+				}
+			} else
+				rangeDependents.remove(range, cell);
+	}
+
+	/**
+	 * Computes the given formula cells, in dependency order. References to formula cells outside the
+	 * given set are read from their current values.
+	 */
+	void evaluate(List<Integer> cells) {
+		Map<Integer, Integer> ids = new HashMap<>();
+		for (int i = 0; i < cells.size(); i++)
+			ids.put(cells.get(i), i);
+
+		int[] pending = new int[cells.size()];
+		List<List<Integer>> dependents = new ArrayList<>(cells.size());
+		for (int i = 0; i < cells.size(); i++)
+			dependents.add(new ArrayList<>());
+
+		// found from the references indexed, so each cell only visits the cells that reference it
+		var found = new ArrayList<Integer>();
+		for (int i = 0; i < cells.size(); i++) {
+			int cell = cells.get(i);
+			found.clear();
+			found.addAll(cellDependents.getOrDefault(cell, Set.of()));
+			rangeDependents.dependentsOf(cell / cols, cell % cols, found);
+			for (int dependent : found) {
+				var j = ids.get(dependent);
+				if (j != null) {
+					dependents.get(i).add(j);
+					pending[j]++;
+				}
+			}
+		}
+
+		// cells are evaluated level by level, each level holding the cells whose references are all evaluated
+		var level = new ArrayList<Integer>();
+		for (int i = 0; i < cells.size(); i++)
+			if (pending[i] == 0)
+				level.add(cells.get(i));
+
+		boolean parallel = cells.size() >= NativeSpreadsheetEngine.PARALLEL_EVALUATION_CUTOFF;
+		while (!level.isEmpty()) {
+			if (parallel && level.size() > LEVEL_CHUNK)
+				pool.invoke(new LevelTask(level, 0, level.size()));
+			else
+				for (int cell : level)
+					evaluate(cell);
+
+			var next = new ArrayList<Integer>();
+			for (int cell : level)
+				for (int dependent : dependents.get(ids.get(cell)))
+					if (--pending[dependent] == 0)
+						next.add(cells.get(dependent));
+			level = next;
+		}
+
+		for (int i = 0; i < cells.size(); i++)
+			if (pending[i] > 0) {
+				int cell = cells.get(i);
+				values[cell / cols][cell % cols] = Formula.ERROR;
+				texts[cell / cols][cell % cols] = Formula.ERROR.toString();
+			}
+	}
+
+	private void evaluate(int cell) {
+		int row = cell / cols, col = cell % cols;
+		values[row][col] = formulas[row][col].evaluate(this);
+		texts[row][col] = values[row][col].toString();
+	}
+
+	/**
+	 * Evaluates a slice of a level, splitting it while it is large. Cells of the same level never reference
+	 * each other, so they only read values computed by previous levels.
+	 */
+	private class LevelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final List<Integer> level;
+		final int from, to;
+
+		LevelTask(List<Integer> level, int from, int to) {
+			this.level = level;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LEVEL_CHUNK) {
+				for (int i = from; i < to; i++)
+					evaluate(level.get(i));
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new LevelTask(level, from, mid), new LevelTask(level, mid, to));
+			}
+		}
+	}
+
+	@Override
+	public Object valueOf(int row, int col) {
+		if (row < 0 || row >= rows || col < 0 || col >= cols)
+			return "";
+		var value = values[row][col];
+		return value == null ? Formula.ERROR : value;
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int cols() {
+		return cols;
+	}
+
+	/**
+	 * A copy of the computed values, in the textual form produced by the GemBox engine.
+	 */
+	String[][] results() {
+		var cells = new String[rows][];
+		for (int row = 0; row < rows; row++)
+			cells[row] = texts[row].clone();
+		return cells;
+	}
+
+	/**
+	 * A copy of the computed values of a range of cells.
+	 */
+	String[][] results(CellRange range) {
+		var cells = new String[range.rows()][range.cols()];
+		for (int r = 0; r < range.rows(); r++)
+			for (int c = 0; c < range.cols(); c++) {
+				int row = range.topRow + r, col = range.topCol + c;
+				cells[r][c] = row < rows && col < cols ? texts[row][col] : "";
+			}
+		return cells;
+	}
+
+	/**
+	 * Resolves an importrange formula. The GemBox engine copies the imported values into the worksheet
+	 * starting at the formula cell, but every cell after it is then overwritten by its own raw value,
+	 * so only the first imported value is kept.
+	 */
+	static Object importRange(AbstractSpreadsheet sheet, ParsedValue parsed) {
+		if (parsed.importURL == null)
+			return Formula.ERROR;
+
+		var imported = sheet.rangeValues(parsed.importURL, parsed.importRange);
+		if (imported == null || imported.length == 0 || imported[0].length == 0)
+			return Formula.ERROR;
+
+		return imported[0][0] == null ? "" : constant(imported[0][0]);
+	}
+
+	static Object constant(String rawVal) {
+		var parsed = ParsedValue.of(rawVal);
+		return parsed.value == null ? rawVal : parsed.value;
+	}
+}
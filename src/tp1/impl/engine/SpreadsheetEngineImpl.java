@@ -56,14 +56,15 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 	
 	
 	public String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet) {
+		sheet = new PrefetchedSpreadsheet(sheet);
+
 		ExcelFile workbook = new ExcelFile();
 		ExcelWorksheet worksheet = workbook.addWorksheet(sheet.sheetId());
 
 		for (int i = 0; i < sheet.rows(); i++)
 			for (int j = 0; j < sheet.columns(); j++) {
-				String rawVal = sheet.cellRawValue(i, j);
 				ExcelCell cell = worksheet.getCell(i, j);
-				setCell(sheet, worksheet, cell, rawVal);
+				setCell(sheet, worksheet, cell, ParsedValue.of(sheet, i, j));
 			}
 
 //		try {
@@ -86,22 +87,15 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 	
 	enum CellType { EMPTY, BOOLEAN, NUMBER, IMPORTRANGE, TEXT, FORMULA };
 	
-	static void setCell( AbstractSpreadsheet sheet, ExcelWorksheet worksheet, ExcelCell cell, String rawVal ) {
-		CellType type = parseRawValue( rawVal );
-
-		switch (type) {
-			case BOOLEAN -> cell.setValue(Boolean.parseBoolean(rawVal));
-			case NUMBER -> cell.setValue(Double.parseDouble(rawVal));
-			case FORMULA -> cell.setFormula(rawVal);
-			case TEXT, EMPTY -> cell.setValue(rawVal);
+	static void setCell( AbstractSpreadsheet sheet, ExcelWorksheet worksheet, ExcelCell cell, ParsedValue parsed ) {
+		switch (parsed.type) {
+			case BOOLEAN, NUMBER, TEXT, EMPTY -> cell.setValue(parsed.value);
+			case FORMULA -> cell.setFormula(parsed.rawVal);
 			case IMPORTRANGE -> {
-				var matcher = IMPORTRANGE_PATTERN.matcher(rawVal);
-				if (matcher.matches()) {
-					var sheetUrl = matcher.group(1);
-					var range = matcher.group(2);
-					var values = sheet.rangeValues(sheetUrl, range);
+				if (parsed.importURL != null) {
+					var values = sheet.rangeValues(parsed.importURL, parsed.importRange);
 					if (values != null)
-						applyRange(worksheet, cell, new CellRange(range), values);
+						applyRange(worksheet, cell, new CellRange(parsed.importRange), values);
 					else
 						cell.setValue(ERROR);
 				}
@@ -116,7 +110,7 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 		for (int r = 0; r < range.rows(); r++)
 			for (int c = 0; c < range.cols(); c++) {
 				var cell = worksheet.getCell(row0 + r, col0 + c);
-				setCell(null, worksheet, cell, values[r][c]);
+				setCell(null, worksheet, cell, ParsedValue.of(values[r][c]));
 			}
 	}
 
@@ -132,13 +126,19 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 		if (rawVal.equals("true") || rawVal.equals("false"))
 			return CellType.BOOLEAN;
 
-		try {
-			Double.parseDouble(rawVal);
-			return CellType.NUMBER;
-		} catch (Exception x) {
-		}
-		return CellType.TEXT;
+		return NUMBER_PATTERN.matcher(rawVal).matches() ? CellType.NUMBER : CellType.TEXT;
 	}
+
+	// the syntax accepted by Double.parseDouble (see Double.valueOf), except NaN and Infinity which never match
+	// once lower-cased, so that numbers are recognized without relying on exceptions
+	private static final String DIGITS = "\\p{Digit}+";
+	private static final String HEX_DIGITS = "\\p{XDigit}+";
+	private static final String EXP = "[eE][+-]?" + DIGITS;
+	private static final Pattern NUMBER_PATTERN = Pattern.compile("[\\x00-\\x20]*[+-]?(("
+			+ "(" + DIGITS + "(\\.)?(" + DIGITS + ")?(" + EXP + ")?)|"
+			+ "(\\.(" + DIGITS + ")(" + EXP + ")?)|"
+			+ "(((0[xX]" + HEX_DIGITS + "(\\.)?)|(0[xX](" + HEX_DIGITS + ")?(\\.)" + HEX_DIGITS + "))[pP][+-]?" + DIGITS + ")"
+			+ ")[fFdD]?)[\\x00-\\x20]*");
 	
 	static {
 		SpreadsheetInfo.setLicense("FREE-LIMITED-KEY");
@@ -146,5 +146,5 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 	
 	private static final String URL_REGEX = "(.+)";
 	private static final String IMPORTRANGE_FORMULA = "=importrange";
-	private static final Pattern IMPORTRANGE_PATTERN = Pattern.compile(String.format("=importrange\\(\"%s\",\"(%s)\"\\)", URL_REGEX, CellRange.RANGE_REGEX));
+	static final Pattern IMPORTRANGE_PATTERN = Pattern.compile(String.format("=importrange\\(\"%s\",\"(%s)\"\\)", URL_REGEX, CellRange.RANGE_REGEX));
 }
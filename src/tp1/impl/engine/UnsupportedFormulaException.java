@@ -0,0 +1,13 @@
+package tp1.impl.engine;
+
+/**
+ * Thrown by the FormulaParser when a formula uses syntax or functions the native engine cannot evaluate.
+ */
+public class UnsupportedFormulaException extends Exception {
+
+	public UnsupportedFormulaException(String msg) {
+		super(msg);
+	}
+
+	private static final long serialVersionUID = 3516810749023571648L;
+}
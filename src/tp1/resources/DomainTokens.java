@@ -0,0 +1,85 @@
+package tp1.resources;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *
+ * Tokens by which the servers of a domain authenticate the calls they make to each other on their own behalf,
+ * rather than on behalf of a user. They are signed with the secret the servers of the domain share to replicate
+ * (SpreadsheetReplication.SECRET_PROPERTY), name the operation and the user they allow it on, and expire.
+ *
+ */
+final class DomainTokens {
+
+	// deleting the sheets of a user removed by the users service
+	public final static String DELETE_USER_SPREADSHEETS = "deleteUserSpreadsheets";
+	// discarding the cached verifications of a user updated or removed by the users service
+	public final static String INVALIDATE_USER_CREDENTIALS = "invalidateUserCredentials";
+
+	// how long a token is accepted once issued, which also covers the clock skew between the servers
+	public final static long TOKEN_TTL = 60000;
+
+	private final static String MAC_ALGORITHM = "HmacSHA256";
+
+	private DomainTokens() {
+	}
+
+	private static byte[] key() {
+		String secret = System.getProperty(SpreadsheetReplication.SECRET_PROPERTY);
+		return secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a token allowing an operation on the given user, or null if no secret is set
+	 */
+	static String issue(String operation, String userId) {
+		return issue(operation, userId, System.currentTimeMillis());
+	}
+
+	static String issue(String operation, String userId, long issuedAt) {
+		byte[] key = key();
+		if (key == null)
+			return null;
+		return issuedAt + "-" + mac(key, operation, userId, issuedAt);
+	}
+
+	/**
+	 * @return true if the token was issued, not long ago, by a server holding the secret of this one, for the
+	 * given operation on the given user
+	 */
+	static boolean verify(String token, String operation, String userId) {
+		byte[] key = key();
+		if (key == null || token == null || userId == null)
+			return false;
+
+		int sep = token.indexOf('-');
+		long issuedAt;
+		try {
+			issuedAt = Long.parseLong(token.substring(0, Math.max(sep, 0)));
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (Math.abs(System.currentTimeMillis() - issuedAt) > TOKEN_TTL)
+			return false;
+
+		byte[] expected = mac(key, operation, userId, issuedAt).getBytes(StandardCharsets.UTF_8);
+		return MessageDigest.isEqual(expected, token.substring(sep + 1).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String mac(byte[] key, String operation, String userId, long issuedAt) {
+		try {
+			var mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+			byte[] signed = String.join("\n", operation, userId, Long.toString(issuedAt)).getBytes(StandardCharsets.UTF_8);
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(signed));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
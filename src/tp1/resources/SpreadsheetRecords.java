@@ -0,0 +1,204 @@
+package tp1.resources;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tp1.api.Spreadsheet;
+import tp1.util.CellRange;
+import tp1.util.CellStore;
+import tp1.util.WriteAheadLog;
+
+import static tp1.util.WriteAheadLog.readString;
+import static tp1.util.WriteAheadLog.writeString;
+
+/**
+ *
+ * Encoding of the mutations of the sheets as the records of the WriteAheadLog and of the ReplicationLog, and of
+ * the whole state as their snapshots.
+ *
+ * Records are idempotent, so that replaying them over a snapshot that already reflects them is harmless.
+ *
+ */
+class SpreadsheetRecords {
+
+	// types of the records of the log
+	private final static byte CREATED = 0, DELETED = 1, CELL_UPDATED = 2, RANGE_UPDATED = 3, SHARED = 4, UNSHARED = 5;
+
+	/**
+	 * Applies the mutations replayed from the records. Records of sheets that no longer exist are ignored.
+	 */
+	interface Replica {
+		void created(Spreadsheet sheet);
+
+		void deleted(String sheetId);
+
+		void cellUpdated(String sheetId, int row, int col, String rawValue);
+
+		void rangeUpdated(String sheetId, CellRange range, String[][] rawValues);
+
+		void shared(String sheetId, String userId);
+
+		void unshared(String sheetId, String userId);
+	}
+
+	private SpreadsheetRecords() {
+	}
+
+	static WriteAheadLog.Writer created(Spreadsheet sheet) {
+		return record(CREATED, sheet.getSheetId(), out -> writeSheet(out, sheet));
+	}
+
+	static WriteAheadLog.Writer deleted(String sheetId) {
+		return record(DELETED, sheetId, out -> {});
+	}
+
+	static WriteAheadLog.Writer cellUpdated(String sheetId, int row, int col, String rawValue) {
+		return record(CELL_UPDATED, sheetId, out -> {
+			out.writeInt(row);
+			out.writeInt(col);
+			writeString(out, rawValue);
+		});
+	}
+
+	static WriteAheadLog.Writer rangeUpdated(String sheetId, String range, String[][] rawValues) {
+		return record(RANGE_UPDATED, sheetId, out -> {
+			writeString(out, range);
+			for (var values : rawValues)
+				for (var value : values)
+					writeString(out, value);
+		});
+	}
+
+	static WriteAheadLog.Writer shared(String sheetId, String userId) {
+		return record(SHARED, sheetId, out -> writeString(out, userId));
+	}
+
+	static WriteAheadLog.Writer unshared(String sheetId, String userId) {
+		return record(UNSHARED, sheetId, out -> writeString(out, userId));
+	}
+
+	private static WriteAheadLog.Writer record(byte op, String sheetId, WriteAheadLog.Writer payload) {
+		return out -> {
+			out.writeByte(op);
+			writeString(out, sheetId);
+			payload.write(out);
+		};
+	}
+
+	static void replay(DataInputStream in, Replica replica) throws IOException {
+		byte op = in.readByte();
+		String sheetId = readString(in);
+
+		switch (op) {
+			case CREATED:
+				replica.created(readSheet(in, sheetId));
+				break;
+			case DELETED:
+				replica.deleted(sheetId);
+				break;
+			case CELL_UPDATED:
+				int row = in.readInt(), col = in.readInt();
+				replica.cellUpdated(sheetId, row, col, readString(in));
+				break;
+			case RANGE_UPDATED:
+				var range = new CellRange(readString(in));
+				var rawValues = new String[range.rows()][range.cols()];
+				for (var values : rawValues)
+					for (int c = 0; c < values.length; c++)
+						values[c] = readString(in);
+				replica.rangeUpdated(sheetId, range, rawValues);
+				break;
+			case SHARED:
+				replica.shared(sheetId, readString(in));
+				break;
+			case UNSHARED:
+				replica.unshared(sheetId, readString(in));
+				break;
+			default:
+				throw new IOException("Unknown log record " + op);
+		}
+	}
+
+	/**
+	 * Writes every sheet still in the map, each holding its lock.
+	 */
+	static void writeSnapshot(DataOutputStream out, Map<String, Spreadsheet> spreadsheets) throws IOException {
+		for (Spreadsheet sheet : spreadsheets.values())
+			synchronized (sheet) {
+				if (spreadsheets.get(sheet.getSheetId()) != sheet)
+					continue;
+				out.writeBoolean(true);
+				writeString(out, sheet.getSheetId());
+				writeSheet(out, sheet);
+			}
+		out.writeBoolean(false);
+	}
+
+	static Map<String, Spreadsheet> readSnapshot(DataInputStream in) throws IOException {
+		var spreadsheets = new HashMap<String, Spreadsheet>();
+		while (in.readBoolean()) {
+			String sheetId = readString(in);
+			spreadsheets.put(sheetId, readSheet(in, sheetId));
+		}
+		return spreadsheets;
+	}
+
+	/**
+	 * Writes a sheet compactly, with only its non-null cells.
+	 */
+	private static void writeSheet(DataOutputStream out, Spreadsheet sheet) throws IOException {
+		var snapshot = sheet.snapshot();
+		writeString(out, sheet.getOwner());
+		writeString(out, sheet.getSheetURL());
+		out.writeInt(sheet.getRows());
+		out.writeInt(sheet.getColumns());
+		out.writeLong(snapshot.version());
+
+		out.writeInt(sheet.getSharedWith().size());
+		for (String userId : sheet.getSharedWith())
+			writeString(out, userId);
+
+		snapshot.forEachCellRawValue((row, col, rawValue) -> {
+			out.writeInt(row);
+			out.writeInt(col);
+			writeString(out, rawValue);
+		});
+		out.writeInt(-1);
+	}
+
+	private static Spreadsheet readSheet(DataInputStream in, String sheetId) throws IOException {
+		String owner = readString(in);
+		String sheetURL = readString(in);
+		int rows = in.readInt(), columns = in.readInt();
+		long version = in.readLong();
+
+		Set<String> sharedWith = ConcurrentHashMap.newKeySet();
+		for (int i = in.readInt(); i > 0; i--)
+			sharedWith.add(readString(in));
+
+		// cells come row by row, each row written to the store at once
+		var cells = CellStore.empty(rows, columns);
+		String[][] rowValues = null;
+		int lastRow = -1;
+		for (int row = in.readInt(); row >= 0; row = in.readInt()) {
+			if (row != lastRow) {
+				if (rowValues != null)
+					cells = cells.with(lastRow, 0, rowValues);
+				rowValues = new String[1][columns];
+				lastRow = row;
+			}
+			rowValues[0][in.readInt()] = readString(in);
+		}
+		if (rowValues != null)
+			cells = cells.with(lastRow, 0, rowValues);
+
+		var sheet = new Spreadsheet(sheetId, owner, sheetURL, rows, columns, sharedWith, CellStore.fit(cells));
+		sheet.setVersion(version);
+		return sheet;
+	}
+}
@@ -0,0 +1,266 @@
+package tp1.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import tp1.api.service.util.Result;
+import tp1.clients.sheet.SpreadsheetClient;
+import tp1.discovery.Discovery;
+import tp1.util.ReplicationLog;
+import tp1.util.WriteAheadLog;
+
+/**
+ *
+ * Replication of the sheets of the shard of a server: as the primary of the shard, streams the mutations to the
+ * backups announced; as a backup, applies the batches streamed by the primary, and takes over once the primary
+ * goes silent.
+ *
+ * Primaries are ordered by term and then by uri, so that backups taking over at the same time agree on one.
+ *
+ * The servers of a domain authenticate the batches they replicate with a secret they share, without which
+ * a primary does not stream to backups, and a backup refuses every batch.
+ *
+ */
+class SpreadsheetReplication {
+
+	// how long a backup waits to hear from the primary before taking over, times its rank among the backups;
+	// longer than ReplicationLog.LEASE_TIMEOUT, so that the primary stops taking mutations first
+	public final static long FAILOVER_TIMEOUT = 5000;
+
+	// shared by the servers of the domain to authenticate the batches (-Dtp1.replication.secret=s)
+	public final static String SECRET_PROPERTY = "tp1.replication.secret";
+
+	private static Logger Log = Logger.getLogger(SpreadsheetReplication.class.getName());
+
+	private final Discovery discovery;
+	private final String serverURI, shard;
+	// log of the state replicated, or null if it is not durable
+	private final WriteAheadLog log;
+	private final WriteAheadLog.Writer snapshotState;
+	private final WriteAheadLog.Reader installSnapshot, replayRecord;
+	// the key of the batches, or null if no secret is set
+	private final byte[] key;
+
+	// changed holding the lock of this, as are the fields below, which are only read holding it
+	private volatile boolean primary;
+	private volatile ReplicationLog replication;
+	private long term;
+	// as a backup: the primary followed, the last record applied, when the primary was last heard from,
+	// and the position of this server among the backups taking over (-1 if it is not in sync)
+	private String following;
+	private long applied = -1;
+	private long lastContact;
+	private int failoverRank = -1;
+	// the number of the last batch applied from the primary followed
+	private long lastBatch;
+
+	/**
+	 * @param serverURI - the uri of this server
+	 * @param primaryURI - the primary to back up, or null to be the primary of the shard named after this server
+	 * @param log - the log of the state, or null if it is not durable
+	 * @param snapshotState - writes the whole state, to be installed by the backups
+	 * @param installSnapshot - replaces the whole state with a snapshot of the primary
+	 * @param replayRecord - applies a record of the primary
+	 */
+	SpreadsheetReplication(Discovery discovery, String serverURI, String primaryURI, WriteAheadLog log,
+			WriteAheadLog.Writer snapshotState, WriteAheadLog.Reader installSnapshot, WriteAheadLog.Reader replayRecord) {
+		this.discovery = discovery;
+		this.serverURI = serverURI;
+		this.shard = primaryURI == null ? serverURI : primaryURI;
+		this.log = log;
+		this.snapshotState = snapshotState;
+		this.installSnapshot = installSnapshot;
+		this.replayRecord = replayRecord;
+
+		String secret = System.getProperty(SECRET_PROPERTY);
+		this.key = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+		if (key == null)
+			Log.warning(String.format("No %s set, the sheets of %s are not replicated\n", SECRET_PROPERTY, shard));
+	}
+
+	void start(boolean asPrimary) {
+		synchronized (this) {
+			if (asPrimary)
+				becomePrimary(0);
+			else
+				becomeBackup();
+		}
+
+		var t = new Thread(this::monitor);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	boolean isPrimary() {
+		return primary;
+	}
+
+	/**
+	 * Tests if this server may take mutations: it is the primary, and the backups that may take over
+	 * replied recently enough that none of them took over yet.
+	 */
+	boolean isWritable() {
+		var replication = this.replication;
+		return primary && replication != null && replication.holdsLease();
+	}
+
+	/**
+	 * @return the stream of the mutations to the backups, or null if this server is not the primary
+	 */
+	ReplicationLog stream() {
+		return replication;
+	}
+
+	/**
+	 * Streams the sheets to the backups announced, steps down once a primary of a later term is announced,
+	 * and takes over once the primary was not heard from for FAILOVER_TIMEOUT, times the rank of this backup.
+	 */
+	private void monitor() {
+		for (;;) {
+			try {
+				Thread.sleep(ReplicationLog.HEARTBEAT_PERIOD);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			synchronized (this) {
+				var replicas = discovery.getSpreadsheetReplicas(shard);
+				if (primary) {
+					if (replicas != null && replicas.term() > term) {
+						Log.warning(String.format("Primary of %s with a later term announced, stepping down\n", shard));
+						becomeBackup();
+					} else if (replicas != null && key != null) {
+						for (String backup : replicas.backups())
+							if (!backup.equals(serverURI))
+								replication.addBackup(backup);
+					}
+				} else if (failoverRank >= 0 && applied >= 0 && System.currentTimeMillis() - lastContact > FAILOVER_TIMEOUT * (failoverRank + 1)) {
+					Log.warning(String.format("Primary %s of %s silent, taking over\n", following, shard));
+					becomePrimary(term + 1);
+				}
+			}
+		}
+	}
+
+	// must be called holding the lock
+	private void becomePrimary(long term) {
+		this.term = term;
+		following = null;
+		failoverRank = -1;
+		replication = new ReplicationLog(shard, serverURI, term, key, snapshotState, this::sendBatch, this::deposed);
+		primary = true;
+		discovery.announce(SpreadsheetClient.SERVICE, shard, term);
+	}
+
+	// must be called holding the lock
+	private void becomeBackup() {
+		primary = false;
+		if (replication != null)
+			replication.close();
+		replication = null;
+		following = null;
+		applied = -1;
+		failoverRank = -1;
+		discovery.announce(SpreadsheetClient.BACKUP_SERVICE, shard, term);
+	}
+
+	private synchronized void deposed() {
+		if (primary && replication != null && replication.isClosed())
+			becomeBackup();
+	}
+
+	private long sendBatch(String backup, byte[] batch) throws Exception {
+		var replicas = discovery.getSpreadsheetReplicas(shard);
+		var client = replicas == null ? null : replicas.backup(backup);
+		if (client == null)
+			throw new IllegalStateException("No longer a backup: " + backup);
+
+		Result<Long> result = client.replicate(batch);
+		if (result.error() == Result.ErrorCode.CONFLICT)
+			throw new ReplicationLog.DeposedException();
+		return result.value();
+	}
+
+	/**
+	 * Applies a batch streamed by the primary, once authenticated, stepping down first if this server was the
+	 * primary of an earlier term.
+	 * @return the sequence number of the last record applied, or -1 if a snapshot is needed
+	 * @throws SecurityException if the batch was not authenticated with the secret of the domain
+	 * @throws IllegalArgumentException if the batch is malformed, of another shard, or was already applied
+	 * @throws ReplicationLog.DeposedException if the batch comes from a primary that was replaced
+	 * @throws IOException if the batch could not be applied
+	 */
+	synchronized long apply(byte[] batch) throws ReplicationLog.DeposedException, IOException {
+		if (key == null)
+			throw new SecurityException("No " + SECRET_PROPERTY + " set");
+
+		ReplicationLog.Batch b;
+		try {
+			b = ReplicationLog.Batch.decode(batch, key);
+		} catch (IOException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IllegalArgumentException("Malformed batch", e);
+		}
+		if (!shard.equals(b.shard))
+			throw new IllegalArgumentException("Not a backup of " + b.shard);
+
+		int order = compareTerms(b.term, b.primary, term, primary ? serverURI : following);
+		if (order < 0 || (primary && order == 0))
+			throw new ReplicationLog.DeposedException();
+		if (order == 0 && b.number <= lastBatch)
+			throw new IllegalArgumentException("Batch " + b.number + " of " + b.primary + " already applied");
+		if (primary) {
+			Log.warning(String.format("Primary %s of %s with a later term found, stepping down\n", b.primary, shard));
+			becomeBackup();
+		}
+		if (order > 0) {
+			term = b.term;
+			following = b.primary;
+			applied = -1;
+		}
+		lastBatch = b.number;
+		lastContact = System.currentTimeMillis();
+		failoverRank = b.backups.indexOf(serverURI);
+
+		try {
+			if (b.snapshot != null) {
+				installSnapshot.read(new DataInputStream(new ByteArrayInputStream(b.snapshot)));
+				applied = b.firstSeq - 1;
+				if (log != null)
+					log.snapshot();
+			} else if (applied >= 0) {
+				long logSeq = 0;
+				for (int i = 0; i < b.records.size(); i++) {
+					long seq = b.firstSeq + i;
+					if (seq <= applied)
+						continue;
+					if (seq > applied + 1)
+						break;
+
+					byte[] record = b.records.get(i);
+					replayRecord.read(new DataInputStream(new ByteArrayInputStream(record)));
+					if (log != null)
+						logSeq = log.append(out -> out.write(record));
+					applied = seq;
+				}
+				if (logSeq > 0)
+					log.await(logSeq);
+			}
+		} catch (IOException e) {
+			applied = -1;
+			failoverRank = -1;
+			throw e;
+		}
+		return applied;
+	}
+
+	private static int compareTerms(long term, String primary, long otherTerm, String otherPrimary) {
+		if (term != otherTerm)
+			return Long.compare(term, otherTerm);
+		if (primary == null || otherPrimary == null)
+			return primary == null ? (otherPrimary == null ? 0 : -1) : 1;
+		return primary.compareTo(otherPrimary);
+	}
+}
@@ -3,10 +3,14 @@ package tp1.resources;
 import jakarta.inject.Singleton;
 import jakarta.jws.WebService;
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.tuple.Pair;
 import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
 import tp1.api.User;
+import tp1.api.VersionedSpreadsheet;
+import tp1.api.VersionedValues;
 import tp1.api.engine.SpreadsheetEngine;
 import tp1.api.service.rest.RestSpreadsheets;
 import tp1.api.service.soap.SheetsException;
@@ -17,15 +21,28 @@ import tp1.clients.sheet.SpreadsheetClient;
 
 import tp1.clients.user.UsersClient;
 import tp1.discovery.Discovery;
-import tp1.impl.engine.SpreadsheetEngineImpl;
+import tp1.impl.engine.NativeSpreadsheetEngine;
 import tp1.server.WebServiceType;
+import tp1.util.BoundedCache;
 import tp1.util.Cell;
 import tp1.util.CellRange;
 import tp1.util.InvalidCellIdException;
+import tp1.util.ReplicationLog;
+import tp1.util.WriteAheadLog;
 
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
 
 import static tp1.server.WebServiceType.SOAP;
 
@@ -41,29 +58,144 @@ public class SpreadsheetResource implements RestSpreadsheets, SoapSpreadsheets {
 
 	private final Map<String, Spreadsheet> spreadsheets;
 	private final Map<String, Set<String>> spreadsheetOwners;
+	// ids of the sheets shared with each user, by userId@domain
+	private final Map<String, Set<String>> sharedSpreadsheets;
 
 	private final SpreadsheetEngine engine;
 
+	// change log of the domain: the latest change of each sheet, by version. Deleted sheets stay in the
+	// log as tombstones, so that clients learn about the deletion
+	private final long epoch;
+	private long changeVersion;
+	private final NavigableMap<Long, String> changeLog;
+	private final Map<String, Long> lastChanges;
+
+	private final BoundedCache<String, ComputedValues> valuesCache;
+
+	// users recently verified against the users service, by userId
+	private final BoundedCache<String, VerifiedUser> credentialsCache;
+	// incremented whenever the credentials of a user are invalidated, so that racing verifications are not kept
+	private final Map<String, Long> credentialsGenerations;
+
 	private final WebServiceType type;
 
+	// log of the mutations of the sheets, or null if the state is not durable
+	private WriteAheadLog log;
+
+	// replication of the sheets of the shard of this server, to its backups or from its primary, or null if
+	// the sheets are not replicated
+	private volatile SpreadsheetReplication replication;
+
+	public final static int VALUES_CACHE_SIZE = 1000;
+	public final static long VALUES_CACHE_IDLE_TIME = 60000;
+
+	public final static int CREDENTIALS_CACHE_SIZE = 10000;
+	// verifications are reused for at most this long, even if no invalidation arrives
+	public final static long CREDENTIALS_TTL = 10000;
+
+	public final static long SNAPSHOT_THRESHOLD = 10000;
+
+	// longest time a long-poll for changes is held before replying without changes
+	public final static long MAX_CHANGES_WAIT = 30000;
+
+	private static Logger Log = Logger.getLogger(SpreadsheetResource.class.getName());
+
+	private static class ComputedValues {
+		final long version;
+		final String[][] values;
+
+		ComputedValues(long version, String[][] values) {
+			this.version = version;
+			this.values = values;
+		}
+	}
+
+	// a mutation appended to the log and to the replication stream, to wait for before replying
+	private static class LoggedRecord {
+		static final LoggedRecord NONE = new LoggedRecord(0, null, 0);
+
+		final long logSeq;
+		final ReplicationLog replication;
+		final long replicationSeq;
+
+		LoggedRecord(long logSeq, ReplicationLog replication, long replicationSeq) {
+			this.logSeq = logSeq;
+			this.replication = replication;
+			this.replicationSeq = replicationSeq;
+		}
+	}
+
+	private static class VerifiedUser {
+		final String passwordHash;
+		final User user;
+		final long verifiedAt;
+
+		VerifiedUser(String passwordHash, User user) {
+			this.passwordHash = passwordHash;
+			this.user = user;
+			this.verifiedAt = System.currentTimeMillis();
+		}
+	}
+
 	private static Discovery discovery;
 
 	public SpreadsheetResource(String domainId, WebServiceType type) {
 		this.domainId = domainId;
 		this.type = type;
-		this.spreadsheets = new HashMap<>();
-		this.spreadsheetOwners = new HashMap<>();
-		this.engine = SpreadsheetEngineImpl.getInstance();
+		this.spreadsheets = new ConcurrentHashMap<>();
+		this.spreadsheetOwners = new ConcurrentHashMap<>();
+		this.sharedSpreadsheets = new ConcurrentHashMap<>();
+		this.engine = NativeSpreadsheetEngine.getInstance();
+		this.epoch = new Random().nextLong();
+		this.changeLog = new ConcurrentSkipListMap<>();
+		this.lastChanges = new HashMap<>();
+		this.valuesCache = new BoundedCache<>(VALUES_CACHE_SIZE, VALUES_CACHE_IDLE_TIME);
+		this.credentialsCache = new BoundedCache<>(CREDENTIALS_CACHE_SIZE, CREDENTIALS_TTL);
+		this.credentialsGenerations = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Creates a resource whose state is logged to the given directory, recovering the state logged there
+	 * by previous executions.
+	 */
+	public SpreadsheetResource(String domainId, WebServiceType type, Path dataDir, WriteAheadLog.FsyncPolicy fsync) throws IOException {
+		this(domainId, type);
+
+		var wal = new WriteAheadLog(dataDir, fsync, SNAPSHOT_THRESHOLD, this::writeSnapshot);
+		wal.recover(this::readSnapshot, this::replayRecord);
+
+		for (Spreadsheet sheet : spreadsheets.values()) {
+			indexSpreadsheet(sheet);
+			recordChange(sheet.getSheetId());
+		}
+		this.log = wal;
 	}
 
 	public static void setDiscovery(Discovery discovery) {
 		SpreadsheetResource.discovery = discovery;
 	}
 
+	/**
+	 * Starts replicating the sheets of the shard of this server, either as the primary of the shard named
+	 * after it, or as a backup of the shard of a given primary. Must be called once discovery is set.
+	 * @param serverURI - the uri of this server
+	 * @param primaryURI - the primary to back up, or null to be a primary
+	 */
+	public void startReplication(String serverURI, String primaryURI) {
+		var replication = new SpreadsheetReplication(discovery, serverURI, primaryURI, log,
+				this::writeSnapshot, this::installSnapshot, this::replayRecord);
+		this.replication = replication;
+		replication.start(primaryURI == null);
+	}
+
 	public static SpreadsheetClient getRemoteSpreadsheetClient(String domainId) {
 		return discovery.getSpreadsheetClient(domainId);
 	}
 
+	private static boolean ownsSpreadsheet(String sheetId) {
+		return discovery == null || discovery.ownsSpreadsheet(sheetId);
+	}
+
 	private UsersClient getLocalUsersClient() {
 		return discovery.getUserClient(domainId);
 	}
@@ -75,72 +207,382 @@ public class SpreadsheetResource implements RestSpreadsheets, SoapSpreadsheets {
 			throw new WebApplicationException(status);
 	}
 
+	/**
+	 * Records a change of a sheet (including its creation or deletion) in the change log, replacing the
+	 * previous change of the same sheet.
+	 */
+	private void recordChange(String sheetId) {
+		synchronized (changeLog) {
+			long version = ++changeVersion;
+			var previous = lastChanges.put(sheetId, version);
+			if (previous != null)
+				changeLog.remove(previous);
+			changeLog.put(version, sheetId);
+
+			// wakes the long-polls waiting for changes
+			changeLog.notifyAll();
+		}
+	}
 
+	/**
+	 * Appends a mutation of a sheet to the log and streams it to the backups. Must be called holding the lock
+	 * of the sheet, after mutating it.
+	 * @param replication - the stream checked by checkPrimary, which fails the wait once this server stepped down
+	 * @return the record, to wait for with awaitRecord before replying
+	 */
+	private LoggedRecord logRecord(ReplicationLog replication, WriteAheadLog.Writer record) {
+		return new LoggedRecord(log == null ? 0 : log.append(record),
+				replication, replication == null ? 0 : replication.append(record));
+	}
 
-	@Override
-	public String createSpreadsheet(Spreadsheet sheet, String password) throws SheetsException {
+	private void awaitRecord(LoggedRecord record) throws SheetsException {
+		if (log != null && record.logSeq > 0) {
+			try {
+				log.await(record.logSeq);
+			} catch (IOException e) {
+				Log.severe("Failed to log a mutation: " + e.getMessage());
+				throwWebAppException(type, Response.Status.INTERNAL_SERVER_ERROR);
+			}
+		}
 
-		if( sheet == null || password == null)
-			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		if (record.replication != null) {
+			try {
+				record.replication.await(record.replicationSeq);
+			} catch (IOException e) {
+				// replaced as primary, or not applied by the backups before the lease expired: the mutation may be
+				// lost with the state of this server, so let the client retry it
+				Log.warning("Failed to replicate a mutation: " + e.getMessage());
+				throwWebAppException(type, Response.Status.SERVICE_UNAVAILABLE);
+			}
+		}
+	}
 
-		if (sheet.getColumns() <= 0 || sheet.getRows() <= 0)
+	/**
+	 * Refuses mutations at backups, and at a primary that lost touch with the backups that may take over,
+	 * so that clients retry them at the primary.
+	 * @return the stream to the backups the mutation must be appended to, or null if the sheets are not replicated
+	 */
+	private ReplicationLog checkPrimary() throws SheetsException {
+		var replication = this.replication;
+		if (replication == null)
+			return null;
+
+		var stream = replication.stream();
+		if (stream == null || !replication.isWritable())
+			throwWebAppException(type, Response.Status.SERVICE_UNAVAILABLE);
+		return stream;
+	}
+
+	private void replayRecord(DataInputStream in) throws IOException {
+		SpreadsheetRecords.replay(in, new Replay());
+	}
+
+	/**
+	 * Applies the records replayed from the log or streamed by the primary.
+	 */
+	private class Replay implements SpreadsheetRecords.Replica {
+
+		@Override
+		public void created(Spreadsheet created) {
+			Spreadsheet sheet = spreadsheets.get(created.getSheetId());
+			if (sheet != null)
+				forgetSpreadsheet(sheet);
+			spreadsheets.put(created.getSheetId(), created);
+			indexSpreadsheet(created);
+			recordChange(created.getSheetId());
+		}
+
+		@Override
+		public void deleted(String sheetId) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				synchronized (sheet) {
+					spreadsheets.remove(sheetId, sheet);
+					forgetSpreadsheet(sheet);
+				}
+			recordChange(sheetId);
+		}
+
+		@Override
+		public void cellUpdated(String sheetId, int row, int col, String rawValue) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				synchronized (sheet) {
+					var next = sheet.withCellRawValue(row, col, rawValue);
+					engine.cellUpdated(next, row, col);
+					sheet.publish(next);
+				}
+			recordChange(sheetId);
+		}
+
+		@Override
+		public void rangeUpdated(String sheetId, CellRange range, String[][] rawValues) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				synchronized (sheet) {
+					var next = sheet.withCellRawValues(range, rawValues);
+					engine.rangeUpdated(next, range);
+					sheet.publish(next);
+				}
+			recordChange(sheetId);
+		}
+
+		@Override
+		public void shared(String sheetId, String userId) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				synchronized (sheet) {
+					if (sheet.addShare(userId))
+						indexShare(userId, sheetId);
+				}
+			recordChange(sheetId);
+		}
+
+		@Override
+		public void unshared(String sheetId, String userId) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				synchronized (sheet) {
+					if (sheet.removeShare(userId))
+						unindexShare(userId, sheetId);
+				}
+			recordChange(sheetId);
+		}
+	}
+
+	/**
+	 * Replaces the whole state with a snapshot streamed by the primary.
+	 */
+	private void installSnapshot(DataInputStream in) throws IOException {
+		var installed = SpreadsheetRecords.readSnapshot(in);
+
+		for (Spreadsheet sheet : spreadsheets.values()) {
+			forgetSpreadsheet(sheet);
+			if (!installed.containsKey(sheet.getSheetId())) {
+				spreadsheets.remove(sheet.getSheetId());
+				recordChange(sheet.getSheetId());
+			}
+		}
+		spreadsheetOwners.clear();
+		sharedSpreadsheets.clear();
+
+		spreadsheets.putAll(installed);
+		for (Spreadsheet sheet : installed.values()) {
+			indexSpreadsheet(sheet);
+			recordChange(sheet.getSheetId());
+		}
+	}
+
+	private void writeSnapshot(DataOutputStream out) throws IOException {
+		SpreadsheetRecords.writeSnapshot(out, spreadsheets);
+	}
+
+	private void readSnapshot(DataInputStream in) throws IOException {
+		spreadsheets.putAll(SpreadsheetRecords.readSnapshot(in));
+	}
+
+	/**
+	 * Adds a sheet to the indexes of owned and shared sheets.
+	 */
+	private void indexSpreadsheet(Spreadsheet sheet) {
+		spreadsheetOwners.computeIfAbsent(sheet.getOwner(), k -> ConcurrentHashMap.newKeySet()).add(sheet.getSheetId());
+		for (String userId : sheet.getSharedWith())
+			indexShare(userId, sheet.getSheetId());
+	}
+
+	/**
+	 * Removes a sheet replaced or deleted by a record from the indexes and from the state computed for it.
+	 */
+	private void forgetSpreadsheet(Spreadsheet sheet) {
+		var owned = spreadsheetOwners.get(sheet.getOwner());
+		if (owned != null)
+			owned.remove(sheet.getSheetId());
+		unindexShares(sheet);
+		engine.spreadsheetDeleted(sheet.getSheetId());
+		valuesCache.remove(sheet.getSheetId());
+	}
+
+	private void indexShare(String userId, String sheetId) {
+		sharedSpreadsheets.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(sheetId);
+	}
+
+	private void unindexShare(String userId, String sheetId) {
+		sharedSpreadsheets.computeIfPresent(userId, (k, sheetIds) -> {
+			sheetIds.remove(sheetId);
+			return sheetIds.isEmpty() ? null : sheetIds;
+		});
+	}
+
+	/**
+	 * Removes a deleted sheet from the index of shared sheets. Must be called holding the lock of the sheet.
+	 */
+	private void unindexShares(Spreadsheet sheet) {
+		for (String userId : sheet.getSharedWith())
+			unindexShare(userId, sheet.getSheetId());
+	}
+
+	/**
+	 * Verifies the credentials of a local user, reusing a successful verification of the same password
+	 * for up to CREDENTIALS_TTL or until the users service invalidates it. Failed verifications are
+	 * never cached.
+	 */
+	private Result<User> verifyUser(String userId, String password) {
+		if (userId == null || password == null)
+			return getLocalUsersClient().getUser(userId, password);
+
+		String passwordHash = hash(password);
+		var verified = credentialsCache.get(userId, v ->
+				v.passwordHash.equals(passwordHash) && System.currentTimeMillis() - v.verifiedAt <= CREDENTIALS_TTL);
+		if (verified != null)
+			return Result.ok(verified.user);
+
+		long generation = credentialsGenerations.getOrDefault(userId, 0L);
+		Result<User> result = getLocalUsersClient().getUser(userId, password);
+		if (result.isOK()) {
+			try {
+				var user = result.value();
+				synchronized (credentialsCache) {
+					if (credentialsGenerations.getOrDefault(userId, 0L) == generation)
+						credentialsCache.put(userId, new VerifiedUser(passwordHash, user));
+				}
+			} catch (Exception ignored) {
+			}
+		}
+		return result;
+	}
+
+	private void invalidateCredentials(String userId) {
+		synchronized (credentialsCache) {
+			credentialsGenerations.merge(userId, 1L, Long::sum);
+			credentialsCache.remove(userId);
+		}
+	}
+
+	private static String hash(String password) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Computes the values of a snapshot of a sheet, reusing the values computed for the same version of the
+	 * sheet. Sheets importing values from other sheets are always recomputed, as their values may change
+	 * without the sheet changing.
+	 */
+	private String[][] computeValues(Spreadsheet.Snapshot snapshot) throws SheetsException {
+		long version = snapshot.version();
+
+		var cached = valuesCache.get(snapshot.sheetId(), c -> c.version == version);
+		if (cached != null)
+			return cached.values;
+
+		String[][] result = null;
+		try {
+			result = engine.computeSpreadsheetValues(snapshot);
+		} catch (Exception exception) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
 
-		synchronized(this) {
+		if (!snapshot.hasImports())
+			valuesCache.put(snapshot.sheetId(), new ComputedValues(version, result));
 
-			String spreadsheetOwner = sheet.getOwner();
+		return result;
+	}
 
-			Result<User> result = getLocalUsersClient().getUser(spreadsheetOwner, password);
-			if(!result.isOK())
-				throwWebAppException(type, Response.Status.BAD_REQUEST);
 
-			String sheetId;
-			do {
-				sheetId = UUID.randomUUID().toString();
-			} while (spreadsheets.containsKey(sheetId));
 
-			Spreadsheet spreadsheet = new Spreadsheet(sheet,sheetId,domainId);
+	@Override
+	public String createSpreadsheet(Spreadsheet sheet, String password) throws SheetsException {
 
-			spreadsheets.put(sheetId, spreadsheet);
+		var stream = checkPrimary();
 
-			if (!spreadsheetOwners.containsKey(spreadsheetOwner))
-				spreadsheetOwners.put(spreadsheetOwner, new HashSet<>());
+		if( sheet == null || password == null)
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+
+		if (sheet.getColumns() <= 0 || sheet.getRows() <= 0)
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
 
-			spreadsheetOwners.get(spreadsheetOwner).add(sheetId);
+		String spreadsheetOwner = sheet.getOwner();
 
-			return sheetId;
+		Result<User> result = verifyUser(spreadsheetOwner, password);
+		if(!result.isOK())
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+
+		// the id must route back to this server, when the sheets of the domain are spread over several
+		String sheetId;
+		Spreadsheet spreadsheet;
+		do {
+			sheetId = UUID.randomUUID().toString();
+			spreadsheet = new Spreadsheet(sheet,sheetId,domainId);
+		} while (!ownsSpreadsheet(sheetId) || spreadsheets.putIfAbsent(sheetId, spreadsheet) != null);
+
+		LoggedRecord logged;
+		synchronized (spreadsheet) {
+			for (String userId : spreadsheet.getSharedWith())
+				indexShare(userId, sheetId);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.created(spreadsheet));
 		}
+
+		spreadsheetOwners.computeIfAbsent(spreadsheetOwner, k -> ConcurrentHashMap.newKeySet()).add(sheetId);
+
+		awaitRecord(logged);
+		return sheetId;
 	}
 
 	@Override
 	public void deleteSpreadsheet(String sheetId, String password) throws SheetsException {
 
+		var stream = checkPrimary();
+
 		if( sheetId == null || password == null ) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
-		synchronized (this) {
+		Spreadsheet sheet = spreadsheets.get(sheetId);
 
-			Spreadsheet sheet = spreadsheets.get(sheetId);
+		if( sheet == null ) {
+			throwWebAppException(type, Response.Status.NOT_FOUND);
+		}
 
-			if( sheet == null ) {
-				throwWebAppException(type, Response.Status.NOT_FOUND);
-			}
+		Result<User> result = verifyUser(sheet.getOwner(), password);
+		if(result.error() == Result.ErrorCode.FORBIDDEN)
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+		else if(!result.isOK())
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
 
-			Result<User> result = getLocalUsersClient().getUser(sheet.getOwner(), password);
-			if(result.error() == Result.ErrorCode.FORBIDDEN)
-				throwWebAppException(type, Response.Status.FORBIDDEN);
-			else if(!result.isOK())
-				throwWebAppException(type, Response.Status.BAD_REQUEST);
+		LoggedRecord logged;
+		synchronized (sheet) {
+
+			if (!spreadsheets.remove(sheetId, sheet))
+				throwWebAppException(type, Response.Status.NOT_FOUND);
 
-			spreadsheetOwners.get(sheet.getOwner()).remove(sheetId);
-			spreadsheets.remove(sheetId);
+			var owned = spreadsheetOwners.get(sheet.getOwner());
+			if (owned != null)
+				owned.remove(sheetId);
+			unindexShares(sheet);
+			engine.spreadsheetDeleted(sheetId);
+			valuesCache.remove(sheetId);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.deleted(sheetId));
 		}
+		awaitRecord(logged);
 	}
 
 	@Override
 	public Spreadsheet getSpreadsheet(String sheetId, String userId, String password) throws SheetsException {
 
+		return accessSpreadsheet(sheetId, userId, password).copy();
+	}
+
+	/**
+	 * Gets a sheet the given user is allowed to access, checking their credentials.
+	 */
+	private Spreadsheet accessSpreadsheet(String sheetId, String userId, String password) throws SheetsException {
+
 		if( sheetId == null || userId == null ) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
@@ -151,20 +593,81 @@ public class SpreadsheetResource implements RestSpreadsheets, SoapSpreadsheets {
 			throwWebAppException(type, Response.Status.NOT_FOUND);
 		}
 
-		Result<User> result = getLocalUsersClient().getUser(userId, password);
+		Result<User> result = verifyUser(userId, password);
 		if(result.error() == Result.ErrorCode.FORBIDDEN)
 			throwWebAppException(type, Response.Status.FORBIDDEN);
 		else if(!result.isOK())
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 
-		if (!userId.equals(sheet.getOwner())) {
+		if (!userId.equals(sheet.getOwner()) && !sheet.hasShare(userId + "@" + domainId))
+			throwWebAppException(type, Response.Status.FORBIDDEN);
 
-			if (!sheet.getSharedWith().stream().anyMatch(user -> user.contains(userId)))
-				throwWebAppException(type, Response.Status.FORBIDDEN);
+		return sheet;
+	}
+
+	@Override
+	public Response getSpreadsheet(String sheetId, String userId, String password, String ifNoneMatch) throws SheetsException {
 
+		Spreadsheet sheet = getSpreadsheet(sheetId, userId, password);
+
+		var tag = new EntityTag(sheetTag(sheet.getVersion()));
+		if (matches(ifNoneMatch, tag))
+			return Response.notModified(tag).build();
+
+		return Response.ok(sheet).tag(tag).build();
+	}
+
+	@Override
+	public VersionedSpreadsheet getSpreadsheetIfVersionDiffers(String sheetId, String userId, String password, String tag) throws SheetsException {
+
+		Spreadsheet sheet = getSpreadsheet(sheetId, userId, password);
+
+		String current = sheetTag(sheet.getVersion());
+		return new VersionedSpreadsheet(current, current.equals(tag) ? null : sheet);
+	}
+
+	/**
+	 * Tags of the versions of a sheet and of its values, as ETags and to SOAP clients. Qualified by the epoch of
+	 * this server, as the versions of a sheet start over whenever the server does.
+	 */
+	private String sheetTag(long version) {
+		return epoch + "-" + version;
+	}
+
+	private String valuesTag(long version) {
+		return "values-" + epoch + "-" + version;
+	}
+
+	/**
+	 * Tests if an If-None-Match header matches the given entity tag.
+	 */
+	private static boolean matches(String ifNoneMatch, EntityTag tag) {
+		if (ifNoneMatch == null)
+			return false;
+
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals("\"" + tag.getValue() + "\""))
+				return true;
 		}
+		return false;
+	}
 
-		return sheet;
+	/**
+	 * Parses a range of cells of a sheet, which must be well formed and lie within the sheet.
+	 */
+	private CellRange parseRange(String range, Spreadsheet spreadsheet) throws SheetsException {
+		CellRange cellRange = null;
+		try {
+			cellRange = new CellRange(range);
+		} catch (RuntimeException e) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
+		if (!cellRange.fitsIn(spreadsheet.getRows(), spreadsheet.getColumns()))
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		return cellRange;
 	}
 
 	@Override
@@ -180,135 +683,360 @@ public class SpreadsheetResource implements RestSpreadsheets, SoapSpreadsheets {
 			throwWebAppException(type, Response.Status.NOT_FOUND);
 		}
 
-		if (!userId.equals(spreadsheet.getOwner()) && !spreadsheet.getSharedWith().contains(userId)) {
+		if (!userId.equals(spreadsheet.getOwner()) && !spreadsheet.hasShare(userId)) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
+		CellRange cellRange = parseRange(range, spreadsheet);
+
+		var snapshot = spreadsheet.snapshot();
+		var cached = valuesCache.get(sheetId, c -> c.version == snapshot.version());
+		if (cached != null)
+			return cellRange.extractRangeValuesFrom(cached.values);
+
 		String[][] result = null;
 		try {
-			result = engine.computeSpreadsheetValues(spreadsheet);
+			result = engine.computeRangeValues(snapshot, cellRange);
 		} catch (Exception exception) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
-		return new CellRange(range).extractRangeValuesFrom(result);
+		return result;
 	}
 
 	@Override
 	public String[][] getSpreadsheetValues(String sheetId, String userId, String password) throws SheetsException {
 
-		Spreadsheet spreadsheet = getSpreadsheet(sheetId, userId, password);
+		Spreadsheet spreadsheet = accessSpreadsheet(sheetId, userId, password);
 
-		String[][] result = null;
-		try {
-			result = engine.computeSpreadsheetValues(spreadsheet);
-		} catch (Exception exception) {
-			throwWebAppException(type, Response.Status.BAD_REQUEST);
-		}
+		return computeValues(spreadsheet.snapshot());
+	}
 
-		return result;
+	/**
+	 * Values of sheets with importranges may change without the sheet changing, so they are never tagged.
+	 */
+	@Override
+	public Response getSpreadsheetValues(String sheetId, String userId, String password, String ifNoneMatch) throws SheetsException {
+
+		var snapshot = accessSpreadsheet(sheetId, userId, password).snapshot();
+
+		if (snapshot.hasImports())
+			return Response.ok(computeValues(snapshot)).build();
+
+		var tag = new EntityTag(valuesTag(snapshot.version()));
+		if (matches(ifNoneMatch, tag))
+			return Response.notModified(tag).build();
+
+		return Response.ok(computeValues(snapshot)).tag(tag).build();
+	}
+
+	@Override
+	public VersionedValues getSpreadsheetValuesIfVersionDiffers(String sheetId, String userId, String password, String tag) throws SheetsException {
+
+		var snapshot = accessSpreadsheet(sheetId, userId, password).snapshot();
+
+		if (snapshot.hasImports())
+			return new VersionedValues(null, computeValues(snapshot));
+
+		String current = valuesTag(snapshot.version());
+		return new VersionedValues(current, current.equals(tag) ? null : computeValues(snapshot));
 	}
 
 	@Override
 	public void updateCell(String sheetId, String cell, String rawValue, String userId, String password) throws SheetsException {
 
+		var stream = checkPrimary();
+
 		if( sheetId == null || cell == null || rawValue == null || userId == null || password == null) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
-		synchronized(this) {
+		Spreadsheet spreadsheet = accessSpreadsheet(sheetId, userId, password);
 
-			Spreadsheet spreadsheet = getSpreadsheet(sheetId, userId, password);
+		Pair<Integer,Integer> coordinates = null;
+		try {
+			coordinates = Cell.CellId2Indexes(cell);
+		} catch (InvalidCellIdException e) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
 
-			try {
-				Pair<Integer,Integer> coordinates =  Cell.CellId2Indexes(cell);
+		int row = coordinates.getLeft(), col = coordinates.getRight();
+		LoggedRecord logged;
+		synchronized(spreadsheet) {
 
-				spreadsheet.placeCellRawValue(coordinates.getLeft(),coordinates.getRight(), rawValue);
-			} catch (InvalidCellIdException e) {
-				throwWebAppException(type, Response.Status.BAD_REQUEST);
-			}
+			if (spreadsheets.get(sheetId) != spreadsheet)
+				throwWebAppException(type, Response.Status.NOT_FOUND);
 
+			// published once the engine applied the update, so that its version is never read with stale values
+			var next = spreadsheet.withCellRawValue(row, col, rawValue);
+			engine.cellUpdated(next, row, col);
+			spreadsheet.publish(next);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.cellUpdated(sheetId, row, col, rawValue));
 		}
+		awaitRecord(logged);
 
 	}
 
 
 	@Override
-	public void shareSpreadsheet(String sheetId, String userId, String password) throws SheetsException {
+	public void updateRange(String sheetId, String range, String[][] rawValues, String userId, String password) throws SheetsException {
 
-		if( sheetId == null || userId == null || password == null ) {
+		var stream = checkPrimary();
+
+		if( sheetId == null || range == null || rawValues == null || userId == null || password == null) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
-		synchronized (this) {
+		Spreadsheet spreadsheet = accessSpreadsheet(sheetId, userId, password);
 
-			Spreadsheet sheet = spreadsheets.get(sheetId);
+		CellRange cellRange = parseRange(range, spreadsheet);
+		if (rawValues.length != cellRange.rows()
+				|| Arrays.stream(rawValues).anyMatch(row -> row == null || row.length != cellRange.cols())) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
+
+		LoggedRecord logged;
+		synchronized(spreadsheet) {
 
-			if( sheet == null ) {
+			if (spreadsheets.get(sheetId) != spreadsheet)
 				throwWebAppException(type, Response.Status.NOT_FOUND);
-			}
 
-			Result<User> result = getLocalUsersClient().getUser(sheet.getOwner(), password);
-			if(result.error() == Result.ErrorCode.FORBIDDEN)
-				throwWebAppException(type, Response.Status.FORBIDDEN);
-			else if(!result.isOK())
-				throwWebAppException(type, Response.Status.BAD_REQUEST);
+			var next = spreadsheet.withCellRawValues(cellRange, rawValues);
+			engine.rangeUpdated(next, cellRange);
+			spreadsheet.publish(next);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.rangeUpdated(sheetId, range, rawValues));
+		}
+		awaitRecord(logged);
+	}
 
-			Set<String> sharedWith = sheet.getSharedWith();
+	@Override
+	public void shareSpreadsheet(String sheetId, String userId, String password) throws SheetsException {
 
-			if (sharedWith.contains(userId))
-				throwWebAppException(type, Response.Status.CONFLICT);
+		var stream = checkPrimary();
+
+		if( sheetId == null || userId == null || password == null ) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
+
+		Spreadsheet sheet = spreadsheets.get(sheetId);
+
+		if( sheet == null ) {
+			throwWebAppException(type, Response.Status.NOT_FOUND);
+		}
 
-			sharedWith.add(userId);
+		Result<User> result = verifyUser(sheet.getOwner(), password);
+		if(result.error() == Result.ErrorCode.FORBIDDEN)
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+		else if(!result.isOK())
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+
+		LoggedRecord logged;
+		synchronized (sheet) {
+			if (spreadsheets.get(sheetId) != sheet)
+				throwWebAppException(type, Response.Status.NOT_FOUND);
+			if (!sheet.addShare(userId))
+				throwWebAppException(type, Response.Status.CONFLICT);
+			indexShare(userId, sheetId);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.shared(sheetId, userId));
 		}
+		awaitRecord(logged);
 	}
 
 	@Override
 	public void unshareSpreadsheet(String sheetId, String userId, String password) throws SheetsException {
 
+		var stream = checkPrimary();
+
 		if( sheetId == null || userId == null || password == null ) {
 			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
 
-		synchronized (this) {
-
-			Spreadsheet sheet = spreadsheets.get(sheetId);
+		Spreadsheet sheet = spreadsheets.get(sheetId);
 
-			Result<User> result = getLocalUsersClient().getUser(sheet.getOwner(), password);
-			if(result.error() == Result.ErrorCode.FORBIDDEN)
-				throwWebAppException(type, Response.Status.FORBIDDEN);
-			else if(!result.isOK())
-				throwWebAppException(type, Response.Status.BAD_REQUEST);
+		if( sheet == null ) {
+			throwWebAppException(type, Response.Status.NOT_FOUND);
+		}
 
-			Set<String> sharedWith = sheet.getSharedWith();
+		Result<User> result = verifyUser(sheet.getOwner(), password);
+		if(result.error() == Result.ErrorCode.FORBIDDEN)
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+		else if(!result.isOK())
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
 
-			if (!sharedWith.contains(userId))
+		LoggedRecord logged;
+		synchronized (sheet) {
+			if (spreadsheets.get(sheetId) != sheet)
 				throwWebAppException(type, Response.Status.NOT_FOUND);
-
-			sharedWith.remove(userId);
+			if (!sheet.removeShare(userId))
+				throwWebAppException(type, Response.Status.NOT_FOUND);
+			unindexShare(userId, sheetId);
+			recordChange(sheetId);
+			logged = logRecord(stream, SpreadsheetRecords.unshared(sheetId, userId));
 		}
+		awaitRecord(logged);
 	}
 
 	@Override
 	public void deleteUserSpreadsheets(String userId, String password) throws SheetsException {
-		synchronized (this) {
 
-			Result<User> result = getLocalUsersClient().getUser(userId, password);
+		var stream = checkPrimary();
+
+		// the users service removes the user before deleting its sheets, so it can no longer be verified, and the
+		// users service authenticates with a token of the domain instead of the password
+		if (!DomainTokens.verify(password, DomainTokens.DELETE_USER_SPREADSHEETS, userId)) {
+			Result<User> result = verifyUser(userId, password);
 			if(result.error() == Result.ErrorCode.FORBIDDEN)
 				throwWebAppException(type, Response.Status.FORBIDDEN);
 			else if(!result.isOK())
 				throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
 
-			Set<String> sheets = spreadsheetOwners.get(userId);
+		invalidateCredentials(userId);
+
+		Set<String> sheets = spreadsheetOwners.remove(userId);
+		if (sheets == null)
+			return;
+
+		LoggedRecord logged = LoggedRecord.NONE;
+		for (String id : sheets) {
+			Spreadsheet sheet = spreadsheets.get(id);
+			if (sheet == null)
+				continue;
+			synchronized (sheet) {
+				if (spreadsheets.remove(id, sheet)) {
+					unindexShares(sheet);
+					engine.spreadsheetDeleted(id);
+					valuesCache.remove(id);
+					recordChange(id);
+					logged = logRecord(stream, SpreadsheetRecords.deleted(id));
+				}
+			}
+		}
+		awaitRecord(logged);
+	}
 
-			sheets.forEach(id -> spreadsheets.remove(id));
-			spreadsheetOwners.remove(userId);
+	@Override
+	public void invalidateUserCredentials(String userId, String token) throws SheetsException {
+
+		if( userId == null ) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
 		}
+
+		// only the users service may, or anyone could keep this server from reusing verifications, sending every
+		// request on to the users service
+		if (!DomainTokens.verify(token, DomainTokens.INVALIDATE_USER_CREDENTIALS, userId))
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+
+		invalidateCredentials(userId);
 	}
 
 	@Override
 	public List<Spreadsheet> getSpreadsheets() throws SheetsException {
-		return new ArrayList<>(spreadsheets.values());
+		List<Spreadsheet> all = new ArrayList<>();
+		for (Spreadsheet sheet : spreadsheets.values())
+			all.add(sheet.copy());
+		return all;
 	}
-}
 
+	@Override
+	public List<Spreadsheet> getSharedSpreadsheets(String userId, String password) throws SheetsException {
+
+		if( userId == null || password == null ) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		}
+
+		Result<User> result = verifyUser(userId, password);
+		if(result.error() == Result.ErrorCode.FORBIDDEN)
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+		else if(result.error() == Result.ErrorCode.NOT_FOUND)
+			throwWebAppException(type, Response.Status.NOT_FOUND);
+		else if(!result.isOK())
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+
+		List<Spreadsheet> shared = new ArrayList<>();
+		for (String sheetId : sharedSpreadsheets.getOrDefault(userId + "@" + domainId, Set.of())) {
+			Spreadsheet sheet = spreadsheets.get(sheetId);
+			if (sheet != null)
+				shared.add(sheet.copy());
+		}
+		return shared;
+	}
+
+	@Override
+	public SpreadsheetChanges getSpreadsheetChanges(long sinceVersion) throws SheetsException {
+		return changesSince(sinceVersion, null);
+	}
+
+	@Override
+	public SpreadsheetChanges awaitSpreadsheetChanges(long epoch, long sinceVersion, String sheetId, long timeout) {
+		// holds a thread of the server while waiting, which is why the servers reply from a thread pool
+		long deadline = System.currentTimeMillis() + Math.max(0, Math.min(timeout, MAX_CHANGES_WAIT));
+		synchronized (changeLog) {
+			while (epoch == this.epoch && (sheetId == null ? changeVersion : lastChanges.getOrDefault(sheetId, 0L)) <= sinceVersion) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				try {
+					changeLog.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return changesSince(sinceVersion, sheetId);
+	}
+
+	/**
+	 * Gets the changes after a version of the change log, either of every sheet or of a single one.
+	 */
+	private SpreadsheetChanges changesSince(long sinceVersion, String sheetId) {
+		long version;
+		List<String> sheetIds;
+		synchronized (changeLog) {
+			version = changeVersion;
+			if (sheetId == null)
+				sheetIds = new ArrayList<>(changeLog.tailMap(sinceVersion, false).values());
+			else
+				sheetIds = lastChanges.getOrDefault(sheetId, 0L) > sinceVersion ? List.of(sheetId) : List.of();
+		}
+
+		List<Spreadsheet> changed = new ArrayList<>();
+		List<String> deleted = new ArrayList<>();
+		for (String id : sheetIds) {
+			Spreadsheet sheet = spreadsheets.get(id);
+			if (sheet != null)
+				changed.add(sheet.copy());
+			else
+				deleted.add(id);
+		}
+
+		return new SpreadsheetChanges(epoch, version, changed, deleted);
+	}
+
+	@Override
+	public long replicate(byte[] batch) throws SheetsException {
+
+		var replication = this.replication;
+		if (replication == null || batch == null)
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+
+		try {
+			return replication.apply(batch);
+		} catch (SecurityException e) {
+			Log.warning("Refused a replicated batch: " + e.getMessage());
+			throwWebAppException(type, Response.Status.FORBIDDEN);
+		} catch (IllegalArgumentException e) {
+			throwWebAppException(type, Response.Status.BAD_REQUEST);
+		} catch (ReplicationLog.DeposedException e) {
+			throwWebAppException(type, Response.Status.CONFLICT);
+		} catch (IOException e) {
+			Log.severe("Failed to apply a replicated batch: " + e.getMessage());
+			throwWebAppException(type, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+		return -1;
+	}
+}
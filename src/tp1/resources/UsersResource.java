@@ -2,9 +2,14 @@ package tp1.resources;
 
 import jakarta.inject.Singleton;
 import jakarta.jws.WebService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
 import tp1.api.User;
+import tp1.api.UsersPage;
 import tp1.api.service.rest.RestUsers;
 import tp1.api.service.soap.SoapUsers;
 import tp1.api.service.soap.UsersException;
@@ -14,11 +19,23 @@ import tp1.clients.sheet.SpreadsheetClient;
 
 import tp1.discovery.Discovery;
 import tp1.server.WebServiceType;
+import tp1.util.TrigramIndex;
+import tp1.util.WriteAheadLog;
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
 
 import static tp1.server.WebServiceType.SOAP;
+import static tp1.util.WriteAheadLog.readString;
+import static tp1.util.WriteAheadLog.writeString;
 
 @WebService(
 		serviceName = SoapUsers.NAME,
@@ -34,13 +51,52 @@ public class UsersResource implements RestUsers, SoapUsers {
 
 	private static Discovery discovery;
 
-	private final Map<String, User> users = new HashMap<>();
+	// read without locks, as getUser verifies the credentials of every sheet operation; written holding the
+	// lock of the resource, which is never held across remote calls
+	private final Map<String, User> users = new ConcurrentHashMap<>();
+
+	// the users by the trigrams of their full names, searched without locking the resource
+	private final TrigramIndex<User> names = new TrigramIndex<>();
+
+	// identifies this incarnation of the server, as versions of the change log restart with it
+	private final long epoch = new Random().nextLong();
+	// the last change of each user (including its creation or deletion) by version, guarded by changeLog for writes
+	private long changeVersion;
+	private final NavigableMap<Long, String> changeLog = new ConcurrentSkipListMap<>();
+	private final Map<String, Long> lastChanges = new HashMap<>();
+
+	public final static int MAX_PAGE_SIZE = 1000;
+	public final static int MAX_VALIDATION_BATCH = 1000;
+
+	private final static ObjectMapper JSON = new ObjectMapper();
+
+	// log of the mutations of the users, or null if the state is not durable
+	private WriteAheadLog log;
+
+	public final static long SNAPSHOT_THRESHOLD = 10000;
+
+	// types of the records of the log
+	private final static byte PUT = 0, DELETED = 1;
+
+	private static Logger Log = Logger.getLogger(UsersResource.class.getName());
 
 	public UsersResource(String domainId, WebServiceType type) {
 		this.domainId = domainId;
 		this.type = type;
 	}
 
+	/**
+	 * Creates a resource whose state is logged to the given directory, recovering the state logged there
+	 * by previous executions.
+	 */
+	public UsersResource(String domainId, WebServiceType type, Path dataDir, WriteAheadLog.FsyncPolicy fsync) throws IOException {
+		this(domainId, type);
+
+		var wal = new WriteAheadLog(dataDir, fsync, SNAPSHOT_THRESHOLD, this::writeSnapshot);
+		wal.recover(this::readSnapshot, this::replayRecord);
+		this.log = wal;
+	}
+
 	public static void setDiscovery(Discovery discovery) {
 		UsersResource.discovery = discovery;
 	}
@@ -49,6 +105,20 @@ public class UsersResource implements RestUsers, SoapUsers {
 		return discovery.getSpreadsheetClient(domainId);
 	}
 
+	/**
+	 * Makes the sheets service discard the verifications of the credentials of a user it cached. Without a
+	 * secret of the domain to authenticate with, they are kept until they expire (SpreadsheetResource.CREDENTIALS_TTL).
+	 */
+	private void invalidateCredentials(String userId) {
+		String token = DomainTokens.issue(DomainTokens.INVALIDATE_USER_CREDENTIALS, userId);
+		if (token == null)
+			return;
+		try {
+			getLocalSpreadsheetClient().invalidateUserCredentials(userId, token);
+		} catch (Exception e) {
+		}
+	}
+
 	public static void throwWebAppException(WebServiceType type, Status status) throws UsersException {
 		if(type == SOAP)
 			throw new UsersException(status.name());
@@ -56,29 +126,132 @@ public class UsersResource implements RestUsers, SoapUsers {
 			throw new WebApplicationException(status);
 	}
 
+	/**
+	 * Appends a mutation of the users to the log. Must be called holding the lock of the resource.
+	 * @return the sequence number of the record, to wait for with awaitRecord before replying
+	 */
+	private long logRecord(byte op, String userId, User user) {
+		if (log == null)
+			return 0;
+
+		return log.append(out -> {
+			out.writeByte(op);
+			writeString(out, userId);
+			if (op == PUT)
+				writeUser(out, user);
+		});
+	}
+
+	private void awaitRecord(long seq) throws UsersException {
+		if (log == null)
+			return;
+
+		try {
+			log.await(seq);
+		} catch (IOException e) {
+			Log.severe("Failed to log a mutation: " + e.getMessage());
+			throwWebAppException(type, Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private void replayRecord(DataInputStream in) throws IOException {
+		byte op = in.readByte();
+		String userId = readString(in);
+
+		switch (op) {
+			case PUT:
+				User user = readUser(in, userId);
+				users.put(userId, user);
+				names.put(userId, user.getFullName(), user);
+				recordChange(userId);
+				break;
+			case DELETED:
+				users.remove(userId);
+				names.remove(userId);
+				recordChange(userId);
+				break;
+			default:
+				throw new IOException("Unknown log record " + op);
+		}
+	}
+
+	/**
+	 * Records a change of a user (including its creation or deletion) in the change log, replacing the
+	 * previous change of the same user.
+	 */
+	private void recordChange(String userId) {
+		synchronized (changeLog) {
+			long version = ++changeVersion;
+			var previous = lastChanges.put(userId, version);
+			if (previous != null)
+				changeLog.remove(previous);
+			changeLog.put(version, userId);
+		}
+	}
+
+	private void writeSnapshot(DataOutputStream out) throws IOException {
+		List<User> all;
+		synchronized (this) {
+			all = new ArrayList<>(users.values());
+		}
+
+		out.writeInt(all.size());
+		for (User user : all) {
+			writeString(out, user.getUserId());
+			writeUser(out, user);
+		}
+	}
+
+	private void readSnapshot(DataInputStream in) throws IOException {
+		for (int i = in.readInt(); i > 0; i--) {
+			String userId = readString(in);
+			User user = readUser(in, userId);
+			users.put(userId, user);
+			names.put(userId, user.getFullName(), user);
+			recordChange(userId);
+		}
+	}
+
+	private static void writeUser(DataOutputStream out, User user) throws IOException {
+		writeString(out, user.getFullName());
+		writeString(out, user.getEmail());
+		writeString(out, user.getPassword());
+	}
+
+	private static User readUser(DataInputStream in, String userId) throws IOException {
+		String fullName = readString(in);
+		String email = readString(in);
+		String password = readString(in);
+		return new User(userId, fullName, email, password);
+	}
+
 	@Override
 	public String createUser(User user) throws UsersException {
 		if(user.getUserId() == null || user.getPassword() == null || user.getFullName() == null || user.getEmail() == null) {
 			throwWebAppException(type, Status.BAD_REQUEST );
 		}
 
+		String userId = user.getUserId();
+		long seq;
 		synchronized ( this ) {
-			String userId = user.getUserId();
-
 			if(users.containsKey(userId)) {
 				throwWebAppException(type, Status.CONFLICT);
 			}
 
 			users.put(userId, user);
-
-			return userId;
+			names.put(userId, user.getFullName(), user);
+			recordChange(userId);
+			seq = logRecord(PUT, userId, user);
 		}
+
+		awaitRecord(seq);
+		return userId;
 	}
 
 
 	@Override
 	public User getUser(String userId, String password) throws UsersException {
-		User user = users.get(userId);
+		User user = userId == null ? null : users.get(userId);
 
 		if( user == null ) {
 			throwWebAppException(type, Status.NOT_FOUND );
@@ -92,12 +265,39 @@ public class UsersResource implements RestUsers, SoapUsers {
 	}
 
 
+	@Override
+	public List<String> validateUsers(List<User> credentials) throws UsersException {
+		if (credentials == null || credentials.isEmpty() || credentials.size() > MAX_VALIDATION_BATCH) {
+			throwWebAppException(type, Status.BAD_REQUEST );
+		}
+
+		List<String> outcomes = new ArrayList<>(credentials.size());
+		for (User c : credentials) {
+			if (c == null || c.getUserId() == null || c.getPassword() == null) {
+				outcomes.add(Status.BAD_REQUEST.name());
+				continue;
+			}
+
+			User user = users.get(c.getUserId());
+			if (user == null)
+				outcomes.add(Status.NOT_FOUND.name());
+			else if (!user.getPassword().equals(c.getPassword()))
+				outcomes.add(Status.FORBIDDEN.name());
+			else
+				outcomes.add(Status.OK.name());
+		}
+		return outcomes;
+	}
+
+
 	@Override
 	public User updateUser(String userId, String password, User user) throws UsersException {
 		if(userId == null || password == null) {
 			throwWebAppException(type, Status.BAD_REQUEST );
 		}
 
+		User newUser;
+		long seq;
 		synchronized ( this ) {
 			User oldUser = users.get(userId);
 
@@ -109,15 +309,23 @@ public class UsersResource implements RestUsers, SoapUsers {
 				throwWebAppException(type, Status.FORBIDDEN );
 			}
 
-			User newUser = new User(userId,
+			newUser = new User(userId,
 					user.getFullName() == null ? oldUser.getFullName() : user.getFullName(),
 					user.getEmail() == null ? oldUser.getEmail() : user.getEmail(),
 					user.getPassword() == null ? oldUser.getPassword() : user.getPassword());
 
 			users.put(userId, newUser);
-
-			return newUser;
+			names.put(userId, newUser.getFullName(), newUser);
+			recordChange(userId);
+			seq = logRecord(PUT, userId, newUser);
 		}
+
+		awaitRecord(seq);
+
+		// the sheets service caches verified credentials
+		invalidateCredentials(userId);
+
+		return newUser;
 	}
 
 
@@ -127,6 +335,21 @@ public class UsersResource implements RestUsers, SoapUsers {
 			throwWebAppException(type, Status.BAD_REQUEST );
 		}
 
+		// without a secret of the domain to authenticate with, the sheets service only deletes the sheets of a
+		// user it can verify, so they go first, as long as the password is right
+		String token = DomainTokens.issue(DomainTokens.DELETE_USER_SPREADSHEETS, userId);
+		if (token == null) {
+			User user = users.get(userId);
+			if( user != null && user.getPassword().equals( password)) {
+				try {
+					getLocalSpreadsheetClient().deleteUserSpreadsheets(userId, password);
+				} catch (Exception e) {
+				}
+			}
+		}
+
+		User removed;
+		long seq;
 		synchronized ( this ) {
 			User user = users.get(userId);
 
@@ -138,36 +361,109 @@ public class UsersResource implements RestUsers, SoapUsers {
 				throwWebAppException(type, Status.FORBIDDEN );
 			}
 
+			removed = users.remove(userId);
+			names.remove(userId);
+			recordChange(userId);
+			seq = logRecord(DELETED, userId, null);
+		}
+
+		awaitRecord(seq);
+
+		// only once the removal is durable, so that a failed removal never leaves the user without its sheets
+		invalidateCredentials(userId);
+		if (token != null) {
 			try {
-				getLocalSpreadsheetClient().deleteUserSpreadsheets(userId, password);
+				getLocalSpreadsheetClient().deleteUserSpreadsheets(userId, token);
 			} catch (Exception e) {
 			}
-
-			return users.remove(userId);
 		}
+
+		return removed;
 	}
 
 
 	@Override
 	public List<User> searchUsers(String pattern) throws UsersException {
 
-		if (users.isEmpty()) {
-			return new ArrayList<>();
-		}
-
 		if (pattern == null || pattern.isEmpty()) {
-			return new ArrayList<>(users.values());
+			return names.values();
 		}
 
-		synchronized (this) {
-			List<User> result = new LinkedList<>();
-			for (User u : users.values()) {
-				if (u.getFullName().toLowerCase().contains(pattern.toLowerCase()))
-					result.add(u);
+		return names.search(pattern);
+	}
+
+	@Override
+	public UsersPage getUsersPage(String pattern, String cursor, int limit) throws UsersException {
+		long sinceVersion = 0;
+		if (cursor != null) {
+			long cursorEpoch = 0, cursorVersion = 0;
+			int sep = cursor.lastIndexOf('-');
+			try {
+				cursorEpoch = Long.parseLong(cursor.substring(0, Math.max(sep, 0)));
+				cursorVersion = Long.parseLong(cursor.substring(sep + 1));
+			} catch (NumberFormatException e) {
+				throwWebAppException(type, Status.BAD_REQUEST);
 			}
+			// a token of a previous incarnation starts over
+			if (cursorEpoch == epoch)
+				sinceVersion = cursorVersion;
+		}
+		boolean continued = sinceVersion > 0;
+		if (limit <= 0 || limit > MAX_PAGE_SIZE)
+			limit = MAX_PAGE_SIZE;
+		String p = pattern == null || pattern.isEmpty() ? null : pattern.toLowerCase(Locale.ROOT);
+
+		long version;
+		synchronized (changeLog) {
+			version = changeVersion;
+		}
 
-			return result;
+		// the log is scanned without locking: a user changed meanwhile moves past version, to the next pages
+		List<User> result = new ArrayList<>();
+		List<String> deleted = new ArrayList<>();
+		boolean more = false;
+		for (var change : changeLog.subMap(sinceVersion, false, version, true).entrySet()) {
+			if (result.size() + deleted.size() == limit) {
+				more = true;
+				break;
+			}
+			sinceVersion = change.getKey();
+
+			User user = users.get(change.getValue());
+			if (user == null) {
+				if (continued)
+					deleted.add(change.getValue());
+			} else if (p == null || user.getFullName().toLowerCase(Locale.ROOT).contains(p))
+				result.add(user);
 		}
+
+		return new UsersPage(epoch, epoch + "-" + (more ? sinceVersion : version), more, result, deleted);
 	}
 
+	@Override
+	public Response listUsersPage(String pattern, String cursor, int limit) throws UsersException {
+		UsersPage page = getUsersPage(pattern, cursor, limit);
+
+		// written as the client reads it, instead of buffering the whole page
+		StreamingOutput body = out -> writePage(out, page);
+		return Response.ok(body).type(MediaType.APPLICATION_JSON).build();
+	}
+
+	private static void writePage(OutputStream out, UsersPage page) throws IOException {
+		var json = JSON.getFactory().createGenerator(out);
+		json.writeStartObject();
+		json.writeNumberField("epoch", page.getEpoch());
+		json.writeStringField("next", page.getNext());
+		json.writeBooleanField("more", page.isMore());
+		json.writeArrayFieldStart("users");
+		for (User user : page.getUsers())
+			json.writeObject(user);
+		json.writeEndArray();
+		json.writeArrayFieldStart("deleted");
+		for (String userId : page.getDeleted())
+			json.writeString(userId);
+		json.writeEndArray();
+		json.writeEndObject();
+		json.flush();
+	}
 }
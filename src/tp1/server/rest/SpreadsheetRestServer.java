@@ -1,13 +1,17 @@
 package tp1.server.rest;
 
+import com.sun.net.httpserver.HttpServer;
 import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 import tp1.discovery.Discovery;
 import tp1.server.WebServiceType;
+import tp1.util.WriteAheadLog;
 import tp1.resources.SpreadsheetResource;
 
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import static tp1.clients.sheet.SpreadsheetClient.SERVICE;
@@ -27,18 +31,33 @@ public class SpreadsheetRestServer {
         try {
             String domain = args.length > 0 ? args[0] : "adasdsadas";
 
+            // optional: a directory to keep the state in across restarts (or - to keep it in memory), and when to
+            // fsync it (ALWAYS, INTERVAL or NEVER)
+            var resource = args.length > 1 && !args[1].equals("-")
+            		? new SpreadsheetResource(domain, WebServiceType.REST, Path.of(args[1]),
+            				WriteAheadLog.FsyncPolicy.valueOf(args.length > 2 ? args[2] : "ALWAYS"))
+            		: new SpreadsheetResource(domain, WebServiceType.REST);
+
+            // optional: the uri of the primary server to back up; replicating requires the servers of the domain
+            // to share a secret (-Dtp1.replication.secret=s)
+            String primaryURI = args.length > 3 ? args[3] : null;
+
             String ip = InetAddress.getLocalHost().getHostAddress();
 
             String serverURI = String.format("http://%s:%s/rest", ip, PORT);
 
             ResourceConfig config = new ResourceConfig();
-            config.register(new SpreadsheetResource(domain, WebServiceType.REST));
+            config.register(resource);
 
-            JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config);
+            // replies from a thread pool, as long-polls for changes hold their thread while waiting
+            HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config, false);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
 
             Discovery discovery = new Discovery( domain, SERVICE ,serverURI);
 
             SpreadsheetResource.setDiscovery(discovery);
+            resource.startReplication(serverURI, primaryURI);
             discovery.startSendingAnnouncements();
             discovery.startCollectingAnnouncements();
 
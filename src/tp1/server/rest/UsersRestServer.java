@@ -1,13 +1,17 @@
 package tp1.server.rest;
 
+import com.sun.net.httpserver.HttpServer;
 import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 import tp1.discovery.Discovery;
 import tp1.server.WebServiceType;
+import tp1.util.WriteAheadLog;
 import tp1.resources.UsersResource;
 
 import java.net.InetAddress;
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import static tp1.clients.user.UsersClient.SERVICE;
@@ -27,14 +31,23 @@ public class UsersRestServer {
 		try {
 			String domain = args.length > 0 ? args[0] : "afasfasfafasf";
 
+			// optional: a directory to keep the state in across restarts, and when to fsync it (ALWAYS, INTERVAL or NEVER)
+			var resource = args.length > 1
+					? new UsersResource(domain, WebServiceType.REST, Path.of(args[1]),
+							WriteAheadLog.FsyncPolicy.valueOf(args.length > 2 ? args[2] : "ALWAYS"))
+					: new UsersResource(domain, WebServiceType.REST);
+
 			String ip = InetAddress.getLocalHost().getHostAddress();
 
 			String serverURI = String.format("http://%s:%s/rest", ip, PORT);
 
 			ResourceConfig config = new ResourceConfig();
-			config.register(new UsersResource(domain, WebServiceType.REST));
+			config.register(resource);
 
-			JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config);
+			// replies from a thread pool, as long-polls for changes hold their thread while waiting
+			HttpServer server = JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config, false);
+			server.setExecutor(Executors.newCachedThreadPool());
+			server.start();
 
 			Discovery discovery = new Discovery( domain, SERVICE ,serverURI);
 
@@ -4,11 +4,13 @@ import com.sun.net.httpserver.HttpServer;
 import jakarta.xml.ws.Endpoint;
 import tp1.discovery.Discovery;
 import tp1.server.WebServiceType;
+import tp1.util.WriteAheadLog;
 import tp1.resources.SpreadsheetResource;
 import tp1.server.rest.UsersRestServer;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
@@ -30,19 +32,31 @@ public class SpreadsheetSoapServer {
         try {
             String domain = args.length > 0 ? args[0] : "afasfasfasfasf";
 
+            // optional: a directory to keep the state in across restarts (or - to keep it in memory), and when to
+            // fsync it (ALWAYS, INTERVAL or NEVER)
+            var resource = args.length > 1 && !args[1].equals("-")
+            		? new SpreadsheetResource(domain, WebServiceType.SOAP, Path.of(args[1]),
+            				WriteAheadLog.FsyncPolicy.valueOf(args.length > 2 ? args[2] : "ALWAYS"))
+            		: new SpreadsheetResource(domain, WebServiceType.SOAP);
+
+            // optional: the uri of the primary server to back up; replicating requires the servers of the domain
+            // to share a secret (-Dtp1.replication.secret=s)
+            String primaryURI = args.length > 3 ? args[3] : null;
+
             String ip = InetAddress.getLocalHost().getHostAddress();
             String serverURI = String.format("http://%s:%s/soap", ip, PORT);
 
             HttpServer server = HttpServer.create(new InetSocketAddress(ip, PORT), 0);
 
             server.setExecutor(Executors.newCachedThreadPool());
-            Endpoint soapUsersEndpoint = Endpoint.create(new SpreadsheetResource(domain, WebServiceType.SOAP));
+            Endpoint soapUsersEndpoint = Endpoint.create(resource);
             soapUsersEndpoint.publish(server.createContext(SOAP_USERS_PATH));
             server.start();
 
             Discovery discovery = new Discovery( domain, SERVICE ,serverURI);
 
             SpreadsheetResource.setDiscovery(discovery);
+            resource.startReplication(serverURI, primaryURI);
             discovery.startSendingAnnouncements();
             discovery.startCollectingAnnouncements();
 
@@ -6,11 +6,13 @@ import tp1.clients.sheet.SpreadsheetClient;
 import tp1.discovery.Discovery;
 import tp1.resources.SpreadsheetResource;
 import tp1.server.WebServiceType;
+import tp1.util.WriteAheadLog;
 import tp1.resources.UsersResource;
 import tp1.server.rest.UsersRestServer;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
@@ -32,13 +34,19 @@ public class UsersSoapServer {
         try {
             String domain = args.length > 0 ? args[0] : "asfasfasfasfas";
 
+            // optional: a directory to keep the state in across restarts, and when to fsync it (ALWAYS, INTERVAL or NEVER)
+            var resource = args.length > 1
+            		? new UsersResource(domain, WebServiceType.SOAP, Path.of(args[1]),
+            				WriteAheadLog.FsyncPolicy.valueOf(args.length > 2 ? args[2] : "ALWAYS"))
+            		: new UsersResource(domain, WebServiceType.SOAP);
+
             String ip = InetAddress.getLocalHost().getHostAddress();
             String serverURI = String.format("http://%s:%s/soap", ip, PORT);
 
             HttpServer server = HttpServer.create(new InetSocketAddress(ip, PORT), 0);
 
             server. setExecutor(Executors.newCachedThreadPool());
-            Endpoint soapUsersEndpoint = Endpoint.create(new UsersResource(domain, WebServiceType.SOAP));
+            Endpoint soapUsersEndpoint = Endpoint.create(resource);
             soapUsersEndpoint.publish(server.createContext (SOAP_USERS_PATH));
             server.start();
 
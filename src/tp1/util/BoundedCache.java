@@ -0,0 +1,85 @@
+package tp1.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ *
+ * Thread-safe cache holding at most a given number of entries, evicting the least recently used ones.
+ * Entries that were not accessed for longer than the given idle time are also discarded.
+ *
+ */
+public class BoundedCache<K, V> {
+
+	private final int maxEntries;
+	private final long maxIdleMillis;
+
+	private final LinkedHashMap<K, CachedValue<V>> entries;
+
+	private static class CachedValue<V> {
+		final V value;
+		long lastAccess;
+
+		CachedValue(V value, long now) {
+			this.value = value;
+			this.lastAccess = now;
+		}
+	}
+
+	public BoundedCache(int maxEntries, long maxIdleMillis) {
+		this.maxEntries = maxEntries;
+		this.maxIdleMillis = maxIdleMillis;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+				return size() > BoundedCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Gets the value cached for the given key, if it is present and satisfies the given condition.
+	 * @return the value or null.
+	 */
+	public synchronized V get(K key, Predicate<V> valid) {
+		long now = System.currentTimeMillis();
+		var entry = entries.get(key);
+		if (entry == null)
+			return null;
+
+		if (now - entry.lastAccess > maxIdleMillis || !valid.test(entry.value)) {
+			entries.remove(key);
+			return null;
+		}
+		entry.lastAccess = now;
+		return entry.value;
+	}
+
+	public V get(K key) {
+		return get(key, v -> true);
+	}
+
+	public synchronized void put(K key, V value) {
+		long now = System.currentTimeMillis();
+		entries.put(key, new CachedValue<>(value, now));
+		evictIdle(now);
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Entries are kept in access order, so idle entries are always at the head of the map.
+	 */
+	private void evictIdle(long now) {
+		var it = entries.values().iterator();
+		while (it.hasNext() && now - it.next().lastAccess > maxIdleMillis)
+			it.remove();
+	}
+}
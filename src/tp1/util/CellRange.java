@@ -28,7 +28,32 @@ public class CellRange {
 		} else
 			topRow = topCol = botRow = botCol = -1; // bad range string.
 	}
-	
+
+	/**
+	 * Builds a range directly from the index coordinates of its top and bottom corner cells.
+	 */
+	public CellRange( int topRow, int topCol, int botRow, int botCol ) {
+		this.topRow = topRow;
+		this.topCol = topCol;
+		this.botRow = botRow;
+		this.botCol = botCol;
+	}
+
+	/**
+	 * Tests if the cell with the given index coordinates is covered by this range.
+	 */
+	public boolean contains( int row, int col ) {
+		return row >= topRow && row <= botRow && col >= topCol && col <= botCol;
+	}
+
+	/**
+	 * Tests if this range is well formed, its top corner not past its bottom one, and lies within a sheet of the
+	 * given size. Ranges of bad range strings never do.
+	 */
+	public boolean fitsIn( int rows, int cols ) {
+		return topRow >= 0 && topCol >= 0 && topRow <= botRow && topCol <= botCol && botRow < rows && botCol < cols;
+	}
+
 	/**
 	 * Computes the number of columns this range of cells contains.
 	 * @return the number of columns.
@@ -0,0 +1,112 @@
+package tp1.util;
+
+/**
+ *
+ * Storage of the raw values of the cells of a spreadsheet. Cells never written hold null.
+ *
+ * Stores are immutable: writing cells creates a new store, which shares the rows left unchanged with
+ * the previous one, so that readers of a store are never affected by later writes.
+ *
+ * Next to each raw value, the store can keep the representation an engine compiled from it, which
+ * is shared by the stores derived from each other, as long as the cell keeps the same raw value.
+ *
+ * Sheets are usually created much larger than the part of them actually filled, so stores with few
+ * filled cells are kept sparse, and only become dense once filled above DENSE_FILL_RATIO.
+ *
+ */
+public interface CellStore {
+
+	// fraction of filled cells above which a dense store uses less memory than a sparse one
+	public final static double DENSE_FILL_RATIO = 0.25;
+
+	int rows();
+
+	int cols();
+
+	/**
+	 * Gets the raw value of a cell.
+	 * @throws IndexOutOfBoundsException if the cell is outside the store.
+	 */
+	String get(int row, int col);
+
+	/**
+	 * Creates a store with the raw values of a block of cells replaced, leaving this one unchanged.
+	 * @param topRow - the row of the top left cell of the block.
+	 * @param topCol - the column of the top left cell of the block.
+	 * @param values - the new raw values; null values leave the cell unchanged.
+	 * @throws IndexOutOfBoundsException if the block is not inside the store.
+	 */
+	CellStore with(int topRow, int topCol, String[][] values);
+
+	/**
+	 * Creates a store with the raw value of a cell replaced, leaving this one unchanged.
+	 */
+	default CellStore with(int row, int col, String value) {
+		return with(row, col, new String[][] {{ value }});
+	}
+
+	/**
+	 * Gets the representation compiled from the raw value of a cell, or null if there is none.
+	 */
+	Object compiled(int row, int col);
+
+	/**
+	 * Keeps the representation compiled from the raw value of a cell, for as long as the cell holds it.
+	 */
+	void compile(int row, int col, Object compiled);
+
+	/**
+	 * The number of non-null cells.
+	 */
+	int filled();
+
+	/**
+	 * Visits the non-null cells, row by row.
+	 */
+	<E extends Exception> void forEach(CellVisitor<E> visitor) throws E;
+
+	interface CellVisitor<E extends Exception> {
+		void visit(int row, int col, String rawValue) throws E;
+	}
+
+	/**
+	 * The "matrix" of raw values, as exchanged by the REST and SOAP services. Every call builds a new one, which
+	 * shares none of its rows with the store or with other calls.
+	 */
+	String[][] toArray();
+
+	/**
+	 * Creates an empty store.
+	 */
+	static CellStore empty(int rows, int cols) {
+		return new SparseCellStore(rows, cols);
+	}
+
+	/**
+	 * Creates a store holding the given raw values, choosing its representation by how filled they are.
+	 */
+	static CellStore of(String[][] rawValues) {
+		int rows = rawValues.length, cols = 0, filled = 0;
+		for (var row : rawValues)
+			if (row != null) {
+				cols = Math.max(cols, row.length);
+				for (var value : row)
+					if (value != null)
+						filled++;
+			}
+
+		if (filled > DENSE_FILL_RATIO * rows * cols)
+			return new DenseCellStore(rawValues);
+
+		return new SparseCellStore(rows, cols, rawValues);
+	}
+
+	/**
+	 * Returns the given store, or a dense copy of it if it is sparse but filled above DENSE_FILL_RATIO.
+	 */
+	static CellStore fit(CellStore store) {
+		if (store instanceof SparseCellStore && store.filled() > DENSE_FILL_RATIO * store.rows() * store.cols())
+			return DenseCellStore.adopt(store.toArray());
+		return store;
+	}
+}
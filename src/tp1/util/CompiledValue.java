@@ -0,0 +1,25 @@
+package tp1.util;
+
+/**
+ *
+ * Representation compiled from the raw value of a cell, kept along with that raw value. Compiled values
+ * are shared by all the versions of a store, so each version only uses those matching its own raw values.
+ *
+ */
+final class CompiledValue {
+
+	final String rawValue;
+	final Object value;
+
+	CompiledValue(String rawValue, Object value) {
+		this.rawValue = rawValue;
+		this.value = value;
+	}
+
+	/**
+	 * The compiled value, if it was compiled from the given raw value, or null.
+	 */
+	static Object valueFor(CompiledValue compiled, String rawValue) {
+		return compiled != null && compiled.rawValue.equals(rawValue) ? compiled.value : null;
+	}
+}
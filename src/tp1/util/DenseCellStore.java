@@ -0,0 +1,123 @@
+package tp1.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * CellStore backed by a full rows x cols matrix. Stores derived by with share the rows left unchanged.
+ *
+ */
+public class DenseCellStore implements CellStore {
+
+	private final String[][] rawValues;
+	// shared by every store derived from this one; allocated on the first compile
+	private final AtomicReference<CompiledValue[][]> compiled;
+
+	/**
+	 * Creates a store holding a copy of the given raw values. Rows shorter than the longest one, or null,
+	 * are filled with null cells.
+	 */
+	public DenseCellStore(String[][] rawValues) {
+		this(copy(rawValues), new AtomicReference<>());
+	}
+
+	private DenseCellStore(String[][] rawValues, AtomicReference<CompiledValue[][]> compiled) {
+		this.rawValues = rawValues;
+		this.compiled = compiled;
+	}
+
+	/**
+	 * Creates a store over the given matrix, which the caller must no longer use, without copying it.
+	 */
+	static DenseCellStore adopt(String[][] rawValues) {
+		return new DenseCellStore(rawValues, new AtomicReference<>());
+	}
+
+	private static String[][] copy(String[][] rawValues) {
+		int cols = 0;
+		for (var row : rawValues)
+			if (row != null)
+				cols = Math.max(cols, row.length);
+
+		var copy = new String[rawValues.length][cols];
+		for (int r = 0; r < rawValues.length; r++)
+			if (rawValues[r] != null)
+				System.arraycopy(rawValues[r], 0, copy[r], 0, rawValues[r].length);
+		return copy;
+	}
+
+	@Override
+	public int rows() {
+		return rawValues.length;
+	}
+
+	@Override
+	public int cols() {
+		return rawValues.length == 0 ? 0 : rawValues[0].length;
+	}
+
+	@Override
+	public String get(int row, int col) {
+		return rawValues[row][col];
+	}
+
+	@Override
+	public CellStore with(int topRow, int topCol, String[][] values) {
+		var copy = rawValues.clone();
+		for (int r = 0; r < values.length; r++) {
+			var row = copy[topRow + r].clone();
+			for (int c = 0; c < values[r].length; c++)
+				if (values[r][c] != null)
+					row[topCol + c] = values[r][c];
+			copy[topRow + r] = row;
+		}
+		return new DenseCellStore(copy, compiled);
+	}
+
+	@Override
+	public Object compiled(int row, int col) {
+		var matrix = compiled.get();
+		return matrix == null ? null : CompiledValue.valueFor(matrix[row][col], rawValues[row][col]);
+	}
+
+	@Override
+	public void compile(int row, int col, Object value) {
+		var matrix = compiled.get();
+		if (matrix == null) {
+			matrix = new CompiledValue[rawValues.length][];
+			for (int r = 0; r < rawValues.length; r++)
+				matrix[r] = new CompiledValue[rawValues[r].length];
+			if (!compiled.compareAndSet(null, matrix))
+				matrix = compiled.get();
+		}
+		var rawValue = rawValues[row][col];
+		if (rawValue != null)
+			matrix[row][col] = new CompiledValue(rawValue, value);
+	}
+
+	@Override
+	public int filled() {
+		int count = 0;
+		for (var row : rawValues)
+			for (var value : row)
+				if (value != null)
+					count++;
+		return count;
+	}
+
+	@Override
+	public <E extends Exception> void forEach(CellVisitor<E> visitor) throws E {
+		for (int row = 0; row < rawValues.length; row++)
+			for (int col = 0; col < rawValues[row].length; col++)
+				if (rawValues[row][col] != null)
+					visitor.visit(row, col, rawValues[row][col]);
+	}
+
+	@Override
+	public String[][] toArray() {
+		var copy = new String[rawValues.length][];
+		for (int r = 0; r < rawValues.length; r++)
+			copy[r] = rawValues[r].clone();
+		return copy;
+	}
+}
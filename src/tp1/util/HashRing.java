@@ -0,0 +1,110 @@
+package tp1.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ *
+ * Consistent hashing ring, assigning keys to a set of nodes so that adding a node only moves the keys it takes
+ * over, and only from its successors. Each node is placed at several points of the ring to even out the load.
+ *
+ * Lookups are lock-free: nodes are added and removed by replacing the ring, which rarely changes.
+ *
+ */
+public class HashRing {
+
+	public final static int VIRTUAL_NODES = 128;
+
+	private volatile Ring ring = new Ring(new TreeMap<>());
+
+	private static class Ring {
+		final NavigableMap<Long, String> points;
+		final Set<String> nodes;
+
+		Ring(NavigableMap<Long, String> points) {
+			this.points = Collections.unmodifiableNavigableMap(points);
+			this.nodes = Collections.unmodifiableSet(new LinkedHashSet<>(points.values()));
+		}
+	}
+
+	/**
+	 * @return true if the node was not in the ring
+	 */
+	public synchronized boolean add(String node) {
+		if (ring.nodes.contains(node))
+			return false;
+
+		var points = new TreeMap<>(ring.points);
+		for (int i = 0; i < VIRTUAL_NODES; i++)
+			points.putIfAbsent(hash(node + "#" + i), node);
+		ring = new Ring(points);
+		return true;
+	}
+
+	/**
+	 * @return true if the node was in the ring
+	 */
+	public synchronized boolean remove(String node) {
+		if (!ring.nodes.contains(node))
+			return false;
+
+		var points = new TreeMap<>(ring.points);
+		points.values().removeIf(node::equals);
+		ring = new Ring(points);
+		return true;
+	}
+
+	/**
+	 * @return the node owning the key, or null if the ring is empty
+	 */
+	public String nodeFor(String key) {
+		var points = ring.points;
+		if (points.isEmpty())
+			return null;
+
+		var entry = points.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : points.firstEntry().getValue();
+	}
+
+	/**
+	 * @return every node, in the order they own the key: the owner first, then the nodes the key would move
+	 * to if the ones before were removed (or where it was before they were added).
+	 */
+	public List<String> nodesFor(String key) {
+		var ring = this.ring;
+		var nodes = new LinkedHashSet<String>();
+
+		long hash = hash(key);
+		for (var node : ring.points.tailMap(hash, true).values())
+			if (nodes.add(node) && nodes.size() == ring.nodes.size())
+				return new ArrayList<>(nodes);
+		for (var node : ring.points.headMap(hash, false).values())
+			if (nodes.add(node) && nodes.size() == ring.nodes.size())
+				break;
+		return new ArrayList<>(nodes);
+	}
+
+	public Set<String> nodes() {
+		return ring.nodes;
+	}
+
+	private static long hash(String key) {
+		try {
+			var digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < Long.BYTES; i++)
+				hash = hash << 8 | (digest[i] & 0xFF);
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
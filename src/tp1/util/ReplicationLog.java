@@ -0,0 +1,450 @@
+package tp1.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static tp1.util.WriteAheadLog.readString;
+import static tp1.util.WriteAheadLog.writeString;
+
+/**
+ *
+ * Ordered stream of the mutations of a primary server to its backups, which apply them in the same order.
+ *
+ * Each backup is fed by a thread of its own, keeping one batch in flight: the next batch carries every record
+ * appended meanwhile, so concurrent writers share round-trips. await returns once every backup that may take over
+ * has applied a record. A backup that fails is no longer listed as in sync until it catches up again.
+ *
+ * A backup first gets a snapshot of the whole state, then the records appended after the snapshot started. As in
+ * the WriteAheadLog, records must be idempotent: the snapshot may already include the effects of some of them.
+ *
+ * Batches carry the term of the primary, and the backups in sync in the order they take over when the primary
+ * fails. A backup following a primary of a later term refuses the batches, and the primary learns it was replaced.
+ * Batches are authenticated with a key shared by the servers, and numbered, so that a backup only applies batches
+ * of its primary, each at most once.
+ *
+ * A backup listed as in sync may take over until it replies to a batch that no longer lists it, so await waits for
+ * it until then, even once it stops replying. Its replies also renew the lease of the primary, which ends
+ * LEASE_TIMEOUT after the last batch it replied to was sent: backups must wait longer than that without batches
+ * before taking over, so that the primary stops taking mutations before any backup can take over.
+ *
+ */
+public class ReplicationLog {
+
+	// how long a backup goes without batches while there are no records to send
+	public final static long HEARTBEAT_PERIOD = 1000;
+	// records kept for a backup lagging behind; backups further behind get a new snapshot
+	public final static int MAX_RETAINED_RECORDS = 100000;
+	public final static int MAX_BATCH_BYTES = 1 << 20;
+	// how long the replies of a backup that may take over let the primary take mutations
+	public final static long LEASE_TIMEOUT = 2500;
+
+	private final static String MAC_ALGORITHM = "HmacSHA256";
+	private final static int MAC_LENGTH = 32;
+
+	private final static byte SNAPSHOT = 0, RECORDS = 1;
+
+	@FunctionalInterface
+	public interface Transport {
+		/**
+		 * Sends a batch to a backup.
+		 * @return the sequence number of the last record the backup applied, or -1 if it needs a snapshot
+		 * @throws DeposedException if the backup follows a primary of a later term
+		 */
+		long send(String backup, byte[] batch) throws Exception;
+	}
+
+	public static class DeposedException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public DeposedException() {
+			super("Replaced by a primary of a later term");
+		}
+	}
+
+	private static Logger Log = Logger.getLogger(ReplicationLog.class.getName());
+
+	private final String shard;
+	private final String primary;
+	private final long term;
+	private final byte[] key;
+	private final AtomicLong batches = new AtomicLong();
+	private final WriteAheadLog.Writer snapshotState;
+	private final Transport transport;
+	private final Runnable deposed;
+
+	// records not yet applied by every backup, the last one being lastSeq; guarded by this, as are the fields below
+	private final ArrayDeque<byte[]> records = new ArrayDeque<>();
+	private long lastSeq;
+	private final Map<String, Backup> backups = new LinkedHashMap<>();
+	private boolean closed;
+
+	private static class Backup {
+		final String uri;
+		// the last record applied, or to be applied once the snapshot in flight is
+		long acked;
+		// the last record the backup replied it applied
+		long confirmed = -1;
+		boolean needsSnapshot = true;
+		boolean inSync;
+		// whether the backup was sent a batch listing it as in sync, and has not replied to one not listing it since
+		boolean mayTakeOver;
+		// when the last batch the backup replied to was sent
+		long leaseFrom;
+
+		Backup(String uri) {
+			this.uri = uri;
+		}
+	}
+
+	/**
+	 * @param shard - the sheets replicated
+	 * @param primary - the uri of this server
+	 * @param term - the term of this server as primary
+	 * @param key - the key authenticating the batches, shared with the backups
+	 * @param snapshotState - writes the whole state of the service, to be applied by the backups
+	 * @param transport - sends batches to the backups
+	 * @param deposed - called once the primary is replaced, after the log is closed
+	 */
+	public ReplicationLog(String shard, String primary, long term, byte[] key, WriteAheadLog.Writer snapshotState, Transport transport, Runnable deposed) {
+		this.shard = shard;
+		this.primary = primary;
+		this.term = term;
+		this.key = key;
+		this.snapshotState = snapshotState;
+		this.transport = transport;
+		this.deposed = deposed;
+	}
+
+	/**
+	 * Starts streaming to a backup, unless it is already being streamed to.
+	 */
+	public synchronized void addBackup(String uri) {
+		if (closed || backups.containsKey(uri))
+			return;
+
+		var backup = new Backup(uri);
+		backups.put(uri, backup);
+
+		var t = new Thread(() -> stream(backup));
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Buffers a record, to be sent to the backups. Mutations of the same object must be appended while holding
+	 * its lock, as records are applied in the order they were appended.
+	 * @return the sequence number of the record, to pass to await
+	 */
+	public long append(WriteAheadLog.Writer record) {
+		var bytes = new ByteArrayOutputStream();
+		try {
+			record.write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		synchronized (this) {
+			records.addLast(bytes.toByteArray());
+			lastSeq++;
+			if (records.size() > MAX_RETAINED_RECORDS)
+				trim();
+			notifyAll();
+			return lastSeq;
+		}
+	}
+
+	/**
+	 * Waits until every backup that may take over has applied a record.
+	 * @throws IOException if the log was closed, as the primary was replaced, or the lease of the primary
+	 * expired before the backups applied the record
+	 */
+	public synchronized void await(long seq) throws IOException {
+		for (;;) {
+			if (closed)
+				throw new IOException("No longer the primary of " + shard);
+			if (backups.values().stream().noneMatch(b -> b.mayTakeOver && b.confirmed < seq))
+				return;
+			long expiry = leaseExpiry();
+			if (System.currentTimeMillis() >= expiry)
+				throw new IOException("Lease of the primary of " + shard + " expired");
+			waitUninterruptibly(expiry == Long.MAX_VALUE ? 0 : Math.max(expiry - System.currentTimeMillis(), 1));
+		}
+	}
+
+	/**
+	 * Tests if the primary may take mutations: it was not replaced, and every backup that may take over replied
+	 * within LEASE_TIMEOUT.
+	 */
+	public synchronized boolean holdsLease() {
+		return !closed && System.currentTimeMillis() < leaseExpiry();
+	}
+
+	private long leaseExpiry() {
+		long expiry = Long.MAX_VALUE;
+		for (var b : backups.values())
+			if (b.mayTakeOver)
+				expiry = Math.min(expiry, b.leaseFrom + LEASE_TIMEOUT);
+		return expiry;
+	}
+
+	/**
+	 * Stops streaming to the backups, failing the threads waiting for them.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private void stream(Backup backup) {
+		for (;;) {
+			boolean snapshot;
+			long from, upTo;
+			List<byte[]> batch = new ArrayList<>();
+			List<String> inSync;
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + HEARTBEAT_PERIOD;
+				while (!closed && !backup.needsSnapshot && backup.acked >= lastSeq && System.currentTimeMillis() < deadline)
+					waitUninterruptibly(Math.max(deadline - System.currentTimeMillis(), 1));
+				if (closed)
+					return;
+
+				snapshot = backup.needsSnapshot;
+				if (snapshot) {
+					// the records appended from now on are sent after the snapshot
+					from = upTo = lastSeq;
+					backup.acked = lastSeq;
+					backup.needsSnapshot = false;
+				} else {
+					from = backup.acked + 1;
+					long seq = lastSeq - records.size() + 1, bytes = 0;
+					for (var record : records) {
+						if (seq >= from && bytes < MAX_BATCH_BYTES) {
+							batch.add(record);
+							bytes += record.length;
+						}
+						seq++;
+					}
+					upTo = from + batch.size() - 1;
+				}
+				inSync = inSync();
+				// the backup may take over as soon as it gets the batch
+				if (inSync.contains(backup.uri))
+					backup.mayTakeOver = true;
+			}
+
+			try {
+				long sentAt = System.currentTimeMillis();
+				long applied = transport.send(backup.uri, snapshot
+						? encode(SNAPSHOT, from, inSync, List.of(snapshot()))
+						: encode(RECORDS, from, inSync, batch));
+
+				synchronized (this) {
+					// a backup that lost its state never takes over
+					backup.mayTakeOver = applied >= 0 && inSync.contains(backup.uri);
+					backup.confirmed = applied;
+					backup.leaseFrom = sentAt;
+					if (applied < 0 || applied < lastSeq - records.size()) {
+						backup.needsSnapshot = true;
+						backup.inSync = false;
+					} else {
+						backup.acked = applied;
+						if (applied >= upTo && !backup.inSync) {
+							backup.inSync = true;
+							Log.info(String.format("Backup %s of %s in sync\n", backup.uri, shard));
+						}
+					}
+					trim();
+					notifyAll();
+				}
+			} catch (DeposedException e) {
+				Log.warning(String.format("Replaced as primary of %s\n", shard));
+				close();
+				deposed.run();
+				return;
+			} catch (Exception e) {
+				synchronized (this) {
+					if (backup.inSync)
+						Log.warning(String.format("Backup %s of %s out of sync: %s\n", backup.uri, shard, e));
+					backup.inSync = false;
+					if (snapshot)
+						backup.needsSnapshot = true;
+					notifyAll();
+					waitUninterruptibly(HEARTBEAT_PERIOD);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the backups in sync, in the order they take over
+	 */
+	private List<String> inSync() {
+		var inSync = new ArrayList<String>();
+		for (var b : backups.values())
+			if (b.inSync)
+				inSync.add(b.uri);
+		return inSync;
+	}
+
+	/**
+	 * Discards the records applied by every backup not waiting for a snapshot, and then the oldest records
+	 * if too many remain, leaving the backups that still needed them to get a snapshot.
+	 */
+	private void trim() {
+		long keepFrom = lastSeq + 1;
+		for (var b : backups.values())
+			if (!b.needsSnapshot)
+				keepFrom = Math.min(keepFrom, b.acked + 1);
+		keepFrom = Math.max(keepFrom, lastSeq - MAX_RETAINED_RECORDS + 1);
+
+		for (long first = lastSeq - records.size() + 1; first < keepFrom; first++)
+			records.removeFirst();
+
+		for (var b : backups.values())
+			if (!b.needsSnapshot && b.acked + 1 < keepFrom) {
+				b.needsSnapshot = true;
+				b.inSync = false;
+			}
+	}
+
+	private byte[] snapshot() throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		snapshotState.write(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private byte[] encode(byte kind, long from, List<String> inSync, List<byte[]> contents) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		var out = new DataOutputStream(bytes);
+		// replaced by the mac, once the rest is written
+		out.write(new byte[MAC_LENGTH]);
+		writeString(out, shard);
+		writeString(out, primary);
+		out.writeLong(term);
+		out.writeLong(batches.incrementAndGet());
+		out.writeInt(inSync.size());
+		for (String uri : inSync)
+			writeString(out, uri);
+		out.writeByte(kind);
+		out.writeLong(from);
+		out.writeInt(contents.size());
+		for (byte[] c : contents) {
+			out.writeInt(c.length);
+			out.write(c);
+		}
+		out.flush();
+
+		byte[] batch = bytes.toByteArray();
+		System.arraycopy(mac(key, batch), 0, batch, 0, MAC_LENGTH);
+		return batch;
+	}
+
+	/**
+	 * The mac of a batch, over everything after the mac itself.
+	 */
+	private static byte[] mac(byte[] key, byte[] batch) {
+		try {
+			var mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+			mac.update(batch, MAC_LENGTH, batch.length - MAC_LENGTH);
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits up to the given time, or until notified if 0.
+	 */
+	private void waitUninterruptibly(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A batch, as received by a backup.
+	 */
+	public static class Batch {
+		public final String shard;
+		public final String primary;
+		public final long term;
+		// increasing over the batches of the same term
+		public final long number;
+		// the backups in sync, in the order they take over
+		public final List<String> backups;
+		// the whole state, as of the record before firstSeq (null unless the batch is a snapshot)
+		public final byte[] snapshot;
+		// the records from firstSeq on (empty if the batch is a snapshot)
+		public final long firstSeq;
+		public final List<byte[]> records;
+
+		private Batch(String shard, String primary, long term, long number, List<String> backups, byte[] snapshot, long firstSeq, List<byte[]> records) {
+			this.shard = shard;
+			this.primary = primary;
+			this.term = term;
+			this.number = number;
+			this.backups = backups;
+			this.snapshot = snapshot;
+			this.firstSeq = firstSeq;
+			this.records = records;
+		}
+
+		/**
+		 * Decodes a batch, once it is authenticated with the key of the primary.
+		 * @throws SecurityException if the batch was not encoded with the same key
+		 */
+		public static Batch decode(byte[] batch, byte[] key) throws IOException {
+			if (batch.length < MAC_LENGTH || !MessageDigest.isEqual(mac(key, batch), Arrays.copyOf(batch, MAC_LENGTH)))
+				throw new SecurityException("Batch not authenticated");
+
+			var in = new DataInputStream(new ByteArrayInputStream(batch, MAC_LENGTH, batch.length - MAC_LENGTH));
+			String shard = readString(in);
+			String primary = readString(in);
+			long term = in.readLong();
+			long number = in.readLong();
+			var backups = new ArrayList<String>();
+			for (int i = in.readInt(); i > 0; i--)
+				backups.add(readString(in));
+			byte kind = in.readByte();
+			long from = in.readLong();
+			var contents = new ArrayList<byte[]>();
+			for (int i = in.readInt(); i > 0; i--) {
+				byte[] c = new byte[in.readInt()];
+				in.readFully(c);
+				contents.add(c);
+			}
+
+			if (kind == SNAPSHOT)
+				return new Batch(shard, primary, term, number, backups, contents.get(0), from + 1, Collections.emptyList());
+			else if (kind == RECORDS)
+				return new Batch(shard, primary, term, number, backups, null, from, contents);
+			else
+				throw new IOException("Unknown batch " + kind);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package tp1.util;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * CellStore keeping only the non-null cells, in a trie indexed by row * cols + col, with WIDTH children
+ * per node. Stores derived by with copy only the nodes on the paths to the cells written, and share the
+ * others, so writing a cell costs O(log(rows * cols)) whatever the size of the sheet.
+ *
+ */
+public class SparseCellStore implements CellStore {
+
+	private final static int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+
+	private final int rows, cols;
+	private final int filled;
+	// inner nodes hold their children and leaves the raw values, null where there are no cells below;
+	// null if the store is empty, and never modified once the store is built
+	private final Object[] root;
+	// position of the bits of the index selecting the child of the root
+	private final int shift;
+	// shared by every store derived from this one, indexed by row * cols + col
+	private final Map<Long, CompiledValue> compiled;
+
+	public SparseCellStore(int rows, int cols) {
+		this(rows, cols, null, 0, new ConcurrentHashMap<>());
+	}
+
+	SparseCellStore(int rows, int cols, String[][] rawValues) {
+		this.rows = rows;
+		this.cols = cols;
+		this.shift = shiftFor(rows, cols);
+		this.compiled = new ConcurrentHashMap<>();
+
+		Set<Object[]> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+		Object[] root = null;
+		int[] filled = { 0 };
+		for (int row = 0; row < rows; row++)
+			if (rawValues[row] != null)
+				for (int col = 0; col < rawValues[row].length; col++)
+					if (rawValues[row][col] != null)
+						root = put(root, shift, key(row, col), rawValues[row][col], fresh, filled);
+		this.root = root;
+		this.filled = filled[0];
+	}
+
+	private SparseCellStore(int rows, int cols, Object[] root, int filled, Map<Long, CompiledValue> compiled) {
+		this.rows = rows;
+		this.cols = cols;
+		this.shift = shiftFor(rows, cols);
+		this.root = root;
+		this.filled = filled;
+		this.compiled = compiled;
+	}
+
+	private static int shiftFor(int rows, int cols) {
+		long last = (long) rows * cols - 1;
+		int shift = 0;
+		while (last >>> (shift + BITS) > 0)
+			shift += BITS;
+		return shift;
+	}
+
+	@Override
+	public int rows() {
+		return rows;
+	}
+
+	@Override
+	public int cols() {
+		return cols;
+	}
+
+	@Override
+	public String get(int row, int col) {
+		long key = key(row, col);
+		Object[] node = root;
+		for (int s = shift; s > 0 && node != null; s -= BITS)
+			node = (Object[]) node[(int) (key >>> s) & MASK];
+		return node == null ? null : (String) node[(int) key & MASK];
+	}
+
+	@Override
+	public CellStore with(int topRow, int topCol, String[][] values) {
+		// nodes copied by this write, which it can still modify
+		Set<Object[]> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+		Object[] root = this.root;
+		int[] filled = { this.filled };
+		for (int r = 0; r < values.length; r++)
+			for (int c = 0; c < values[r].length; c++)
+				if (values[r][c] != null)
+					root = put(root, shift, key(topRow + r, topCol + c), values[r][c], fresh, filled);
+		return new SparseCellStore(rows, cols, root, filled[0], compiled);
+	}
+
+	/**
+	 * Returns the node with the cell of the given index set, copying it unless it is fresh.
+	 */
+	private static Object[] put(Object[] node, int shift, long key, String value, Set<Object[]> fresh, int[] filled) {
+		Object[] copy = node == null ? new Object[WIDTH] : fresh.contains(node) ? node : node.clone();
+		fresh.add(copy);
+
+		int i = (int) (key >>> shift) & MASK;
+		if (shift == 0) {
+			if (copy[i] == null)
+				filled[0]++;
+			copy[i] = value;
+		} else
+			copy[i] = put((Object[]) copy[i], shift - BITS, key, value, fresh, filled);
+		return copy;
+	}
+
+	@Override
+	public Object compiled(int row, int col) {
+		return CompiledValue.valueFor(compiled.get(key(row, col)), get(row, col));
+	}
+
+	@Override
+	public void compile(int row, int col, Object value) {
+		var rawValue = get(row, col);
+		if (rawValue != null && value != null)
+			compiled.put(key(row, col), new CompiledValue(rawValue, value));
+	}
+
+	@Override
+	public int filled() {
+		return filled;
+	}
+
+	@Override
+	public <E extends Exception> void forEach(CellVisitor<E> visitor) throws E {
+		if (root != null)
+			visit(root, shift, 0L, visitor);
+	}
+
+	private <E extends Exception> void visit(Object[] node, int shift, long base, CellVisitor<E> visitor) throws E {
+		for (int i = 0; i < WIDTH; i++)
+			if (node[i] != null) {
+				long key = base | (long) i << shift;
+				if (shift == 0)
+					visitor.visit((int) (key / cols), (int) (key % cols), (String) node[i]);
+				else
+					visit((Object[]) node[i], shift - BITS, key, visitor);
+			}
+	}
+
+	@Override
+	public String[][] toArray() {
+		var rawValues = new String[rows][cols];
+		forEach((row, col, rawValue) -> rawValues[row][col] = rawValue);
+		return rawValues;
+	}
+
+	private void check(int row, int col) {
+		if (row < 0 || row >= rows || col < 0 || col >= cols)
+			throw new IndexOutOfBoundsException("Cell (" + row + ", " + col + ") outside of " + rows + "x" + cols);
+	}
+
+	private long key(int row, int col) {
+		check(row, col);
+		return (long) row * cols + col;
+	}
+}
@@ -0,0 +1,120 @@
+package tp1.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Index of values by the trigrams of a text lower-cased in the root locale, to find the values whose text
+ * contains a pattern by checking only those sharing its rarest trigram, instead of every value.
+ *
+ * Searches take no locks and may run while values are updated, seeing each value either before or after.
+ * Updates of the same id must not be concurrent.
+ *
+ */
+public class TrigramIndex<T> {
+
+	public final static int N = 3;
+
+	private static class Entry<T> {
+		final String text;
+		final T value;
+
+		Entry(String text, T value) {
+			this.text = text;
+			this.value = value;
+		}
+	}
+
+	private final Map<String, Entry<T>> entries = new ConcurrentHashMap<>();
+	private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+
+	/**
+	 * Indexes a value by the given text, replacing the value indexed with the same id.
+	 */
+	public void put(String id, String text, T value) {
+		var entry = new Entry<>(text.toLowerCase(Locale.ROOT), value);
+		var old = entries.put(id, entry);
+
+		Set<String> grams = trigrams(entry.text);
+		Set<String> oldGrams = old == null ? Set.of() : trigrams(old.text);
+		for (String gram : grams)
+			if (!oldGrams.contains(gram))
+				postings.compute(gram, (g, ids) -> {
+					if (ids == null)
+						ids = ConcurrentHashMap.newKeySet();
+					ids.add(id);
+					return ids;
+				});
+		for (String gram : oldGrams)
+			if (!grams.contains(gram))
+				unpost(gram, id);
+	}
+
+	public void remove(String id) {
+		var old = entries.remove(id);
+		if (old == null)
+			return;
+
+		for (String gram : trigrams(old.text))
+			unpost(gram, id);
+	}
+
+	/**
+	 * @return the values whose text contains the pattern, ignoring case
+	 */
+	public List<T> search(String pattern) {
+		String p = pattern.toLowerCase(Locale.ROOT);
+		List<T> result = new ArrayList<>();
+
+		if (p.length() < N) {
+			for (var entry : entries.values())
+				if (entry.text.contains(p))
+					result.add(entry.value);
+			return result;
+		}
+
+		// any trigram of the pattern narrows the candidates down, the rarest the most
+		Set<String> candidates = null;
+		for (String gram : trigrams(p)) {
+			Set<String> ids = postings.get(gram);
+			if (ids == null)
+				return result;
+			if (candidates == null || ids.size() < candidates.size())
+				candidates = ids;
+		}
+
+		for (String id : candidates) {
+			var entry = entries.get(id);
+			if (entry != null && entry.text.contains(p))
+				result.add(entry.value);
+		}
+		return result;
+	}
+
+	public List<T> values() {
+		List<T> values = new ArrayList<>(entries.size());
+		for (var entry : entries.values())
+			values.add(entry.value);
+		return values;
+	}
+
+	private void unpost(String gram, String id) {
+		postings.computeIfPresent(gram, (g, ids) -> {
+			ids.remove(id);
+			return ids.isEmpty() ? null : ids;
+		});
+	}
+
+	private static Set<String> trigrams(String text) {
+		Set<String> grams = new HashSet<>();
+		for (int i = 0; i + N <= text.length(); i++)
+			grams.add(text.substring(i, i + N));
+		return grams;
+	}
+}
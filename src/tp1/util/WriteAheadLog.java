@@ -0,0 +1,426 @@
+package tp1.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Append-only log of the mutations of a service, periodically compacted into a snapshot of its whole state,
+ * so that the state survives restarts.
+ *
+ * The log is a sequence of segments (log-N), each starting where snapshot-N was taken. Records are framed
+ * with their length and CRC, so that a record torn by a crash ends the replay. Appending only buffers the
+ * record; await writes every buffered record with a single write (and fsync), shared by all the threads
+ * waiting at the time (group commit).
+ *
+ * Records must be idempotent: a snapshot may already include the effects of the first records of the segment
+ * that follows it, which are replayed again on recovery.
+ *
+ */
+public class WriteAheadLog {
+
+	public enum FsyncPolicy {
+		// await returns once the record is on disk
+		ALWAYS,
+		// await returns once the record is written; the log is forced to disk every FSYNC_INTERVAL
+		INTERVAL,
+		// await returns once the record is written; the OS decides when it reaches the disk
+		NEVER
+	}
+
+	public final static long FSYNC_INTERVAL = 1000;
+
+	private final static String LOG_PREFIX = "log-";
+	private final static String SNAPSHOT_PREFIX = "snapshot-";
+	private final static String TMP_SUFFIX = ".tmp";
+
+	@FunctionalInterface
+	public interface Writer {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface Reader {
+		void read(DataInputStream in) throws IOException;
+	}
+
+	private static Logger Log = Logger.getLogger(WriteAheadLog.class.getName());
+
+	private static final ExecutorService snapshots = Executors.newSingleThreadExecutor(r -> {
+		var t = new Thread(r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Path dir;
+	private final FsyncPolicy policy;
+	private final long snapshotThreshold;
+	private final Writer snapshotState;
+
+	// records appended but not yet written; guarded by this, as are the fields below
+	private final List<ByteBuffer> pending = new ArrayList<>();
+	// sequence numbers of the last record appended and of the last record written
+	private long appended, written;
+	// set while a thread writes to the log, which excludes any other writer or rotation of the segment
+	private boolean writing;
+	private IOException failure;
+	private long segment;
+	private FileChannel channel;
+	private long segmentStart;
+	private boolean snapshotScheduled;
+
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * @param dir - the directory of the log, created if needed
+	 * @param policy - when records are forced to disk
+	 * @param snapshotThreshold - number of records after which a snapshot is taken
+	 * @param snapshotState - writes the whole state of the service, to be read back by the snapshot reader of recover
+	 */
+	public WriteAheadLog(Path dir, FsyncPolicy policy, long snapshotThreshold, Writer snapshotState) throws IOException {
+		this.dir = dir;
+		this.policy = policy;
+		this.snapshotThreshold = snapshotThreshold;
+		this.snapshotState = snapshotState;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Rebuilds the state of the service from the latest snapshot and the records logged after it, then opens
+	 * a new segment for the records to come. Must be called once, before any record is appended.
+	 */
+	public void recover(Reader snapshot, Reader record) throws IOException {
+		var snapshotFiles = new TreeMap<Long, Path>();
+		var logFiles = new TreeMap<Long, Path>();
+		try (var files = Files.list(dir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TMP_SUFFIX))
+					Files.delete(file);
+				else if (name.startsWith(SNAPSHOT_PREFIX))
+					snapshotFiles.put(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())), file);
+				else if (name.startsWith(LOG_PREFIX))
+					logFiles.put(Long.parseLong(name.substring(LOG_PREFIX.length())), file);
+			}
+		}
+
+		long start = 0;
+		var latest = snapshotFiles.lastEntry();
+		if (latest != null) {
+			start = latest.getKey();
+			try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(latest.getValue())))) {
+				snapshot.read(in);
+			}
+		}
+
+		long last = start, replayed = 0;
+		for (var e : logFiles.tailMap(start, true).entrySet()) {
+			last = Math.max(last, e.getKey());
+			replayed += replay(e.getValue(), record);
+		}
+		Log.info(String.format("Recovered %s from snapshot %d and %d logged records", dir, start, replayed));
+
+		synchronized (this) {
+			segment = last + 1;
+			channel = openSegment(segment);
+		}
+
+		if (policy == FsyncPolicy.INTERVAL) {
+			ScheduledExecutorService fsync = Executors.newSingleThreadScheduledExecutor(r -> {
+				var t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			});
+			fsync.scheduleWithFixedDelay(this::force, FSYNC_INTERVAL, FSYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Replays the records of a segment. A torn record (left by a crash while writing) and anything after it
+	 * are truncated away.
+	 * @return the number of records replayed
+	 */
+	private static long replay(Path file, Reader record) throws IOException {
+		long count = 0, valid = 0, size = Files.size(file);
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return count;
+				}
+
+				byte[] payload = null;
+				try {
+					int crc = in.readInt();
+					if (length >= 0 && length <= size - valid - 8) {
+						payload = new byte[length];
+						in.readFully(payload);
+						if (crc != crc(payload))
+							payload = null;
+					}
+				} catch (EOFException e) {
+					payload = null;
+				}
+				if (payload == null)
+					break;
+
+				record.read(new DataInputStream(new ByteArrayInputStream(payload)));
+				valid += 8 + length;
+				count++;
+			}
+		}
+
+		Log.warning(String.format("Log %s ends with a torn record, truncating it after %d records", file, count));
+		try (var ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ch.truncate(valid);
+			ch.force(true);
+		}
+		return count;
+	}
+
+	private FileChannel openSegment(long n) throws IOException {
+		return FileChannel.open(dir.resolve(LOG_PREFIX + n),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Buffers a record, to be written by the next call to await. Records are replayed in the order they
+	 * were appended, so mutations of the same object must be appended while holding its lock.
+	 * @return the sequence number of the record, to pass to await
+	 */
+	public long append(Writer record) {
+		var bytes = new ByteArrayOutputStream();
+		try {
+			record.write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		byte[] payload = bytes.toByteArray();
+
+		var frame = ByteBuffer.allocate(8 + payload.length);
+		frame.putInt(payload.length).putInt(crc(payload)).put(payload).flip();
+
+		synchronized (this) {
+			pending.add(frame);
+			return ++appended;
+		}
+	}
+
+	/**
+	 * Waits until a record is written to the log (and forced to disk, depending on the policy). The first
+	 * thread to wait writes the records buffered by all the others.
+	 */
+	public void await(long seq) throws IOException {
+		List<ByteBuffer> batch;
+		long last;
+		synchronized (this) {
+			while (written < seq && writing && failure == null)
+				waitUninterruptibly();
+			if (failure != null)
+				throw failure;
+			if (written >= seq)
+				return;
+
+			writing = true;
+			batch = new ArrayList<>(pending);
+			pending.clear();
+			last = appended;
+		}
+
+		IOException error = null;
+		try {
+			write(batch, channel, policy == FsyncPolicy.ALWAYS);
+		} catch (IOException e) {
+			error = e;
+		}
+
+		boolean snapshot = false;
+		synchronized (this) {
+			writing = false;
+			if (error != null)
+				failure = error;
+			else
+				written = last;
+			if (!snapshotScheduled && written - segmentStart >= snapshotThreshold)
+				snapshot = snapshotScheduled = true;
+			notifyAll();
+		}
+
+		if (error != null) {
+			Log.severe(String.format("Failed to write %s, no longer accepting records: %s", dir, error));
+			throw error;
+		}
+		if (snapshot)
+			snapshots.submit(() -> {
+				try {
+					snapshot();
+				} catch (Exception e) {
+					Log.warning(String.format("Failed to snapshot %s: %s", dir, e));
+				}
+			});
+	}
+
+	private static void write(List<ByteBuffer> batch, FileChannel target) throws IOException {
+		var buffers = batch.toArray(new ByteBuffer[0]);
+		long remaining = 0;
+		for (var b : buffers)
+			remaining += b.remaining();
+		while (remaining > 0)
+			remaining -= target.write(buffers);
+	}
+
+	/**
+	 * Starts a new segment, then writes a snapshot of the state of the service and deletes the snapshots and
+	 * segments preceding it. The state is captured after the segment changed, so every record left in the
+	 * previous segments is reflected in it.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			List<ByteBuffer> batch;
+			long last, n;
+			synchronized (this) {
+				while (writing && failure == null)
+					waitUninterruptibly();
+				if (failure != null)
+					throw failure;
+				writing = true;
+				batch = new ArrayList<>(pending);
+				pending.clear();
+				last = appended;
+			}
+
+			FileChannel previous = channel;
+			IOException error = null;
+			try {
+				write(batch, previous, true);
+				channel = openSegment(segment + 1);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (this) {
+				writing = false;
+				snapshotScheduled = false;
+				notifyAll();
+				if (error != null) {
+					failure = error;
+					throw error;
+				}
+				written = last;
+				segmentStart = last;
+				n = ++segment;
+			}
+			previous.close();
+
+			Path tmp = dir.resolve(SNAPSHOT_PREFIX + n + TMP_SUFFIX);
+			try (var ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+				snapshotState.write(out);
+				out.flush();
+				ch.force(true);
+			}
+			Files.move(tmp, dir.resolve(SNAPSHOT_PREFIX + n), StandardCopyOption.ATOMIC_MOVE);
+
+			try (var files = Files.list(dir)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					String name = file.getFileName().toString();
+					if (name.startsWith(SNAPSHOT_PREFIX) && Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())) < n
+							|| name.startsWith(LOG_PREFIX) && Long.parseLong(name.substring(LOG_PREFIX.length())) < n)
+						Files.delete(file);
+				}
+			}
+		}
+	}
+
+	private void force() {
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			// the segment was closed by a snapshot, which forced it
+		}
+	}
+
+	/**
+	 * Waits on this, deferring interrupts: an interrupt while writing would close the channel of the segment.
+	 */
+	private void waitUninterruptibly() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			interrupted.set(true);
+		}
+	}
+
+	private static final ThreadLocal<Boolean> interrupted = ThreadLocal.withInitial(() -> false);
+
+	/**
+	 * Writes and optionally forces a batch of records with the interrupt status of the thread cleared, restoring
+	 * it afterwards, along with any interrupt deferred while waiting.
+	 */
+	private static void write(List<ByteBuffer> batch, FileChannel target, boolean force) throws IOException {
+		boolean wasInterrupted = Thread.interrupted() | interrupted.get();
+		interrupted.set(false);
+		try {
+			write(batch, target);
+			if (force)
+				target.force(false);
+		} finally {
+			if (wasInterrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int crc(byte[] payload) {
+		var crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes a string, or null, without the 64KB limit of writeUTF.
+	 */
+	public static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
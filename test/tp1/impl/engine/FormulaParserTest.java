@@ -0,0 +1,102 @@
+package tp1.impl.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import tp1.util.CellRange;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FormulaParserTest {
+
+	// A1 = 2, B1 = 3, A2 = "x", B2 blank
+	private static final Object[][] CELLS = { { 2.0, 3.0 }, { "x", "" } };
+
+	private static final Formula.Env ENV = new Formula.Env() {
+		public Object valueOf(int row, int col) {
+			return row < CELLS.length && col < CELLS[row].length ? CELLS[row][col] : "";
+		}
+
+		public int rows() {
+			return CELLS.length;
+		}
+
+		public int cols() {
+			return CELLS[0].length;
+		}
+	};
+
+	private static Object eval(String rawVal) throws UnsupportedFormulaException {
+		return FormulaParser.parse(rawVal).evaluate(ENV);
+	}
+
+	@Test
+	void precedence() throws Exception {
+		assertEquals(7.0, eval("=1+2*3"));
+		assertEquals(9.0, eval("=(1+2)*3"));
+		assertEquals(-1.0, eval("=1-2"));
+		assertEquals(7.0, eval("=1+2^3-2"));
+		assertEquals(4.0, eval("=-2^2"));
+		assertEquals(0.5, eval("=50%"));
+		assertEquals(1.0, eval("=2/2"));
+		assertEquals("36", eval("=1+2&3*2"));
+		assertEquals(Boolean.TRUE, eval("=1+1=2"));
+	}
+
+	@Test
+	void literals() throws Exception {
+		assertEquals("say \"hi\"", eval("=\"say \"\"hi\"\"\""));
+		assertEquals(1.5e3, eval("=1.5E3"));
+		assertEquals(0.25, eval("=.25"));
+		assertEquals(Boolean.TRUE, eval("=true"));
+		assertEquals(Boolean.FALSE, eval("=FALSE()"));
+		assertEquals(3.0, eval("= 1 +  2 "));
+	}
+
+	@Test
+	void references() throws Exception {
+		assertEquals(5.0, eval("=A1+B1"));
+		assertEquals(5.0, eval("=$A$1+b$1"));
+		assertEquals(5.0, eval("=SUM(A1:B2)"));
+		assertEquals(5.0, eval("=sum(B2:A1)"));
+		assertEquals(2.0, eval("=COUNT(A1:Z100)"));
+		assertEquals("x2", eval("=A2&A1"));
+
+		List<CellRange> refs = new ArrayList<>();
+		FormulaParser.parse("=SUM(B3:A1)+C4").references(refs);
+		assertEquals(2, refs.size());
+		assertEquals(new CellRange("A1:B3").toString(), refs.get(0).toString());
+		assertEquals(new CellRange(3, 2, 3, 2).toString(), refs.get(1).toString());
+	}
+
+	@Test
+	void functions() throws Exception {
+		assertEquals(3.0, eval("=IF(A1>B1,A1,B1)"));
+		assertEquals(2.5, eval("=AVERAGE(A1:B1)"));
+		assertEquals(Boolean.FALSE, eval("=AND(A1=2,NOT(TRUE))"));
+		assertEquals(1.0, eval("=MOD(-5;3)"));
+		assertEquals(-3.0, eval("=ROUND(-2.5,0)"));
+		assertEquals(2.68, eval("=ROUND(2.675,2)"));
+		assertEquals(1300.0, eval("=ROUND(1250,-2)"));
+		assertEquals("X", eval("=UPPER(A2)"));
+		assertEquals("a2b", eval("=CONCATENATE(\"a\",A1,\"b\")"));
+	}
+
+	@Test
+	void errors() throws Exception {
+		assertEquals(Formula.ERROR, eval("=1/0"));
+		assertEquals(Formula.ERROR, eval("=A2+1"));
+		assertEquals(Formula.ERROR, eval("=MOD(1,0)"));
+		assertEquals(Formula.ERROR, eval("=SQRT(-1)"));
+	}
+
+	@Test
+	void unsupported() {
+		for (String rawVal : new String[] { "=", "=1+", "=(1", "=\"open", "=1 2", "=VLOOKUP(A1,A1:B2,2)",
+				"=Sheet1!A1", "=total", "=A1:", "=A1:total", "=1=>2", "=#REF!" })
+			assertThrows(UnsupportedFormulaException.class, () -> FormulaParser.parse(rawVal), rawVal);
+	}
+}
@@ -0,0 +1,96 @@
+package tp1.impl.engine;
+
+import org.junit.jupiter.api.Test;
+
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.util.CellRange;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * The values computed by the NativeSpreadsheetEngine must match, cell by cell, those computed by GemBox.
+ */
+class NativeSpreadsheetEngineTest {
+
+	private static final String[][] IMPORTED = { { "5", "6" }, { "7", "8" } };
+
+	private static AbstractSpreadsheet sheet(String[][] rawValues) {
+		return new AbstractSpreadsheet() {
+			public int rows() {
+				return rawValues.length;
+			}
+
+			public int columns() {
+				return rawValues[0].length;
+			}
+
+			public String sheetId() {
+				return null;
+			}
+
+			public String cellRawValue(int row, int col) {
+				return rawValues[row][col];
+			}
+
+			public String[][] rangeValues(String sheetURL, String range) {
+				return IMPORTED;
+			}
+		};
+	}
+
+	private static void assertParity(String[]... rawValues) {
+		var expected = SpreadsheetEngineImpl.getInstance().computeSpreadsheetValues(sheet(rawValues));
+		assertArrayEquals(expected, NativeSpreadsheetEngine.getInstance().computeSpreadsheetValues(sheet(rawValues)));
+
+		var range = new CellRange(0, 0, rawValues.length - 1, rawValues[0].length - 1);
+		assertArrayEquals(expected, NativeSpreadsheetEngine.getInstance().computeRangeValues(sheet(rawValues), range));
+	}
+
+	@Test
+	void constants() {
+		assertParity(new String[] { "1", "2.5", "-0.5", "1e3", "abc", "TRUE", "false", "" });
+	}
+
+	@Test
+	void arithmetic() {
+		assertParity(new String[] { "1", "2.5", "=A1+B1", "=A1/B1*2", "=-B1^2", "=10%", "=1e20" });
+	}
+
+	@Test
+	void text() {
+		assertParity(new String[] { "abc", "TRUE", "=A1&\"d\"", "=B1", "=\"n\"&1", "=UPPER(A1)", "=LEN(A1)" });
+	}
+
+	@Test
+	void comparisons() {
+		assertParity(new String[] { "3", "=A1*2", "=B1>A1", "=IF(C1,\"yes\",\"no\")", "=A1=\"3\"", "=\"a\"<\"B\"" });
+	}
+
+	@Test
+	void aggregates() {
+		assertParity(new String[] { "1", "", "x", "=SUM(A1:C1)", "=COUNT(A1:C1)", "=COUNTA(A1:C1)" },
+				new String[] { "4", "TRUE", "2", "=AVERAGE(A1:C2)", "=MAX(A1:C2)", "=MIN(A1:C2)" });
+	}
+
+	@Test
+	void rounding() {
+		assertParity(new String[] { "-1.5", "=ABS(A1)", "=ROUND(A1,0)", "=ROUND(2.675,2)", "=ROUND(1250,-2)", "=MOD(-5,3)" });
+	}
+
+	@Test
+	void chains() {
+		assertParity(new String[] { "=B1+1", "=C1*2", "=D1-1", "4" },
+				new String[] { "=SUM(A1:D1)", "=A2&B1", "=$D$1", "=d1" });
+	}
+
+	@Test
+	void importrange() {
+		assertParity(new String[] { "=importrange(\"http://server/rest/spreadsheets/s\",\"A1:B2\")", "x" },
+				new String[] { "", "=A1+1" });
+	}
+
+	@Test
+	void unsupported() {
+		assertParity(new String[] { "1", "2", "=VLOOKUP(A1,A1:B1,2)", "=A1+B1" });
+	}
+}
@@ -0,0 +1,67 @@
+package tp1.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DomainTokensTest {
+
+	private static final String OPERATION = DomainTokens.DELETE_USER_SPREADSHEETS;
+
+	@BeforeEach
+	void setSecret() {
+		System.setProperty(SpreadsheetReplication.SECRET_PROPERTY, "secret");
+	}
+
+	@AfterEach
+	void clearSecret() {
+		System.clearProperty(SpreadsheetReplication.SECRET_PROPERTY);
+	}
+
+	@Test
+	void allowsOnlyWhatWasIssued() {
+		String token = DomainTokens.issue(OPERATION, "user");
+		assertTrue(DomainTokens.verify(token, OPERATION, "user"));
+
+		assertFalse(DomainTokens.verify(token, OPERATION, "other"));
+		assertFalse(DomainTokens.verify(token, DomainTokens.INVALIDATE_USER_CREDENTIALS, "user"));
+		assertFalse(DomainTokens.verify(null, OPERATION, "user"));
+		assertFalse(DomainTokens.verify(token, OPERATION, null));
+
+		System.setProperty(SpreadsheetReplication.SECRET_PROPERTY, "other");
+		assertFalse(DomainTokens.verify(token, OPERATION, "user"));
+	}
+
+	@Test
+	void rejectsForgedTokens() {
+		String token = DomainTokens.issue(OPERATION, "user");
+		int sep = token.indexOf('-');
+
+		// passwords, tampered macs and reissued times
+		for (String forged : new String[] { "", "pwd", "-", token.substring(sep), token.substring(0, sep + 1),
+				token.substring(0, token.length() - 1), token + "A",
+				(Long.parseLong(token.substring(0, sep)) + 1) + token.substring(sep) })
+			assertFalse(DomainTokens.verify(forged, OPERATION, "user"), forged);
+	}
+
+	@Test
+	void expires() {
+		long now = System.currentTimeMillis();
+		assertTrue(DomainTokens.verify(DomainTokens.issue(OPERATION, "user", now - DomainTokens.TOKEN_TTL + 5000), OPERATION, "user"));
+		assertFalse(DomainTokens.verify(DomainTokens.issue(OPERATION, "user", now - DomainTokens.TOKEN_TTL - 1000), OPERATION, "user"));
+		assertFalse(DomainTokens.verify(DomainTokens.issue(OPERATION, "user", now + DomainTokens.TOKEN_TTL + 1000), OPERATION, "user"));
+	}
+
+	@Test
+	void requiresSecret() {
+		String token = DomainTokens.issue(OPERATION, "user");
+		System.clearProperty(SpreadsheetReplication.SECRET_PROPERTY);
+
+		assertNull(DomainTokens.issue(OPERATION, "user"));
+		assertFalse(DomainTokens.verify(token, OPERATION, "user"));
+	}
+}
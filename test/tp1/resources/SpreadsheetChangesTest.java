@@ -0,0 +1,113 @@
+package tp1.resources;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tp1.api.Spreadsheet;
+import tp1.api.SpreadsheetChanges;
+import tp1.api.User;
+import tp1.api.service.util.Result;
+import tp1.clients.sheet.SpreadsheetClient;
+import tp1.clients.sheet.SpreadsheetRestClient;
+import tp1.clients.user.UsersClient;
+import tp1.discovery.Discovery;
+import tp1.server.WebServiceType;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Long-polls for changes made over HTTP, to a server set up as SpreadsheetRestServer sets up its own.
+ */
+class SpreadsheetChangesTest {
+
+	private HttpServer server;
+	private SpreadsheetClient client;
+
+	@BeforeEach
+	void startServer() throws Exception {
+		var config = new ResourceConfig();
+		config.register(new UsersResource("domain", WebServiceType.REST));
+		config.register(new SpreadsheetResource("domain", WebServiceType.REST));
+
+		server = JdkHttpServerFactory.createHttpServer(URI.create("http://localhost:0/rest"), config, false);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		String serverURI = String.format("http://localhost:%d/rest", server.getAddress().getPort());
+
+		var discovery = new Discovery("domain", SpreadsheetClient.SERVICE, serverURI);
+		discovery.addClient("domain", UsersClient.SERVICE, serverURI);
+		SpreadsheetResource.setDiscovery(discovery);
+
+		discovery.getUserClient("domain").createUser(new User("owner", "Owner", "owner@domain", "pwd"));
+		client = new SpreadsheetRestClient(serverURI);
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.stop(0);
+		SpreadsheetResource.setDiscovery(null);
+	}
+
+	private static Spreadsheet sheet() {
+		var sheet = new Spreadsheet();
+		sheet.setOwner("owner");
+		sheet.setRows(10);
+		sheet.setColumns(10);
+		return sheet;
+	}
+
+	private SpreadsheetChanges await(long epoch, long version, long timeout) throws Exception {
+		Result<SpreadsheetChanges> result = client.awaitSpreadsheetChanges(epoch, version, null, timeout);
+		assertTrue(result.isOK(), result.toString());
+		return result.value();
+	}
+
+	@Test
+	void wakesOnChange() throws Exception {
+		// another epoch replies at once, with the whole log
+		var first = await(0, 0, 10000);
+
+		var poll = CompletableFuture.supplyAsync(() -> {
+			try {
+				return await(first.getEpoch(), first.getVersion(), 10000);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		Thread.sleep(200);
+
+		// the server keeps replying while the poll is held
+		long start = System.currentTimeMillis();
+		var created = client.createSpreadsheet(sheet(), "pwd");
+		assertTrue(created.isOK(), created.toString());
+
+		var changes = poll.get(5, TimeUnit.SECONDS);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(first.getEpoch(), changes.getEpoch());
+		assertEquals(first.getVersion() + 1, changes.getVersion());
+		assertEquals(1, changes.getChanged().size());
+		assertEquals(created.value(), changes.getChanged().get(0).getSheetId());
+	}
+
+	@Test
+	void timesOut() throws Exception {
+		var first = await(0, 0, 10000);
+
+		long start = System.currentTimeMillis();
+		var changes = await(first.getEpoch(), first.getVersion(), 300);
+		assertTrue(System.currentTimeMillis() - start >= 300);
+		assertEquals(first.getVersion(), changes.getVersion());
+		assertTrue(changes.getChanged().isEmpty());
+		assertTrue(changes.getDeleted().isEmpty());
+	}
+}
@@ -0,0 +1,134 @@
+package tp1.resources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import tp1.api.Spreadsheet;
+import tp1.util.CellRange;
+import tp1.util.WriteAheadLog;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpreadsheetRecordsTest {
+
+	private static DataInputStream encode(WriteAheadLog.Writer writer) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		writer.write(new DataOutputStream(bytes));
+		return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	private static Spreadsheet sheet(String sheetId) {
+		var proto = new Spreadsheet();
+		proto.setOwner("owner");
+		proto.setRows(1000);
+		proto.setColumns(50);
+		proto.setSharedWith(new HashSet<>(Set.of("user@domain")));
+
+		var sheet = new Spreadsheet(proto, sheetId, "domain");
+		sheet.publish(sheet.withCellRawValue(3, 4, "=A1+1"));
+		sheet.publish(sheet.withCellRawValue(3, 0, "text"));
+		sheet.publish(sheet.withCellRawValue(999, 49, ""));
+		return sheet;
+	}
+
+	private static void assertSameSheet(Spreadsheet expected, Spreadsheet actual) {
+		assertEquals(expected.getSheetId(), actual.getSheetId());
+		assertEquals(expected.getOwner(), actual.getOwner());
+		assertEquals(expected.getSheetURL(), actual.getSheetURL());
+		assertEquals(expected.getRows(), actual.getRows());
+		assertEquals(expected.getColumns(), actual.getColumns());
+		assertEquals(expected.getSharedWith(), actual.getSharedWith());
+		assertEquals(expected.getVersion(), actual.getVersion());
+		assertArrayEquals(expected.getRawValues(), actual.getRawValues());
+	}
+
+	/**
+	 * Replica listing the mutations replayed.
+	 */
+	private static class Mutations implements SpreadsheetRecords.Replica {
+		final List<Object> replayed = new ArrayList<>();
+
+		public void created(Spreadsheet sheet) {
+			replayed.add(sheet);
+		}
+
+		public void deleted(String sheetId) {
+			replayed.add(List.of("deleted", sheetId));
+		}
+
+		public void cellUpdated(String sheetId, int row, int col, String rawValue) {
+			replayed.add(List.of("cell", sheetId, row, col, rawValue));
+		}
+
+		public void rangeUpdated(String sheetId, CellRange range, String[][] rawValues) {
+			replayed.add(List.of("range", sheetId, range.toString(), Arrays.deepToString(rawValues)));
+		}
+
+		public void shared(String sheetId, String userId) {
+			replayed.add(List.of("shared", sheetId, userId));
+		}
+
+		public void unshared(String sheetId, String userId) {
+			replayed.add(List.of("unshared", sheetId, userId));
+		}
+	}
+
+	@Test
+	void recordsRoundTrip() throws IOException {
+		var sheet = sheet("sheet");
+		var replica = new Mutations();
+
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.created(sheet)), replica);
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.cellUpdated("sheet", 2, 3, "=B2*2")), replica);
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.rangeUpdated("sheet", "A1:B2", new String[][] { { "1", "2" }, { "", "4" } })), replica);
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.shared("sheet", "other@domain")), replica);
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.unshared("sheet", "other@domain")), replica);
+		SpreadsheetRecords.replay(encode(SpreadsheetRecords.deleted("sheet")), replica);
+
+		assertEquals(6, replica.replayed.size());
+		assertSameSheet(sheet, (Spreadsheet) replica.replayed.get(0));
+		assertEquals(List.of("cell", "sheet", 2, 3, "=B2*2"), replica.replayed.get(1));
+		assertEquals(List.of("range", "sheet", new CellRange("A1:B2").toString(), "[[1, 2], [, 4]]"), replica.replayed.get(2));
+		assertEquals(List.of("shared", "sheet", "other@domain"), replica.replayed.get(3));
+		assertEquals(List.of("unshared", "sheet", "other@domain"), replica.replayed.get(4));
+		assertEquals(List.of("deleted", "sheet"), replica.replayed.get(5));
+	}
+
+	@Test
+	void snapshotRoundTrip() throws IOException {
+		Map<String, Spreadsheet> spreadsheets = new ConcurrentHashMap<>();
+		for (String sheetId : List.of("a", "b", "c"))
+			spreadsheets.put(sheetId, sheet(sheetId));
+		var b = spreadsheets.get("b");
+		b.publish(b.withCellRawValue(0, 0, "first"));
+		spreadsheets.put("empty", new Spreadsheet(new Spreadsheet(), "empty", "domain"));
+
+		var restored = SpreadsheetRecords.readSnapshot(encode(out -> SpreadsheetRecords.writeSnapshot(out, spreadsheets)));
+
+		assertEquals(spreadsheets.keySet(), restored.keySet());
+		for (var sheet : spreadsheets.values())
+			assertSameSheet(sheet, restored.get(sheet.getSheetId()));
+	}
+
+	@Test
+	void unknownRecord() {
+		assertThrows(IOException.class, () -> SpreadsheetRecords.replay(encode(out -> {
+			out.writeByte(42);
+			WriteAheadLog.writeString(out, "sheet");
+		}), new Mutations()));
+	}
+}
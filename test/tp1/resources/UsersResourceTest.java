@@ -0,0 +1,150 @@
+package tp1.resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tp1.api.User;
+import tp1.api.UsersPage;
+import tp1.api.service.soap.UsersException;
+import tp1.server.WebServiceType;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UsersResourceTest {
+
+	private UsersResource resource;
+
+	@BeforeEach
+	void createUsers() throws UsersException {
+		resource = new UsersResource("domain", WebServiceType.SOAP);
+		for (int i = 0; i < 30; i++)
+			resource.createUser(user(i));
+	}
+
+	private static User user(int i) {
+		return new User("user" + i, (i % 2 == 0 ? "Even " : "Odd ") + i, "user" + i + "@domain", "pwd" + i);
+	}
+
+	/**
+	 * Applies a page to the users a client knows of.
+	 */
+	private static void apply(Map<String, User> known, UsersPage page) {
+		for (User user : page.getUsers())
+			known.put(user.getUserId(), user);
+		for (String userId : page.getDeleted())
+			known.remove(userId);
+	}
+
+	private Map<String, User> current() throws UsersException {
+		var current = new HashMap<String, User>();
+		for (User user : resource.searchUsers(null))
+			current.put(user.getUserId(), user);
+		return current;
+	}
+
+	@Test
+	void pagesCoverEveryUserOnce() throws UsersException {
+		var seen = new ArrayList<String>();
+		String cursor = null;
+		UsersPage page;
+		do {
+			page = resource.getUsersPage(null, cursor, 7);
+			assertTrue(page.getUsers().size() <= 7);
+			assertTrue(page.getDeleted().isEmpty());
+			page.getUsers().forEach(u -> seen.add(u.getUserId()));
+			cursor = page.getNext();
+		} while (page.isMore());
+
+		assertEquals(30, seen.size());
+		assertEquals(current().keySet(), new HashSet<>(seen));
+
+		// nothing changed since the last page
+		page = resource.getUsersPage(null, cursor, 7);
+		assertTrue(page.getUsers().isEmpty());
+		assertFalse(page.isMore());
+		assertEquals(cursor, page.getNext());
+	}
+
+	@Test
+	void pagesFollowDeletes() throws UsersException {
+		var known = new HashMap<String, User>();
+		UsersPage page = resource.getUsersPage(null, null, 10);
+		apply(known, page);
+		assertTrue(page.isMore());
+
+		// deleting a user already seen, one not seen yet, and one created and deleted between the pages
+		resource.deleteUser("user3", "pwd3");
+		resource.deleteUser("user25", "pwd25");
+		resource.createUser(user(30));
+		resource.deleteUser("user30", "pwd30");
+		resource.updateUser("user4", "pwd4", new User(null, "Renamed 4", null, null));
+
+		var seen = new ArrayList<String>();
+		String cursor = page.getNext();
+		do {
+			page = resource.getUsersPage(null, cursor, 10);
+			apply(known, page);
+			page.getUsers().forEach(u -> seen.add(u.getUserId()));
+			cursor = page.getNext();
+		} while (page.isMore());
+
+		assertEquals(current(), known);
+		assertFalse(seen.contains("user25"));
+		assertTrue(seen.contains("user4"));
+		assertEquals("Renamed 4", known.get("user4").getFullName());
+
+		// deletes after the last page come in the next one
+		resource.deleteUser("user0", "pwd0");
+		page = resource.getUsersPage(null, cursor, 10);
+		assertTrue(page.getUsers().isEmpty());
+		assertEquals(List.of("user0"), page.getDeleted());
+		apply(known, page);
+		assertEquals(current(), known);
+	}
+
+	@Test
+	void firstPageOmitsDeletes() throws UsersException {
+		resource.deleteUser("user0", "pwd0");
+
+		var page = resource.getUsersPage(null, null, 100);
+		assertEquals(29, page.getUsers().size());
+		assertTrue(page.getDeleted().isEmpty());
+		assertFalse(page.isMore());
+	}
+
+	@Test
+	void pagesFilterByName() throws UsersException {
+		var known = new HashMap<String, User>();
+		String cursor = null;
+		UsersPage page;
+		do {
+			page = resource.getUsersPage("EVEN", cursor, 4);
+			apply(known, page);
+			cursor = page.getNext();
+		} while (page.isMore());
+
+		assertEquals(15, known.size());
+		for (User user : known.values())
+			assertTrue(user.getFullName().startsWith("Even "));
+	}
+
+	@Test
+	void cursors() throws UsersException {
+		assertThrows(UsersException.class, () -> resource.getUsersPage(null, "not-a-cursor", 10));
+
+		// a cursor of another incarnation of the server starts over
+		var other = new UsersResource("domain", WebServiceType.SOAP);
+		other.createUser(user(0));
+		var page = resource.getUsersPage(null, other.getUsersPage(null, null, 10).getNext(), 100);
+		assertEquals(30, page.getUsers().size());
+	}
+}
@@ -0,0 +1,33 @@
+package tp1.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CellRangeTest {
+
+	@Test
+	void fitsIn() {
+		assertTrue(new CellRange("A1:A1").fitsIn(1, 1));
+		assertTrue(new CellRange("B2:C10").fitsIn(10, 3));
+		assertFalse(new CellRange("B2:C10").fitsIn(9, 3));
+		assertFalse(new CellRange("B2:C10").fitsIn(10, 2));
+
+		// reversed, negative and bad ranges
+		assertFalse(new CellRange("B2:A2").fitsIn(10, 10));
+		assertFalse(new CellRange("A2:A1").fitsIn(10, 10));
+		assertFalse(new CellRange(0, -1, 1, 1).fitsIn(10, 10));
+		assertFalse(new CellRange(-1, 0, 1, 1).fitsIn(10, 10));
+		assertFalse(new CellRange("a1:b2").fitsIn(10, 10));
+		assertFalse(new CellRange("A0:B2").fitsIn(10, 10));
+	}
+
+	@Test
+	void extractsRange() {
+		String[][] values = { { "a", "b", "c" }, { "d", "e", "f" } };
+		assertArrayEquals(new String[][] { { "b", "c" }, { "e", "f" } }, new CellRange("B1:C2").extractRangeValuesFrom(values));
+		assertArrayEquals(new String[][] { { "d" } }, new CellRange("A2:A2").extractRangeValuesFrom(values));
+	}
+}
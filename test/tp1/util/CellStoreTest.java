@@ -0,0 +1,151 @@
+package tp1.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CellStoreTest {
+
+	private static final int ROWS = 40, COLS = 30;
+
+	/**
+	 * Checks a store against the matrix of raw values it should hold, through every way of reading it.
+	 */
+	private static void assertHolds(String[][] expected, CellStore store) {
+		assertEquals(expected.length, store.rows());
+		assertEquals(expected[0].length, store.cols());
+
+		int filled = 0;
+		List<String> cells = new ArrayList<>();
+		for (int row = 0; row < expected.length; row++)
+			for (int col = 0; col < expected[row].length; col++) {
+				assertEquals(expected[row][col], store.get(row, col));
+				if (expected[row][col] != null) {
+					filled++;
+					cells.add(row + "," + col + "=" + expected[row][col]);
+				}
+			}
+		assertEquals(filled, store.filled());
+
+		List<String> visited = new ArrayList<>();
+		store.forEach((row, col, rawValue) -> visited.add(row + "," + col + "=" + rawValue));
+		assertEquals(cells, visited);
+
+		assertArrayEquals(expected, store.toArray());
+	}
+
+	private static String[][] copy(String[][] values) {
+		var copy = new String[values.length][];
+		for (int r = 0; r < values.length; r++)
+			copy[r] = values[r].clone();
+		return copy;
+	}
+
+	@Test
+	void writesUntilDense() {
+		var random = new Random(42);
+		var expected = new String[ROWS][COLS];
+		CellStore store = CellStore.empty(ROWS, COLS);
+		assertTrue(store instanceof SparseCellStore);
+
+		List<CellStore> stores = new ArrayList<>();
+		List<String[][]> states = new ArrayList<>();
+		for (int i = 0; i < ROWS * COLS / 2; i++) {
+			int row = random.nextInt(ROWS), col = random.nextInt(COLS);
+			String value = "v" + i;
+			if (random.nextInt(10) == 0) {
+				// a block, some of whose cells are left unchanged
+				int rows = 1 + random.nextInt(Math.min(3, ROWS - row)), cols = 1 + random.nextInt(Math.min(3, COLS - col));
+				var block = new String[rows][cols];
+				for (int r = 0; r < rows; r++)
+					for (int c = 0; c < cols; c++)
+						if ((r + c) % 2 == 0)
+							block[r][c] = expected[row + r][col + c] = value + "." + r + "." + c;
+				store = CellStore.fit(store.with(row, col, block));
+			} else {
+				expected[row][col] = value;
+				store = CellStore.fit(store.with(row, col, value));
+			}
+
+			if (i % 50 == 0) {
+				stores.add(store);
+				states.add(copy(expected));
+			}
+		}
+
+		assertTrue(store instanceof DenseCellStore);
+		assertHolds(expected, store);
+
+		// writes leave the stores they derive from unchanged, whichever their representation
+		for (int i = 0; i < stores.size(); i++)
+			assertHolds(states.get(i), stores.get(i));
+	}
+
+	@Test
+	void fitsByFill() {
+		var values = new String[ROWS][COLS];
+		values[1][2] = "x";
+		assertTrue(CellStore.of(values) instanceof SparseCellStore);
+
+		for (int row = 0; row < ROWS / 2; row++)
+			for (int col = 0; col < COLS; col++)
+				values[row][col] = row + "." + col;
+		var dense = CellStore.of(values);
+		assertTrue(dense instanceof DenseCellStore);
+		assertHolds(values, dense);
+
+		var sparse = CellStore.empty(ROWS, COLS).with(0, 0, values);
+		assertTrue(sparse instanceof SparseCellStore);
+		assertHolds(values, CellStore.fit(sparse));
+		assertSame(dense, CellStore.fit(dense));
+	}
+
+	@Test
+	void arraysAreNotShared() {
+		var values = new String[ROWS][COLS];
+		values[0][0] = "a";
+		for (CellStore store : List.of(CellStore.of(values), new DenseCellStore(values))) {
+			var expected = copy(values);
+
+			// neither the matrix a store was built from, nor those it returns, change it, or each other
+			values[0][0] = "changed";
+			values[1][1] = "changed";
+			var array = store.toArray();
+			array[0][0] = "changed";
+			array[2][2] = "changed";
+			array[3][3] = "changed";
+			assertHolds(expected, store);
+			assertNull(store.toArray()[2][2]);
+			assertNull(array[4][4]);
+
+			values[0][0] = "a";
+			values[1][1] = null;
+		}
+	}
+
+	@Test
+	void raggedRows() {
+		String[][] values = { { "a" }, null, { null, "b", "c" } };
+		String[][] expected = { { "a", null, null }, { null, null, null }, { null, "b", "c" } };
+		assertHolds(expected, CellStore.of(values));
+		assertHolds(expected, new DenseCellStore(values));
+	}
+
+	@Test
+	void outOfBounds() {
+		for (CellStore store : List.of(CellStore.empty(2, 3), new DenseCellStore(new String[2][3]))) {
+			assertThrows(IndexOutOfBoundsException.class, () -> store.get(2, 0));
+			assertThrows(IndexOutOfBoundsException.class, () -> store.get(0, 3));
+			assertThrows(IndexOutOfBoundsException.class, () -> store.with(1, 2, new String[][] { { "a", "b" } }));
+		}
+	}
+}
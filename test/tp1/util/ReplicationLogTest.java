@@ -0,0 +1,165 @@
+package tp1.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationLogTest {
+
+	private static final byte[] KEY = "secret".getBytes(StandardCharsets.UTF_8);
+
+	// the state of the primary, and of its backup as rebuilt from the batches it applied
+	private final List<Integer> state = new ArrayList<>();
+	private final List<Integer> replica = new ArrayList<>();
+	private long applied = -1;
+	private final BlockingQueue<ReplicationLog.Batch> batches = new LinkedBlockingQueue<>();
+
+	private ReplicationLog log;
+
+	@AfterEach
+	void close() {
+		if (log != null)
+			log.close();
+	}
+
+	private ReplicationLog open(ReplicationLog.Transport transport, Runnable deposed) {
+		log = new ReplicationLog("shard", "primary", 3, KEY, out -> {
+			synchronized (state) {
+				out.writeInt(state.size());
+				for (int value : state)
+					out.writeInt(value);
+			}
+		}, transport, deposed);
+		return log;
+	}
+
+	/**
+	 * Applies a batch to the replica, as a backup does.
+	 */
+	private synchronized long apply(String backup, byte[] bytes) throws IOException {
+		var batch = ReplicationLog.Batch.decode(bytes, KEY);
+		if (batch.snapshot != null) {
+			var in = new DataInputStream(new ByteArrayInputStream(batch.snapshot));
+			replica.clear();
+			for (int n = in.readInt(); n > 0; n--)
+				replica.add(in.readInt());
+			applied = batch.firstSeq - 1;
+		} else
+			for (int i = 0; i < batch.records.size(); i++)
+				if (batch.firstSeq + i == applied + 1) {
+					replica.add(new DataInputStream(new ByteArrayInputStream(batch.records.get(i))).readInt());
+					applied++;
+				}
+		batches.add(batch);
+		return applied;
+	}
+
+	private long append(int value) {
+		synchronized (state) {
+			state.add(value);
+			return log.append(out -> out.writeInt(value));
+		}
+	}
+
+	private ReplicationLog.Batch nextBatch() throws InterruptedException {
+		var batch = batches.poll(2 * ReplicationLog.HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+		assertNotNull(batch);
+		return batch;
+	}
+
+	@Test
+	void roundTrip() throws Exception {
+		open(this::apply, () -> {});
+		append(1);
+		append(2);
+		log.addBackup("backup");
+		append(3);
+
+		var snapshot = nextBatch();
+		assertEquals("shard", snapshot.shard);
+		assertEquals("primary", snapshot.primary);
+		assertEquals(3, snapshot.term);
+		assertNotNull(snapshot.snapshot);
+		assertTrue(snapshot.records.isEmpty());
+
+		// the backup is listed once it applied the snapshot, and from then on may take over
+		ReplicationLog.Batch batch;
+		long number = snapshot.number;
+		do {
+			batch = nextBatch();
+			assertTrue(batch.number > number);
+			number = batch.number;
+		} while (!batch.backups.contains("backup"));
+
+		for (int i = 4; i <= 100; i++)
+			append(i);
+		log.await(append(101));
+		synchronized (this) {
+			assertEquals(state, replica);
+		}
+		assertTrue(log.holdsLease());
+
+		for (var b : batches) {
+			assertNull(b.snapshot);
+			assertEquals(List.of("backup"), b.backups);
+			assertTrue(b.number > number);
+			number = b.number;
+		}
+	}
+
+	@Test
+	void rejectsForgedBatches() throws Exception {
+		BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+		open((backup, bytes) -> {
+			sent.add(bytes);
+			return 0;
+		}, () -> {}).addBackup("backup");
+
+		byte[] bytes = sent.poll(2 * ReplicationLog.HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+		assertNotNull(bytes);
+		assertEquals("shard", ReplicationLog.Batch.decode(bytes, KEY).shard);
+
+		assertThrows(SecurityException.class, () -> ReplicationLog.Batch.decode(bytes, "other".getBytes(StandardCharsets.UTF_8)));
+		assertThrows(SecurityException.class, () -> ReplicationLog.Batch.decode(new byte[8], KEY));
+		for (int i = 0; i < bytes.length; i++) {
+			byte[] tampered = bytes.clone();
+			tampered[i] ^= 1;
+			assertThrows(SecurityException.class, () -> ReplicationLog.Batch.decode(tampered, KEY));
+		}
+	}
+
+	@Test
+	void deposed() throws Exception {
+		var called = new AtomicBoolean();
+		open((backup, bytes) -> {
+			throw new ReplicationLog.DeposedException();
+		}, () -> called.set(true)).addBackup("backup");
+
+		long deadline = System.currentTimeMillis() + 2 * ReplicationLog.HEARTBEAT_PERIOD;
+		while (!called.get() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		assertTrue(called.get());
+		assertTrue(log.isClosed());
+		assertFalse(log.holdsLease());
+		long seq = append(1);
+		assertThrows(IOException.class, () -> log.await(seq));
+	}
+}
@@ -0,0 +1,130 @@
+package tp1.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrigramIndexTest {
+
+	// the texts indexed, by id, searched as the users service did before the index
+	private final Map<String, String> texts = new HashMap<>();
+	private final TrigramIndex<String> index = new TrigramIndex<>();
+
+	private void put(String id, String text) {
+		texts.put(id, text);
+		index.put(id, text, id);
+	}
+
+	private void remove(String id) {
+		texts.remove(id);
+		index.remove(id);
+	}
+
+	private Set<String> scan(String pattern) {
+		Set<String> ids = new HashSet<>();
+		for (var e : texts.entrySet())
+			if (e.getValue().toLowerCase(Locale.ROOT).contains(pattern.toLowerCase(Locale.ROOT)))
+				ids.add(e.getKey());
+		return ids;
+	}
+
+	private void assertSearch(String pattern) {
+		List<String> found = index.search(pattern);
+		assertEquals(found.size(), new HashSet<>(found).size(), pattern);
+		assertEquals(scan(pattern), new HashSet<>(found), pattern);
+	}
+
+	@Test
+	void shortPatterns() {
+		put("1", "Al");
+		put("2", "Bob Alves");
+		put("3", "x");
+		put("4", "");
+
+		for (String pattern : List.of("", "a", "A", "al", "AL", "b ", " ", "x", "z", "lv"))
+			assertSearch(pattern);
+		assertEquals(4, index.search("").size());
+	}
+
+	@Test
+	void renames() {
+		put("1", "Alice Smith");
+		put("2", "Alice Jones");
+		assertEquals(Set.of("1", "2"), new HashSet<>(index.search("alice")));
+
+		// renaming drops the trigrams only the old text had, and keeps those shared with the new one
+		put("1", "Bob Smith");
+		assertEquals(List.of("2"), index.search("alice"));
+		assertEquals(List.of("1"), index.search("bob"));
+		assertEquals(List.of("1"), index.search("smith"));
+		assertEquals(List.of("2"), index.search("lic"));
+
+		put("1", "Al");
+		assertTrue(index.search("smith").isEmpty());
+		assertEquals(Set.of("1", "2"), new HashSet<>(index.search("al")));
+
+		put("1", "Alice Smith");
+		assertEquals(Set.of("1", "2"), new HashSet<>(index.search("ALICE")));
+	}
+
+	@Test
+	void removes() {
+		put("1", "Alice Smith");
+		put("2", "Alice Jones");
+		remove("1");
+		remove("3");
+
+		assertEquals(List.of("2"), index.search("alice"));
+		assertTrue(index.search("smith").isEmpty());
+		assertTrue(index.search("sm").isEmpty());
+		assertEquals(List.of("2"), index.values());
+
+		remove("2");
+		assertTrue(index.search("alice").isEmpty());
+		assertTrue(index.search("").isEmpty());
+		assertTrue(index.values().isEmpty());
+	}
+
+	@Test
+	void foldsCase() {
+		put("1", "\u00c9COLE \u00d6l");
+		put("2", "\u00e9cole");
+		put("3", "\u0130stanbul");
+		put("4", "STRASSE stra\u00dfe");
+
+		for (String pattern : List.of("\u00e9co", "\u00c9CO", "\u00c9cole", "\u00d6l", "\u00f6l", "\u0130st", "i\u0307st", "ist", "sse", "SSE", "\u00dfe", "SS"))
+			assertSearch(pattern);
+	}
+
+	@Test
+	void matchesScan() {
+		var random = new Random(7);
+		String alphabet = "abAB ";
+		for (int i = 0; i < 3000; i++) {
+			String id = Integer.toString(random.nextInt(50));
+			if (random.nextInt(5) == 0)
+				remove(id);
+			else
+				put(id, text(random, alphabet, random.nextInt(12)));
+
+			if (i % 10 == 0)
+				assertSearch(text(random, alphabet, random.nextInt(6)));
+		}
+	}
+
+	private static String text(Random random, String alphabet, int length) {
+		var text = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return text.toString();
+	}
+}
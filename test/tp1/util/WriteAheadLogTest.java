@@ -0,0 +1,158 @@
+package tp1.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WriteAheadLogTest {
+
+	// each record is 8 bytes of framing and 8 of payload
+	private static final int RECORD_SIZE = 16;
+
+	private Path dir;
+
+	@BeforeEach
+	void createDir() throws IOException {
+		dir = Files.createTempDirectory("wal");
+	}
+
+	@AfterEach
+	void deleteDir() throws IOException {
+		try (var files = Files.walk(dir)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+				Files.delete(file);
+		}
+	}
+
+	/**
+	 * Opens the log of the directory, recovering its state into the given map.
+	 */
+	private WriteAheadLog open(Map<Integer, Integer> state) throws IOException {
+		var log = new WriteAheadLog(dir, WriteAheadLog.FsyncPolicy.ALWAYS, Long.MAX_VALUE, out -> {
+			out.writeInt(state.size());
+			for (var e : state.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeInt(e.getValue());
+			}
+		});
+		log.recover(in -> {
+			for (int n = in.readInt(); n > 0; n--)
+				state.put(in.readInt(), in.readInt());
+		}, in -> state.put(in.readInt(), in.readInt()));
+		return log;
+	}
+
+	private static void put(WriteAheadLog log, Map<Integer, Integer> state, int key, int value) throws IOException {
+		state.put(key, value);
+		log.await(log.append(out -> {
+			out.writeInt(key);
+			out.writeInt(value);
+		}));
+	}
+
+	private List<Path> segments() throws IOException {
+		try (var files = Files.list(dir)) {
+			return files.filter(f -> f.getFileName().toString().startsWith("log-")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	void recoversRecords() throws IOException {
+		var state = new HashMap<Integer, Integer>();
+		var log = open(state);
+		for (int i = 0; i < 100; i++)
+			put(log, state, i % 10, i);
+
+		var recovered = new HashMap<Integer, Integer>();
+		open(recovered);
+		assertEquals(state, recovered);
+	}
+
+	@Test
+	void recoversTruncatedSegment() throws IOException {
+		var state = new HashMap<Integer, Integer>();
+		var log = open(state);
+		for (int i = 0; i < 10; i++)
+			put(log, state, i, i);
+
+		// a crash in the middle of writing the last record
+		Path segment = segments().get(0);
+		try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.setLength(10 * RECORD_SIZE - 3);
+		}
+		state.remove(9);
+
+		var recovered = new HashMap<Integer, Integer>();
+		log = open(recovered);
+		assertEquals(state, recovered);
+		assertEquals(9 * RECORD_SIZE, Files.size(segment));
+
+		// records logged after the recovery follow the ones kept
+		put(log, recovered, 9, 90);
+		var again = new HashMap<Integer, Integer>();
+		open(again);
+		assertEquals(recovered, again);
+	}
+
+	@Test
+	void recoversCorruptedRecord() throws IOException {
+		var state = new HashMap<Integer, Integer>();
+		var log = open(state);
+		for (int i = 0; i < 10; i++)
+			put(log, state, i, i);
+
+		// a record whose payload does not match its CRC ends the replay, along with the records after it
+		Path segment = segments().get(0);
+		try (var file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(5 * RECORD_SIZE + 12);
+			file.writeInt(-1);
+		}
+
+		var recovered = new HashMap<Integer, Integer>();
+		open(recovered);
+		for (int i = 5; i < 10; i++)
+			state.remove(i);
+		assertEquals(state, recovered);
+		assertEquals(5 * RECORD_SIZE, Files.size(segment));
+	}
+
+	@Test
+	void recoversTornLengthAfterSnapshot() throws IOException {
+		var state = new HashMap<Integer, Integer>();
+		var log = open(state);
+		for (int i = 0; i < 10; i++)
+			put(log, state, i, i);
+		log.snapshot();
+		for (int i = 10; i < 15; i++)
+			put(log, state, i, i);
+
+		// the snapshot replaced the segments before it
+		List<Path> segments = segments();
+		assertEquals(1, segments.size());
+
+		// a crash after writing only part of the framing of a record
+		Files.write(segments.get(0), new byte[] { 0, 0, 0 }, StandardOpenOption.APPEND);
+
+		var recovered = new HashMap<Integer, Integer>();
+		log = open(recovered);
+		assertEquals(state, recovered);
+
+		put(log, recovered, 15, 15);
+		var again = new HashMap<Integer, Integer>();
+		open(again);
+		assertEquals(recovered, again);
+	}
+}